@@ -4,8 +4,7 @@
 #@ DisplayService display
 
 
-from net.imagej import Dataset
-from fr.pasteur.iah.localzprojector.process import LocalZProjectionOp
+from fr.pasteur.iah.localzprojector.process import LocalZProjectionSession
 from fr.pasteur.iah.localzprojector.process import ReferenceSurfaceParameters
 from fr.pasteur.iah.localzprojector.process.ReferenceSurfaceParameters import Method
 from fr.pasteur.iah.localzprojector.process import ExtractSurfaceParameters
@@ -50,17 +49,29 @@ params_proj = ExtractSurfaceParameters.create() \
 # Execute.
 #------------------
 
-# Create op, specifying only input type and the two parameters.
-lzp_op = ops.op( LocalZProjectionOp, Dataset, params_ref_surface, params_proj )
-
-# Put the images to process in a list.
+# Put the images to process in a list. They may have different dimensions
+# and pixel types.
 images_to_process = [ input_img, input_img ]
 
+# One session per geometry. The ops of a session are matched and their
+# buffers allocated once, then reused for every image of that geometry.
+sessions = []
+
 # Loop over each image.
 for img in images_to_process:
 
+	# Find a session for the geometry of this image, or create one.
+	session = None
+	for s in sessions:
+		if s.accepts( img ):
+			session = s
+			break
+	if session is None:
+		session = LocalZProjectionSession.create( ops, img, params_ref_surface, params_proj )
+		sessions.append( session )
+
 	# Execute local Z projection.
-	local_proj = lzp_op.calculate( img )
+	local_proj = session.process( img )
 
 	# Display results.
 	local_proj_output = ds.create( local_proj )
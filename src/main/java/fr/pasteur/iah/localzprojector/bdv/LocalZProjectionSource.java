@@ -0,0 +1,423 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.bdv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileTypeMatcher;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters;
+import fr.pasteur.iah.localzprojector.process.LazyLocalZProjection;
+import fr.pasteur.iah.localzprojector.process.ReferenceSurfaceParameters;
+import fr.pasteur.iah.localzprojector.util.ImgPlusUtil;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.ops.OpEnvironment;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * A BigDataViewer source showing one channel of a local projection, or the
+ * reference surface, computed on demand.
+ * <p>
+ * Each resolution level is a {@link LazyLocalZProjection} of the source
+ * subsampled by a power of 2 in X and Y, with the reference surface
+ * parameters scaled accordingly: the binning is divided by the subsampling
+ * factor, and the filter sizes follow the new pixel size. Coarse levels are
+ * therefore cheap, and panning over a large mosaic shows them first. With
+ * {@link #asVolatile(SharedQueue)}, tiles are computed asynchronously by the
+ * fetcher threads of the BigDataViewer queue.
+ * <p>
+ * The projection is a single plane at Z = 0. With the collect method, the
+ * collected layers are stacked along Z.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the source.
+ */
+public class LocalZProjectionSource< T extends NumericType< T > > implements Source< T >
+{
+
+	private final String name;
+
+	private final T type;
+
+	/**
+	 * One image per level, in the layout of the projection output.
+	 */
+	private final List< RandomAccessibleInterval< T > > levels;
+
+	private final AffineTransform3D[] transforms;
+
+	private final VoxelDimensions voxelDimensions;
+
+	private final int zAxis;
+
+	private final int cAxis;
+
+	private final int tAxis;
+
+	private final int channel;
+
+	private final long nFrames;
+
+	private LocalZProjectionSource(
+			final String name,
+			final T type,
+			final List< RandomAccessibleInterval< T > > levels,
+			final AffineTransform3D[] transforms,
+			final VoxelDimensions voxelDimensions,
+			final int zAxis,
+			final int cAxis,
+			final int tAxis,
+			final int channel,
+			final long nFrames )
+	{
+		this.name = name;
+		this.type = type;
+		this.levels = levels;
+		this.transforms = transforms;
+		this.voxelDimensions = voxelDimensions;
+		this.zAxis = zAxis;
+		this.cAxis = cAxis;
+		this.tAxis = tAxis;
+		this.channel = channel;
+		this.nFrames = nFrames;
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return t >= 0 && t < nFrames;
+	}
+
+	@Override
+	public RandomAccessibleInterval< T > getSource( final int t, final int level )
+	{
+		// Slice the highest dimension first so that indices stay valid.
+		RandomAccessibleInterval< T > img = levels.get( level );
+		if ( tAxis > cAxis )
+		{
+			img = Views.hyperSlice( img, tAxis, t );
+			if ( cAxis >= 0 )
+				img = Views.hyperSlice( img, cAxis, channel );
+		}
+		else if ( cAxis >= 0 )
+		{
+			img = Views.hyperSlice( img, cAxis, channel );
+			if ( tAxis >= 0 )
+				img = Views.hyperSlice( img, tAxis, t );
+		}
+		if ( zAxis < 0 )
+			img = Views.addDimension( img, 0, 0 );
+		return img;
+	}
+
+	@Override
+	public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		final RandomAccessibleInterval< T > img = getSource( t, level );
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory<>() );
+		return Views.interpolate( Views.extendZero( img ), new NearestNeighborInterpolatorFactory<>() );
+	}
+
+	@Override
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	{
+		transform.set( transforms[ level ] );
+	}
+
+	@Override
+	public T getType()
+	{
+		return type;
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		return voxelDimensions;
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return levels.size();
+	}
+
+	/**
+	 * Returns a volatile version of this source. Tiles are computed in the
+	 * background by the fetcher threads of the specified queue, and the
+	 * viewer shows coarser levels until they are ready.
+	 *
+	 * @param queue
+	 *            the queue shared by the sources of a viewer.
+	 * @param <V>
+	 *            the volatile pixel type.
+	 * @return a new source.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public < V extends Volatile< T > & NumericType< V > > LocalZProjectionSource< V > asVolatile( final SharedQueue queue )
+	{
+		final List< RandomAccessibleInterval< V > > volatileLevels = new ArrayList<>( levels.size() );
+		for ( final RandomAccessibleInterval< T > level : levels )
+			volatileLevels.add( ( RandomAccessibleInterval< V > ) VolatileViews.wrapAsVolatile( level, queue ) );
+		final V volatileType = ( V ) VolatileTypeMatcher.getVolatileTypeForType( ( NativeType ) type );
+		return new LocalZProjectionSource<>( name, volatileType, volatileLevels, transforms, voxelDimensions, zAxis, cAxis, tAxis, channel, nFrames );
+	}
+
+	/**
+	 * Creates one source per channel of the local projection of the
+	 * specified image.
+	 *
+	 * @param ops
+	 *            the op environment.
+	 * @param source
+	 *            the source image. X and Y must be the first two dimensions,
+	 *            and it must have a Z axis.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters at full resolution.
+	 * @param extractSurfaceParams
+	 *            the extract surface parameters.
+	 * @param maxCachedCells
+	 *            the maximal number of tiles kept in memory, per level.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 * @return a new list of sources, one per channel.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< LocalZProjectionSource< T > > projection(
+			final OpEnvironment ops,
+			final ImgPlus< T > source,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams,
+			final long maxCachedCells )
+	{
+		final int nLevels = numLevels( source );
+		final List< RandomAccessibleInterval< T > > levels = new ArrayList<>( nLevels );
+		CalibratedAxis[] axes = null;
+		for ( int level = 0; level < nLevels; level++ )
+		{
+			final LazyLocalZProjection< T > projection = new LazyLocalZProjection<>(
+					ops,
+					subsample( source, 1 << level ),
+					scale( referenceSurfaceParams, 1 << level ),
+					extractSurfaceParams );
+			levels.add( projection.createImg( maxCachedCells ) );
+			axes = projection.getOutputAxes();
+		}
+
+		final int zAxis = indexOf( axes, Axes.Z );
+		final int cAxis = indexOf( axes, Axes.CHANNEL );
+		final int tAxis = indexOf( axes, Axes.TIME );
+		final long nChannels = Math.max( 1, source.dimension( Axes.CHANNEL ) );
+		final List< LocalZProjectionSource< T > > sources = new ArrayList<>( ( int ) nChannels );
+		for ( int c = 0; c < nChannels; c++ )
+			sources.add( new LocalZProjectionSource<>(
+					"Local Z Projection of " + source.getName() + ( nChannels > 1 ? " - C" + c : "" ),
+					source.firstElement().createVariable(),
+					levels,
+					transforms( source, nLevels ),
+					voxelDimensions( source ),
+					zAxis,
+					cAxis,
+					tAxis,
+					c,
+					Math.max( 1, source.dimension( Axes.TIME ) ) ) );
+		return sources;
+	}
+
+	/**
+	 * Creates a source showing the reference surface of the specified image.
+	 * Pixel values are the Z index of the surface.
+	 *
+	 * @param ops
+	 *            the op environment.
+	 * @param source
+	 *            the source image. X and Y must be the first two dimensions,
+	 *            and it must have a Z axis.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters at full resolution.
+	 * @param extractSurfaceParams
+	 *            the extract surface parameters.
+	 * @param maxCachedCells
+	 *            the maximal number of tiles kept in memory, per level.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 * @return a new source.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > LocalZProjectionSource< UnsignedShortType > referenceSurface(
+			final OpEnvironment ops,
+			final ImgPlus< T > source,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams,
+			final long maxCachedCells )
+	{
+		final int nLevels = numLevels( source );
+		final List< RandomAccessibleInterval< UnsignedShortType > > levels = new ArrayList<>( nLevels );
+		for ( int level = 0; level < nLevels; level++ )
+		{
+			final LazyLocalZProjection< T > projection = new LazyLocalZProjection<>(
+					ops,
+					subsample( source, 1 << level ),
+					scale( referenceSurfaceParams, 1 << level ),
+					extractSurfaceParams );
+			levels.add( projection.createReferenceSurfaceImg( maxCachedCells ) );
+		}
+		final boolean hasTime = source.dimensionIndex( Axes.TIME ) >= 0;
+		return new LocalZProjectionSource<>(
+				"Reference surface of " + source.getName(),
+				new UnsignedShortType(),
+				levels,
+				transforms( source, nLevels ),
+				voxelDimensions( source ),
+				-1,
+				-1,
+				hasTime ? 2 : -1,
+				0,
+				Math.max( 1, source.dimension( Axes.TIME ) ) );
+	}
+
+	/**
+	 * Levels are added until the image fits in one default tile.
+	 */
+	private static int numLevels( final ImgPlus< ? > source )
+	{
+		final long size = Math.max( source.dimension( 0 ), source.dimension( 1 ) );
+		int nLevels = 1;
+		while ( ( size >> nLevels ) >= 256 && nLevels < 8 )
+			nLevels++;
+		return nLevels;
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > ImgPlus< T > subsample( final ImgPlus< T > source, final int factor )
+	{
+		if ( factor == 1 )
+			return source;
+
+		final long[] steps = new long[ source.numDimensions() ];
+		for ( int d = 0; d < steps.length; d++ )
+			steps[ d ] = ( d < 2 ) ? factor : 1;
+		final CalibratedAxis[] axes = new CalibratedAxis[ source.numDimensions() ];
+		for ( int d = 0; d < axes.length; d++ )
+			axes[ d ] = source.axis( d );
+		return new ImgPlus<>( ImgPlusUtil.wrapToImg( Views.subsample( source, steps ) ), source.getName(), axes );
+	}
+
+	/**
+	 * Returns the reference surface parameters to use on a source subsampled
+	 * by the specified factor. The binning is divided by the factor, and
+	 * the sizes expressed in binned pixels are scaled if the binned pixels
+	 * get larger than at full resolution.
+	 */
+	private static ReferenceSurfaceParameters scale( final ReferenceSurfaceParameters params, final int factor )
+	{
+		if ( factor == 1 )
+			return params;
+
+		final int binning = Math.max( 1, params.binning / factor );
+		final double scale = ( double ) params.binning / ( factor * binning );
+		return ReferenceSurfaceParameters.create()
+				.method( params.method )
+				.zMin( params.zMin )
+				.zMax( params.zMax )
+				.filterWindowSize( Math.max( 1, ( int ) Math.round( ( double ) params.filterWindowSize / factor ) ) )
+				.gaussianPreFilter( params.sigma * scale )
+				.medianPostFilterHalfSize( ( int ) Math.round( params.medianHalfSize * scale ) )
+				.targetChannel( params.targetChannel )
+				.binning( binning )
+				.get();
+	}
+
+	private static AffineTransform3D[] transforms( final ImgPlus< ? > source, final int nLevels )
+	{
+		final double sx = source.averageScale( 0 );
+		final double sy = source.averageScale( 1 );
+		final int z = source.dimensionIndex( Axes.Z );
+		final double sz = ( z < 0 ) ? 1. : source.averageScale( z );
+		final AffineTransform3D[] transforms = new AffineTransform3D[ nLevels ];
+		for ( int level = 0; level < nLevels; level++ )
+		{
+			// Subsampling keeps the first pixel of each block.
+			final int f = 1 << level;
+			transforms[ level ] = new AffineTransform3D();
+			transforms[ level ].set(
+					f * sx, 0., 0., 0.,
+					0., f * sy, 0., 0.,
+					0., 0., sz, 0. );
+		}
+		return transforms;
+	}
+
+	private static VoxelDimensions voxelDimensions( final ImgPlus< ? > source )
+	{
+		final int z = source.dimensionIndex( Axes.Z );
+		return new FinalVoxelDimensions(
+				source.axis( 0 ).unit(),
+				source.averageScale( 0 ),
+				source.averageScale( 1 ),
+				( z < 0 ) ? 1. : source.averageScale( z ) );
+	}
+
+	private static int indexOf( final CalibratedAxis[] axes, final AxisType type )
+	{
+		for ( int d = 0; d < axes.length; d++ )
+			if ( axes[ d ].type() == type )
+				return d;
+		return -1;
+	}
+}
@@ -41,7 +41,9 @@ import javax.swing.UnsupportedLookAndFeelException;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ops.Op;
@@ -50,7 +52,6 @@ import net.imagej.ops.special.computer.Computers;
 import net.imagej.ops.special.computer.UnaryComputerOp;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
-import net.imagej.ops.thread.chunker.ChunkerOp;
 import net.imagej.ops.thread.chunker.CursorBasedChunk;
 import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
@@ -71,37 +72,77 @@ public class BinningOp< T extends RealType< T > > extends AbstractUnaryFunctionO
 	@Parameter( type = ItemIO.INPUT )
 	private int[] binfactors;
 
+	@Parameter
+	private ThreadService threadService;
+
 	@Parameter( type = ItemIO.INPUT, required = false )
 	private Class< ? extends Op > ocClass = Ops.Stats.Mean.class;
 
+	/**
+	 * The op that computes the value of a bin, matched for the pixel type of
+	 * the last input.
+	 */
+	private UnaryComputerOp< Iterable< T >, T > op;
+
+	private Class< ? > opType;
+
 	@Override
 	public Img< T > calculate( final RandomAccessibleInterval< T > input )
 	{
+		final Img< T > binned = createOutput( input );
+		bin( input, binned );
+		return binned;
+	}
 
+	/**
+	 * Creates an image that can receive the binned input.
+	 * 
+	 * @param input
+	 *            the input to bin.
+	 * @return a new image.
+	 */
+	public Img< T > createOutput( final RandomAccessibleInterval< T > input )
+	{
+		checkDimensions( input );
 		final int numDimensions = input.numDimensions();
-		if ( numDimensions != binfactors.length )
-			throw new IllegalArgumentException( "Bin n-dimensions and input n-dimensions must be equal. Bins have "
-					+ binfactors.length + " dimensions and input has " + numDimensions + " dimensions." );
-
-		// Prepare output.
-		final long[] imgSize = new long[ numDimensions ];
-		input.dimensions( imgSize );
 		final long[] newSize = new long[ numDimensions ];
-		for ( int d = 0; d < input.numDimensions(); ++d )
+		for ( int d = 0; d < numDimensions; ++d )
 			newSize[ d ] = input.dimension( d ) / binfactors[ d ];
 
 		final ImgFactory< T > factory = Util.getSuitableImgFactory( FinalDimensions.wrap( newSize ),
 				Util.getTypeFromInterval( input ) );
-		final Img< T > binned = factory.create( FinalDimensions.wrap( newSize ) );
+		return factory.create( FinalDimensions.wrap( newSize ) );
+	}
+
+	/**
+	 * Bins the input into the specified image, for instance one created by
+	 * {@link #createOutput(RandomAccessibleInterval)} and reused for several
+	 * inputs of the same size.
+	 * 
+	 * @param input
+	 *            the input to bin.
+	 * @param binned
+	 *            the image to write the binned values into.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public void bin( final RandomAccessibleInterval< T > input, final Img< T > binned )
+	{
+		checkDimensions( input );
+		final int numDimensions = input.numDimensions();
 
 		final NotCenteredRectangleShape shape = new NotCenteredRectangleShape( binfactors );
 		final RandomAccessible< Neighborhood< T > > ran = shape.neighborhoodsRandomAccessible( Views.extendMirrorSingle( input ) );
 
-		@SuppressWarnings( { "rawtypes", "unchecked" } )
-		final UnaryComputerOp< Iterable< T >, T > op = ( UnaryComputerOp ) Computers.unary( ops(), ocClass, binned.firstElement().getClass(), Iterable.class );
+		final Class< ? > type = binned.firstElement().getClass();
+		if ( null == op || opType != type )
+		{
+			op = ( UnaryComputerOp ) Computers.unary( ops(), ocClass, type, Iterable.class );
+			opType = type;
+		}
+		final UnaryComputerOp< Iterable< T >, T > op = this.op;
 
-		// Multithread.
-		ops().run( ChunkerOp.class, new CursorBasedChunk()
+		// Multithread, within the thread budget of the caller.
+		ThreadBudget.forEachChunk( threadService.getExecutorService(), binned.size(), new CursorBasedChunk()
 		{
 			@Override
 			public void execute( final long startIndex, final long stepSize, final long numSteps )
@@ -124,9 +165,14 @@ public class BinningOp< T extends RealType< T > > extends AbstractUnaryFunctionO
 					op.compute( ra.get(), cursor.get() );
 				}
 			}
-		}, binned.size() );
+		} );
+	}
 
-		return binned;
+	private void checkDimensions( final RandomAccessibleInterval< T > input )
+	{
+		if ( input.numDimensions() != binfactors.length )
+			throw new IllegalArgumentException( "Bin n-dimensions and input n-dimensions must be equal. Bins have "
+					+ binfactors.length + " dimensions and input has " + input.numDimensions() + " dimensions." );
 	}
 
 	@SuppressWarnings( "unchecked" )
@@ -35,9 +35,10 @@ package fr.pasteur.iah.localzprojector.binning;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
-import net.imagej.ops.thread.chunker.ChunkerOp;
 import net.imagej.ops.thread.chunker.CursorBasedChunk;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
@@ -45,6 +46,7 @@ import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Util;
@@ -62,9 +64,19 @@ public class UnBinningOp< T extends RealType< T > & NativeType< T > > extends Ab
 	@Parameter( type = ItemIO.INPUT )
 	private int[] binfactors;
 
+	@Parameter
+	private ThreadService threadService;
+
 	@Parameter( type = ItemIO.INPUT, required = false )
 	private Dimensions desiredDimensions;
 
+	/**
+	 * The factory of the rescaled image. If <code>null</code>, it is created
+	 * by the op service.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	private ImgFactory< T > factory;
+
 	@Override
 	public Img< T > calculate( final RandomAccessibleInterval< T > input )
 	{
@@ -80,12 +92,14 @@ public class UnBinningOp< T extends RealType< T > & NativeType< T > > extends Ab
 				dims[ d ] = input.dimension( d ) * binfactors[ d ];
 			desiredDimensions = FinalDimensions.wrap( dims );
 		}
-		final Img< T > rescaled = ops().create().img( desiredDimensions, Util.getTypeFromInterval( input ) );
+		final Img< T > rescaled = ( null == factory )
+				? ops().create().img( desiredDimensions, Util.getTypeFromInterval( input ) )
+				: factory.create( desiredDimensions );
 		
 		final ExtendedRandomAccessibleInterval< T, RandomAccessibleInterval< T > > extended = Views.extendBorder( input );
 
-		// Multithread.
-		ops().run( ChunkerOp.class, new CursorBasedChunk()
+		// Multithread, within the thread budget of the caller.
+		ThreadBudget.forEachChunk( threadService.getExecutorService(), rescaled.size(), new CursorBasedChunk()
 		{
 			@Override
 			public void execute( final long startIndex, final long stepSize, final long numSteps )
@@ -108,7 +122,7 @@ public class UnBinningOp< T extends RealType< T > & NativeType< T > > extends Ab
 					cursor.get().set( ra.get() );
 				}
 			}
-		}, rescaled.size() );
+		} );
 
 		return rescaled;
 	}
@@ -0,0 +1,459 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import com.google.gson.GsonBuilder;
+
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
+import net.imagej.ImageJ;
+
+/**
+ * Projects many files concurrently, headless.
+ * <p>
+ * Files are distributed over a fixed number of workers, each with its own
+ * {@link HeadlessProjector}. The workers share one SciJava context and a
+ * total number of threads: each worker runs its ops with its share of it, as
+ * set with {@link ThreadBudget}. A file that cannot be processed does not
+ * stop the others. At the end a summary of the throughput and of the
+ * failures is printed, and optionally saved as JSON. The results of each
+ * file are saved in the sub-folder of the output folder that mirrors its
+ * folder relative to the first folder of the pattern.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * BatchProjection --params params.json --input "/data/*.tif" --output folder [--workers 1] [--threads n] [--summary summary.json]
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BatchProjection
+{
+
+	private static final String GLOB_CHARS = "*?[{";
+
+	/**
+	 * The summary of a batch run.
+	 */
+	public static class Summary
+	{
+
+		public int files;
+
+		public int succeeded;
+
+		public long bytes;
+
+		public double seconds;
+
+		public double filesPerSecond;
+
+		public double megabytesPerSecond;
+
+		/**
+		 * Mean time spent on each file by a worker, in seconds.
+		 */
+		public double meanSecondsPerFile;
+
+		public final List< String > failures = new ArrayList<>();
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			str.append( String.format( "Processed %d of %d files in %.1f s.", succeeded, files, seconds ) );
+			str.append( String.format( "\n - throughput: %.2f files/s, %.1f MB/s", filesPerSecond, megabytesPerSecond ) );
+			str.append( String.format( "\n - mean time per file: %.1f s", meanSecondsPerFile ) );
+			if ( !failures.isEmpty() )
+			{
+				str.append( "\n - failures: " + failures.size() );
+				for ( final String failure : failures )
+					str.append( "\n   " + failure );
+			}
+			return str.toString();
+		}
+	}
+
+	private final Context context;
+
+	private final ProjectionParameters parameters;
+
+	private final int nWorkers;
+
+	private final int nThreads;
+
+	private final LogService log;
+
+	/**
+	 * Creates a batch.
+	 * 
+	 * @param context
+	 *            the context to get the services from.
+	 * @param parameters
+	 *            the projection parameters.
+	 * @param nWorkers
+	 *            the number of files processed concurrently.
+	 * @param nThreads
+	 *            the total number of threads shared by the workers.
+	 */
+	public BatchProjection( final Context context, final ProjectionParameters parameters, final int nWorkers, final int nThreads )
+	{
+		if ( nWorkers < 1 )
+			throw new IllegalArgumentException( "The number of workers must be at least 1. Was " + nWorkers + "." );
+		if ( nThreads < 1 )
+			throw new IllegalArgumentException( "The number of threads must be at least 1. Was " + nThreads + "." );
+		this.context = context;
+		this.parameters = parameters;
+		this.nWorkers = nWorkers;
+		this.nThreads = nThreads;
+		this.log = context.getService( LogService.class );
+	}
+
+	/**
+	 * Projects the specified files and saves the results in the specified
+	 * folder.
+	 * 
+	 * @param files
+	 *            the files to process.
+	 * @param outputFolder
+	 *            the folder to save the results into.
+	 * @return the summary of the run.
+	 * @throws IOException
+	 *             if the output folder cannot be created.
+	 */
+	public Summary run( final List< Path > files, final Path outputFolder ) throws IOException
+	{
+		return run( files, null, outputFolder );
+	}
+
+	/**
+	 * Projects the specified files and saves the results in the specified
+	 * folder. The results of a file are saved in the sub-folder of the output
+	 * folder that mirrors the path of the file relative to the specified
+	 * root, so that files with the same name in different folders do not
+	 * overwrite each other. A file whose results would overwrite the ones of
+	 * another file of the batch fails.
+	 * 
+	 * @param files
+	 *            the files to process.
+	 * @param root
+	 *            the folder the files are relative to, or <code>null</code>
+	 *            to save all the results directly in the output folder.
+	 * @param outputFolder
+	 *            the folder to save the results into.
+	 * @return the summary of the run.
+	 * @throws IOException
+	 *             if the output folder cannot be created.
+	 */
+	public Summary run( final List< Path > files, final Path root, final Path outputFolder ) throws IOException
+	{
+		Files.createDirectories( outputFolder );
+		final int workers = Math.max( 1, Math.min( nWorkers, files.size() ) );
+		final int threadsPerWorker = Math.max( 1, nThreads / workers );
+		final ThreadLocal< HeadlessProjector< ? > > projectors = ThreadLocal.withInitial( () -> new HeadlessProjector<>( context, parameters ) );
+
+		final long start = System.nanoTime();
+		final ExecutorService executor = Executors.newFixedThreadPool( workers );
+		final List< Future< HeadlessProjector.Result > > futures = new ArrayList<>( files.size() );
+		// Which file of the batch writes each output.
+		final Map< Path, Path > claimed = new HashMap<>();
+		try
+		{
+			for ( final Path file : files )
+			{
+				final Path folder = outputFolder( file, root, outputFolder );
+				final Path output = HeadlessProjector.outputFile( file, folder ).toAbsolutePath().normalize();
+				final Path previous = claimed.putIfAbsent( output, file );
+				if ( null != previous )
+				{
+					final CompletableFuture< HeadlessProjector.Result > collision = new CompletableFuture<>();
+					collision.completeExceptionally( new IOException( "Output " + output + " is already written by " + previous + " in this batch." ) );
+					futures.add( collision );
+					continue;
+				}
+				futures.add( executor.submit( () -> {
+					ThreadBudget.set( threadsPerWorker );
+					Files.createDirectories( folder );
+					final HeadlessProjector.Result result = projectors.get().process( file, folder );
+					log.info( String.format( "Projected %s in %.1f s.", file, result.totalMillis() / 1000. ) );
+					return result;
+				} ) );
+			}
+
+			final Summary summary = new Summary();
+			summary.files = files.size();
+			long busyMillis = 0;
+			for ( int i = 0; i < files.size(); i++ )
+			{
+				try
+				{
+					final HeadlessProjector.Result result = futures.get( i ).get();
+					summary.succeeded++;
+					summary.bytes += result.bytes;
+					busyMillis += result.totalMillis();
+				}
+				catch ( final ExecutionException e )
+				{
+					final Throwable cause = ( null == e.getCause() ) ? e : e.getCause();
+					log.error( "Could not project " + files.get( i ) + ".", cause );
+					summary.failures.add( files.get( i ) + ": " + cause );
+				}
+			}
+			summary.seconds = ( System.nanoTime() - start ) / 1e9;
+			summary.filesPerSecond = summary.succeeded / Math.max( 1e-9, summary.seconds );
+			summary.megabytesPerSecond = summary.bytes / 1e6 / Math.max( 1e-9, summary.seconds );
+			summary.meanSecondsPerFile = ( summary.succeeded == 0 ) ? 0. : busyMillis / 1000. / summary.succeeded;
+			return summary;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Batch projection was interrupted." );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the folder the results of the specified file are saved into:
+	 * the output folder, followed by the folder of the file relative to the
+	 * specified root.
+	 * 
+	 * @param file
+	 *            the image file.
+	 * @param root
+	 *            the folder the file is relative to, or <code>null</code>.
+	 * @param outputFolder
+	 *            the output folder.
+	 * @return the folder to save the results of the file into.
+	 */
+	public static Path outputFolder( final Path file, final Path root, final Path outputFolder )
+	{
+		if ( null == root )
+			return outputFolder;
+		final Path parent = file.toAbsolutePath().normalize().getParent();
+		final Path base = root.toAbsolutePath().normalize();
+		if ( null == parent || !parent.startsWith( base ) )
+			return outputFolder;
+		return outputFolder.resolve( base.relativize( parent ).toString() );
+	}
+
+	/**
+	 * Returns the deepest folder of the specified glob pattern that contains
+	 * no glob character, from which {@link #expand(String)} searches files.
+	 * For a pattern without glob character, returns the folder of the file.
+	 * 
+	 * @param glob
+	 *            the glob pattern.
+	 * @return the root folder.
+	 */
+	public static Path root( final String glob )
+	{
+		final String full = absolute( glob );
+		final int firstGlob = firstGlob( full );
+		if ( firstGlob == full.length() )
+		{
+			final Path parent = Paths.get( full ).getParent();
+			return ( null == parent ) ? Paths.get( full ) : parent;
+		}
+		final int separator = Math.max( full.lastIndexOf( '/', firstGlob ), full.lastIndexOf( File.separatorChar, firstGlob ) );
+		return Paths.get( full.substring( 0, separator + 1 ) );
+	}
+
+	/**
+	 * Returns the files matching the specified glob pattern, sorted. Relative
+	 * patterns are resolved against the working directory. The pattern is
+	 * matched against the whole path, so <code>/data/*.tif</code> finds the
+	 * TIFF files in <code>/data</code>, and <code>/data/**&#47;*.tif</code>
+	 * the TIFF files in <code>/data</code> and all its sub-folders.
+	 * 
+	 * @param glob
+	 *            the glob pattern.
+	 * @return the matching files.
+	 * @throws IOException
+	 *             if the folders cannot be listed.
+	 */
+	public static List< Path > expand( final String glob ) throws IOException
+	{
+		final String full = absolute( glob );
+		final int firstGlob = firstGlob( full );
+		if ( firstGlob == full.length() )
+		{
+			final Path file = Paths.get( full );
+			final List< Path > files = new ArrayList<>();
+			if ( Files.isRegularFile( file ) )
+				files.add( file );
+			return files;
+		}
+
+		// Walk from the deepest folder without glob characters.
+		final int separator = Math.max( full.lastIndexOf( '/', firstGlob ), full.lastIndexOf( File.separatorChar, firstGlob ) );
+		final Path root = root( glob );
+		final String rest = full.substring( separator + 1 );
+		final int depth = rest.contains( "**" )
+				? Integer.MAX_VALUE
+				: 1 + ( int ) rest.chars().filter( c -> c == '/' || c == File.separatorChar ).count();
+		if ( !Files.isDirectory( root ) )
+			return new ArrayList<>();
+
+		final PathMatcher matcher = root.getFileSystem().getPathMatcher( "glob:" + full );
+		try (Stream< Path > stream = Files.walk( root, depth, FileVisitOption.FOLLOW_LINKS ))
+		{
+			return stream
+					.filter( Files::isRegularFile )
+					.filter( matcher::matches )
+					.sorted()
+					.collect( Collectors.toList() );
+		}
+	}
+
+	private static String absolute( final String glob )
+	{
+		return new File( glob ).isAbsolute()
+				? glob
+				: new File( "" ).getAbsolutePath() + File.separator + glob;
+	}
+
+	private static int firstGlob( final String full )
+	{
+		int firstGlob = full.length();
+		for ( final char c : GLOB_CHARS.toCharArray() )
+		{
+			final int i = full.indexOf( c );
+			if ( i >= 0 )
+				firstGlob = Math.min( firstGlob, i );
+		}
+		return firstGlob;
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		String params = null;
+		String input = null;
+		String output = null;
+		String summaryFile = null;
+		int workers = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for ( int i = 0; i < args.length; i++ )
+		{
+			final String arg = args[ i ];
+			if ( i == args.length - 1 )
+				usage( "Missing value for " + arg + "." );
+			final String value = args[ ++i ];
+			switch ( arg )
+			{
+			case "--params":
+				params = value;
+				break;
+			case "--input":
+				input = value;
+				break;
+			case "--output":
+				output = value;
+				break;
+			case "--workers":
+				workers = Integer.parseInt( value );
+				break;
+			case "--threads":
+				threads = Integer.parseInt( value );
+				break;
+			case "--summary":
+				summaryFile = value;
+				break;
+			default:
+				usage( "Unknown option: " + arg + "." );
+			}
+		}
+		if ( null == params || null == input || null == output )
+			usage( "The --params, --input and --output options are required." );
+
+		final List< Path > files = expand( input );
+		if ( files.isEmpty() )
+			usage( "No file matches " + input + "." );
+
+		System.setProperty( "java.awt.headless", "true" );
+		final ProjectionParameters parameters = ProjectionParameters.deserialize( new File( params ) );
+		final ImageJ ij = new ImageJ();
+		final Summary summary;
+		try
+		{
+			summary = new BatchProjection( ij.context(), parameters, workers, threads ).run( files, root( input ), Paths.get( output ) );
+		}
+		finally
+		{
+			ij.context().dispose();
+		}
+
+		System.out.println( summary );
+		if ( null != summaryFile )
+		{
+			try (Writer writer = Files.newBufferedWriter( Paths.get( summaryFile ) ))
+			{
+				new GsonBuilder().setPrettyPrinting().create().toJson( summary, writer );
+			}
+		}
+		System.exit( summary.failures.isEmpty() ? 0 : 1 );
+	}
+
+	private static void usage( final String message )
+	{
+		System.err.println( message );
+		System.err.println( "Usage: BatchProjection --params params.json --input \"/data/*.tif\" --output folder [--workers 1] [--threads n] [--summary summary.json]" );
+		System.exit( 1 );
+	}
+}
@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import org.scijava.Cancelable;
+import org.scijava.Context;
+
+import fr.pasteur.iah.localzprojector.process.LocalZProjectionOp;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Projects image files one after the other with a single
+ * {@link LocalZProjectionOp}, matched once.
+ * <p>
+ * The SciJava context and the op are created once and reused for every file,
+ * so that a long-running process does not pay their startup cost for each
+ * file. Instances are not thread-safe: concurrent workers must use one
+ * projector each.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class HeadlessProjector< T extends RealType< T > & NativeType< T > > implements Cancelable
+{
+
+	/**
+	 * The outcome and timings of the projection of one file.
+	 */
+	public static class Result
+	{
+
+		public final Path input;
+
+		public final Path output;
+
+		/**
+		 * The reference surface file, or <code>null</code> if it was not
+		 * saved.
+		 */
+		public final Path referenceSurface;
+
+		/**
+		 * The size of the input file, in bytes.
+		 */
+		public final long bytes;
+
+		public final long openMillis;
+
+		public final long projectMillis;
+
+		public final long saveMillis;
+
+		public Result( final Path input, final Path output, final Path referenceSurface, final long bytes, final long openMillis, final long projectMillis, final long saveMillis )
+		{
+			this.input = input;
+			this.output = output;
+			this.referenceSurface = referenceSurface;
+			this.bytes = bytes;
+			this.openMillis = openMillis;
+			this.projectMillis = projectMillis;
+			this.saveMillis = saveMillis;
+		}
+
+		public long totalMillis()
+		{
+			return openMillis + projectMillis + saveMillis;
+		}
+	}
+
+	/**
+	 * The extensions removed from file names, longest first so that
+	 * <code>.ome.tif</code> is removed as a whole.
+	 */
+	private static final String[] EXTENSIONS = new String[] {
+			".ome.tiff", ".ome.tif", ".ome.btf",
+			".tiff", ".tif", ".btf",
+			".czi", ".lif", ".lsm", ".nd2", ".ims", ".oib", ".oif", ".vsi", ".ics", ".ids",
+			".h5", ".hdf5", ".png", ".jpg", ".jpeg", ".zip" };
+
+	private final DatasetIOService ioService;
+
+	private final LocalZProjectionOp< T > op;
+
+	private final boolean saveReferenceSurface;
+
+	/**
+	 * Creates a projector and matches its op.
+	 * 
+	 * @param context
+	 *            the context to get the ops and IO services from.
+	 * @param parameters
+	 *            the projection parameters.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public HeadlessProjector( final Context context, final ProjectionParameters parameters )
+	{
+		this.ioService = context.getService( DatasetIOService.class );
+		this.saveReferenceSurface = parameters.saveReferenceSurface;
+		this.op = ( LocalZProjectionOp ) Functions.unary(
+				context.getService( OpService.class ),
+				LocalZProjectionOp.class,
+				Dataset.class,
+				Dataset.class,
+				parameters.referenceSurface,
+				parameters.extractSurface,
+				parameters.saveReferenceSurface,
+				false );
+	}
+
+	/**
+	 * Opens the specified file, projects it and saves the projection in the
+	 * specified folder, as <code>name_LocalProjection.tif</code>. The
+	 * reference surface is saved as <code>name_RefSurface.tif</code> if the
+	 * parameters ask for it.
+	 * 
+	 * @param input
+	 *            the image file.
+	 * @param outputFolder
+	 *            the folder to save the results into.
+	 * @return the result.
+	 * @throws IOException
+	 *             if the file cannot be opened or the results cannot be
+	 *             saved.
+	 */
+	public Result process( final Path input, final Path outputFolder ) throws IOException
+	{
+		final long bytes = Files.size( input );
+
+		final long t0 = System.nanoTime();
+		final Dataset dataset = ioService.open( input.toString() );
+		final long t1 = System.nanoTime();
+		final Dataset projection = op.calculate( dataset );
+		if ( op.isCanceled() )
+			throw new IOException( "Projection of " + input + " was canceled: " + op.getCancelReason() );
+		final long t2 = System.nanoTime();
+
+		final Path output = outputFile( input, outputFolder );
+		projection.setName( output.getFileName().toString() );
+		ioService.save( projection, output.toString() );
+		Path referenceSurfaceFile = null;
+		final Dataset referenceSurface = op.getReferenceSurface();
+		if ( saveReferenceSurface && null != referenceSurface )
+		{
+			referenceSurfaceFile = outputFolder.resolve( baseName( input ) + "_RefSurface.tif" );
+			ioService.save( referenceSurface, referenceSurfaceFile.toString() );
+		}
+		final long t3 = System.nanoTime();
+
+		return new Result( input, output, referenceSurfaceFile, bytes, millis( t0, t1 ), millis( t1, t2 ), millis( t2, t3 ) );
+	}
+
+	/**
+	 * Returns the op used by this projector.
+	 * 
+	 * @return the op.
+	 */
+	public LocalZProjectionOp< T > getOp()
+	{
+		return op;
+	}
+
+	/**
+	 * Returns the file the projection of the specified file is saved to by
+	 * {@link #process(Path, Path)}.
+	 * 
+	 * @param input
+	 *            the image file.
+	 * @param outputFolder
+	 *            the folder to save the results into.
+	 * @return the projection file.
+	 */
+	public static Path outputFile( final Path input, final Path outputFolder )
+	{
+		return outputFolder.resolve( baseName( input ) + "_LocalProjection.tif" );
+	}
+
+	/**
+	 * Returns the name of the specified file without its extension. Only the
+	 * extensions of the image formats in {@link #EXTENSIONS} are removed, so
+	 * that dots in the rest of the name are kept.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the name.
+	 */
+	public static String baseName( final Path file )
+	{
+		final String name = file.getFileName().toString();
+		final String lower = name.toLowerCase( Locale.ROOT );
+		for ( final String extension : EXTENSIONS )
+			if ( lower.endsWith( extension ) && lower.length() > extension.length() )
+				return name.substring( 0, name.length() - extension.length() );
+		return name;
+	}
+
+	private static long millis( final long start, final long end )
+	{
+		return ( end - start ) / 1_000_000;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return op.isCanceled();
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		op.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return op.getCancelReason();
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters;
+import fr.pasteur.iah.localzprojector.process.ReferenceSurfaceParameters;
+
+/**
+ * The parameters of a headless run, stored in a single JSON file.
+ * <p>
+ * The file holds the Gson serialization of the reference surface parameters
+ * and of the local projection parameters, as written by
+ * {@link ReferenceSurfaceParameters#serialize(ReferenceSurfaceParameters, File)}
+ * and
+ * {@link ExtractSurfaceParameters#serialize(ExtractSurfaceParameters, File)},
+ * under the <code>referenceSurface</code> and <code>extractSurface</code>
+ * keys:
+ * 
+ * <pre>
+ * {
+ *   "referenceSurface": { "targetChannel": 0, "method": "MAX_OF_STD", ... },
+ *   "extractSurface": { "offsets": { "0": 0 }, ... },
+ *   "saveReferenceSurface": false
+ * }
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ProjectionParameters
+{
+
+	public ReferenceSurfaceParameters referenceSurface;
+
+	public ExtractSurfaceParameters extractSurface;
+
+	/**
+	 * Whether the reference surface is saved next to the projection.
+	 */
+	public boolean saveReferenceSurface = false;
+
+	public ProjectionParameters()
+	{}
+
+	public ProjectionParameters(
+			final ReferenceSurfaceParameters referenceSurface,
+			final ExtractSurfaceParameters extractSurface,
+			final boolean saveReferenceSurface )
+	{
+		this.referenceSurface = referenceSurface;
+		this.extractSurface = extractSurface;
+		this.saveReferenceSurface = saveReferenceSurface;
+	}
+
+	public static void serialize( final ProjectionParameters parameters, final File file ) throws IOException
+	{
+		try (Writer writer = new FileWriter( file ))
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( parameters, writer );
+		}
+	}
+
+	/**
+	 * Reads the parameters stored in the specified file.
+	 * 
+	 * @param file
+	 *            the JSON file.
+	 * @return the parameters.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 * @throws IllegalArgumentException
+	 *             if the file does not contain both parameter sets.
+	 */
+	public static ProjectionParameters deserialize( final File file ) throws IOException
+	{
+		final ProjectionParameters parameters;
+		try (Reader reader = new FileReader( file ))
+		{
+			parameters = new GsonBuilder().create().fromJson( reader, ProjectionParameters.class );
+		}
+		catch ( final JsonParseException e )
+		{
+			throw new IllegalArgumentException( "Could not parse parameter file " + file + ": " + e.getMessage() );
+		}
+		if ( null == parameters || null == parameters.referenceSurface || null == parameters.extractSurface )
+			throw new IllegalArgumentException( "Parameter file " + file
+					+ " must contain the 'referenceSurface' and 'extractSurface' parameters." );
+		return parameters;
+	}
+}
@@ -0,0 +1,454 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import fr.pasteur.iah.localzprojector.process.LazyLocalZProjection;
+import fr.pasteur.iah.localzprojector.util.ImgPlusUtil;
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
+import io.scif.config.SCIFIOConfig;
+import io.scif.config.SCIFIOConfig.ImgMode;
+import io.scif.img.ImgOpener;
+import io.scif.services.DatasetIOService;
+import net.imagej.DefaultDataset;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.ops.OpService;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Runs a projection job split over several independent processes that share
+ * a file system.
+ * <p>
+ * The job is run in steps:
+ * <ol>
+ * <li><b>plan</b>: the files to process are split into {@link WorkUnit}s of
+ * a few time-points and, optionally, a XY tile, stored in a
+ * {@link WorkQueue} folder. The N5 datasets that will receive the
+ * projections are created, with blocks aligned on the units.</li>
+ * <li><b>work</b>: any number of worker processes, on this machine or on
+ * nodes that see the same folder, claim units one after the other, compute
+ * them with a {@link LazyLocalZProjection}, which accounts for the
+ * neighborhood of tiles, and write them in the N5 container. Each worker has
+ * its own heap, so that the garbage collection of one process does not
+ * stall the others.</li>
+ * <li><b>retry</b>: optionally, the units that failed are made claimable
+ * again, for the next workers.</li>
+ * <li><b>merge</b>: once all units are done, the projection of each file is
+ * read from the N5 container and saved as
+ * <code>nnnn_name_LocalProjection.tif</code> in the output folder, where
+ * <code>nnnn</code> is the index of the file in the plan, so that files
+ * with the same name do not overwrite each other.</li>
+ * </ol>
+ * Usage:
+ * 
+ * <pre>
+ * ShardedProjection plan --params params.json --input "/data/*.tif" --queue folder [--frames-per-unit 1] [--tile 0]
+ * ShardedProjection work --queue folder [--threads n] [--stale-minutes 0]
+ * ShardedProjection retry --queue folder
+ * ShardedProjection merge --queue folder --output folder
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ShardedProjection
+{
+
+	private final Context context;
+
+	private final LogService log;
+
+	public ShardedProjection( final Context context )
+	{
+		this.context = context;
+		this.log = context.getService( LogService.class );
+	}
+
+	/**
+	 * Splits the specified files into work units and stores them in a new
+	 * queue.
+	 * 
+	 * @param parameters
+	 *            the projection parameters.
+	 * @param files
+	 *            the files to process.
+	 * @param queueFolder
+	 *            the folder of the queue to create.
+	 * @param framesPerUnit
+	 *            the number of time-points in a unit.
+	 * @param tileSize
+	 *            the size of the XY tiles of a unit, rounded up to a
+	 *            multiple of the tiles of the lazy projection. If 0 or less,
+	 *            units span whole frames.
+	 * @return the new queue.
+	 * @throws IOException
+	 *             if a file cannot be opened or the queue cannot be written.
+	 */
+	public < T extends RealType< T > & NativeType< T > > WorkQueue plan(
+			final ProjectionParameters parameters,
+			final List< Path > files,
+			final Path queueFolder,
+			final int framesPerUnit,
+			final int tileSize ) throws IOException
+	{
+		if ( framesPerUnit < 1 )
+			throw new IllegalArgumentException( "The number of time-points per unit must be at least 1. Was " + framesPerUnit + "." );
+
+		Files.createDirectories( queueFolder );
+		final OpService ops = context.getService( OpService.class );
+		final List< WorkUnit > units = new ArrayList<>();
+		final N5Writer n5 = new N5FSWriter( queueFolder.resolve( "results.n5" ).toString() );
+		for ( int f = 0; f < files.size(); f++ )
+		{
+			final Path file = files.get( f );
+			final ImgPlus< T > source = open( file.toString() );
+			final LazyLocalZProjection< T > lazy = new LazyLocalZProjection<>( ops, source, parameters.referenceSurface, parameters.extractSurface );
+			final CachedCellImg< T, ? > img = lazy.createImg( 1 );
+			final CalibratedAxis[] axes = lazy.getOutputAxes();
+			final int tAxis = axisIndex( axes, Axes.TIME );
+
+			// Blocks: one tile of one time-point.
+			final long[] dims = Intervals.dimensionsAsLongArray( img );
+			final int[] cellDims = new int[ dims.length ];
+			img.getCellGrid().cellDimensions( cellDims );
+			final int[] blockSize = new int[ dims.length ];
+			for ( int d = 0; d < dims.length; d++ )
+				blockSize[ d ] = ( int ) Math.min( Integer.MAX_VALUE, dims[ d ] );
+			if ( tileSize > 0 )
+			{
+				for ( int d = 0; d < 2; d++ )
+					blockSize[ d ] = ( int ) Math.min( dims[ d ], cellDims[ d ] * ( ( tileSize + cellDims[ d ] - 1 ) / cellDims[ d ] ) );
+			}
+			if ( tAxis >= 0 )
+				blockSize[ tAxis ] = 1;
+
+			final String dataset = String.format( "%04d_%s", f, HeadlessProjector.baseName( file ) );
+			n5.createDataset( dataset, dims, blockSize, N5Utils.dataType( img.firstElement() ), new GzipCompression() );
+			n5.setAttribute( dataset, "file", file.toString() );
+			final String[] labels = new String[ axes.length ];
+			final String[] axisUnits = new String[ axes.length ];
+			final double[] scales = new double[ axes.length ];
+			for ( int d = 0; d < axes.length; d++ )
+			{
+				labels[ d ] = axes[ d ].type().getLabel();
+				axisUnits[ d ] = axes[ d ].unit();
+				scales[ d ] = axes[ d ].averageScale( 0., 1. );
+			}
+			n5.setAttribute( dataset, "axes", labels );
+			n5.setAttribute( dataset, "units", axisUnits );
+			n5.setAttribute( dataset, "scales", scales );
+
+			final long nFrames = ( tAxis < 0 ) ? 1 : dims[ tAxis ];
+			for ( long t = 0; t < nFrames; t += framesPerUnit )
+				for ( long y = 0; y < dims[ 1 ]; y += blockSize[ 1 ] )
+					for ( long x = 0; x < dims[ 0 ]; x += blockSize[ 0 ] )
+						units.add( new WorkUnit(
+								String.format( "%06d", units.size() ),
+								file.toString(),
+								dataset,
+								t, Math.min( nFrames, t + framesPerUnit ) - 1,
+								x, Math.min( dims[ 0 ], x + blockSize[ 0 ] ) - 1,
+								y, Math.min( dims[ 1 ], y + blockSize[ 1 ] ) - 1 ) );
+		}
+
+		log.info( "Split " + files.size() + " files into " + units.size() + " work units." );
+		return WorkQueue.create( queueFolder, parameters, units );
+	}
+
+	/**
+	 * Claims and computes units of the specified queue until there is none
+	 * left. A unit that cannot be computed is marked as failed and does not
+	 * stop the worker.
+	 * 
+	 * @param queue
+	 *            the queue.
+	 * @param staleMillis
+	 *            if strictly positive, units whose worker did not refresh
+	 *            their lock for longer than this are claimed again. This
+	 *            worker refreshes the lock of its unit four times per stale
+	 *            time.
+	 * @return the number of units this worker completed.
+	 * @throws IOException
+	 *             if the queue cannot be read or written.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < T extends RealType< T > & NativeType< T > > int work( final WorkQueue queue, final long staleMillis ) throws IOException
+	{
+		final ProjectionParameters parameters = queue.getParameters();
+		final OpService ops = context.getService( OpService.class );
+		final N5Writer n5 = new N5FSWriter( queue.getResults().toString() );
+
+		// Units are sorted by file, so the lazy projection of a file is reused.
+		String currentFile = null;
+		CachedCellImg< T, ? > img = null;
+		int tAxis = -1;
+		int completed = 0;
+		WorkUnit unit;
+		while ( null != ( unit = queue.claim( staleMillis ) ) )
+		{
+			// Keep the lock fresh, so that long units are not claimed again.
+			try (Closeable heartbeat = ( staleMillis > 0 ) ? queue.keepAlive( unit, Math.max( 1, staleMillis / 4 ) ) : () -> {})
+			{
+				if ( !unit.file.equals( currentFile ) )
+				{
+					final ImgPlus< T > source = open( unit.file );
+					final LazyLocalZProjection< T > lazy = new LazyLocalZProjection<>( ops, source, parameters.referenceSurface, parameters.extractSurface );
+					img = lazy.createImg( LazyLocalZProjection.DEFAULT_MAX_CACHED_CELLS );
+					tAxis = axisIndex( lazy.getOutputAxes(), Axes.TIME );
+					currentFile = unit.file;
+				}
+
+				final long start = System.currentTimeMillis();
+				final long[] min = Intervals.minAsLongArray( img );
+				final long[] max = Intervals.maxAsLongArray( img );
+				min[ 0 ] = unit.xMin;
+				max[ 0 ] = unit.xMax;
+				min[ 1 ] = unit.yMin;
+				max[ 1 ] = unit.yMax;
+				if ( tAxis >= 0 )
+				{
+					min[ tAxis ] = unit.tMin;
+					max[ tAxis ] = unit.tMax;
+				}
+				final FinalInterval interval = new FinalInterval( min, max );
+
+				final Img< T > block = new ArrayImgFactory<>( img.firstElement().createVariable() ).create( interval );
+				LoopBuilder.setImages( Views.interval( img, interval ), block ).forEachPixel( ( i, o ) -> o.set( i ) );
+
+				final DatasetAttributes attributes = n5.getDatasetAttributes( unit.dataset );
+				final int[] blockSize = attributes.getBlockSize();
+				final long[] gridOffset = new long[ min.length ];
+				for ( int d = 0; d < min.length; d++ )
+					gridOffset[ d ] = min[ d ] / blockSize[ d ];
+				N5Utils.saveBlock( block, n5, unit.dataset, attributes, gridOffset );
+
+				queue.complete( unit );
+				completed++;
+				log.info( String.format( "Computed unit %s in %.1f s.", unit, ( System.currentTimeMillis() - start ) / 1000. ) );
+			}
+			catch ( final Exception e )
+			{
+				log.error( "Could not compute unit " + unit + ".", e );
+				queue.fail( unit, e );
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Saves the projection of each file of the specified queue in the
+	 * specified folder. Files for which some units are not done are skipped.
+	 * 
+	 * @param queue
+	 *            the queue.
+	 * @param outputFolder
+	 *            the folder to save the projections into.
+	 * @return the number of files that could not be merged.
+	 * @throws IOException
+	 *             if the queue or the results cannot be read, or a
+	 *             projection cannot be saved.
+	 */
+	public < T extends RealType< T > & NativeType< T > > int merge( final WorkQueue queue, final Path outputFolder ) throws IOException
+	{
+		Files.createDirectories( outputFolder );
+		final Map< String, List< WorkUnit > > byDataset = new LinkedHashMap<>();
+		for ( final WorkUnit unit : queue.getUnits() )
+			byDataset.computeIfAbsent( unit.dataset, k -> new ArrayList<>() ).add( unit );
+
+		final N5Reader n5 = new N5FSReader( queue.getResults().toString() );
+		final DatasetIOService ioService = context.getService( DatasetIOService.class );
+		int incomplete = 0;
+		for ( final Map.Entry< String, List< WorkUnit > > entry : byDataset.entrySet() )
+		{
+			final String dataset = entry.getKey();
+			final List< WorkUnit > units = entry.getValue();
+			final long nMissing = units.stream().filter( u -> !queue.isDone( u ) ).count();
+			if ( nMissing > 0 )
+			{
+				log.error( "Cannot merge " + units.get( 0 ).file + ": " + nMissing + " of " + units.size() + " units are not done." );
+				incomplete++;
+				continue;
+			}
+
+			final String[] labels = n5.getAttribute( dataset, "axes", String[].class );
+			final String[] axisUnits = n5.getAttribute( dataset, "units", String[].class );
+			final double[] scales = n5.getAttribute( dataset, "scales", double[].class );
+			final CalibratedAxis[] axes = new CalibratedAxis[ labels.length ];
+			for ( int d = 0; d < axes.length; d++ )
+				axes[ d ] = new DefaultLinearAxis( Axes.get( labels[ d ] ), axisUnits[ d ], scales[ d ] );
+
+			final RandomAccessibleInterval< T > projection = N5Utils.open( n5, dataset );
+			// The dataset name is unique in the queue, unlike the file name.
+			final String name = dataset + "_LocalProjection";
+			final ImgPlus< T > imgPlus = new ImgPlus<>( ImgPlusUtil.wrapToImg( projection ), name, axes );
+			final Path output = outputFolder.resolve( name + ".tif" );
+			ioService.save( new DefaultDataset( context, imgPlus ), output.toString() );
+			log.info( "Saved " + output + "." );
+		}
+		return incomplete;
+	}
+
+	/**
+	 * Opens the specified file without loading its pixels, which are read
+	 * when needed.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private < T extends RealType< T > & NativeType< T > > ImgPlus< T > open( final String file ) throws IOException
+	{
+		final SCIFIOConfig config = new SCIFIOConfig().imgOpenerSetImgModes( ImgMode.CELL );
+		return ( ImgPlus< T > ) new ImgOpener( context ).openImgs( file, config ).get( 0 );
+	}
+
+	private static int axisIndex( final CalibratedAxis[] axes, final AxisType type )
+	{
+		for ( int d = 0; d < axes.length; d++ )
+			if ( axes[ d ].type() == type )
+				return d;
+		return -1;
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length < 1 )
+			usage( "Missing command." );
+		final String command = args[ 0 ];
+		final Map< String, String > options = new HashMap<>();
+		for ( int i = 1; i < args.length; i += 2 )
+		{
+			if ( !args[ i ].startsWith( "--" ) || i == args.length - 1 )
+				usage( "Invalid option: " + args[ i ] + "." );
+			options.put( args[ i ].substring( 2 ), args[ i + 1 ] );
+		}
+		final String queueFolder = options.get( "queue" );
+		if ( null == queueFolder )
+			usage( "The --queue option is required." );
+
+		System.setProperty( "java.awt.headless", "true" );
+		final ImageJ ij = new ImageJ();
+		final ShardedProjection sharded = new ShardedProjection( ij.context() );
+		int status = 0;
+		try
+		{
+			switch ( command )
+			{
+			case "plan":
+			{
+				if ( !options.containsKey( "params" ) || !options.containsKey( "input" ) )
+					usage( "The plan command requires the --params and --input options." );
+				final ProjectionParameters parameters = ProjectionParameters.deserialize( new File( options.get( "params" ) ) );
+				final List< Path > files = BatchProjection.expand( options.get( "input" ) );
+				if ( files.isEmpty() )
+					usage( "No file matches " + options.get( "input" ) + "." );
+				sharded.plan( parameters, files, Paths.get( queueFolder ),
+						Integer.parseInt( options.getOrDefault( "frames-per-unit", "1" ) ),
+						Integer.parseInt( options.getOrDefault( "tile", "0" ) ) );
+				break;
+			}
+			case "work":
+			{
+				if ( options.containsKey( "threads" ) )
+					ThreadBudget.set( Integer.parseInt( options.get( "threads" ) ) );
+				final long staleMillis = 60_000L * Long.parseLong( options.getOrDefault( "stale-minutes", "0" ) );
+				final int completed = sharded.work( new WorkQueue( Paths.get( queueFolder ) ), staleMillis );
+				System.out.println( "Worker " + WorkQueue.workerName() + " completed " + completed + " units." );
+				break;
+			}
+			case "retry":
+			{
+				final int requeued = new WorkQueue( Paths.get( queueFolder ) ).requeueFailed();
+				System.out.println( "Requeued " + requeued + " failed units." );
+				break;
+			}
+			case "merge":
+			{
+				if ( !options.containsKey( "output" ) )
+					usage( "The merge command requires the --output option." );
+				status = ( sharded.merge( new WorkQueue( Paths.get( queueFolder ) ), Paths.get( options.get( "output" ) ) ) == 0 ) ? 0 : 1;
+				break;
+			}
+			default:
+				usage( "Unknown command: " + command + "." );
+			}
+		}
+		finally
+		{
+			ij.context().dispose();
+		}
+		System.exit( status );
+	}
+
+	private static void usage( final String message )
+	{
+		System.err.println( message );
+		System.err.println( "Usage:" );
+		System.err.println( "  ShardedProjection plan --params params.json --input \"/data/*.tif\" --queue folder [--frames-per-unit 1] [--tile 0]" );
+		System.err.println( "  ShardedProjection work --queue folder [--threads n] [--stale-minutes 0]" );
+		System.err.println( "  ShardedProjection retry --queue folder" );
+		System.err.println( "  ShardedProjection merge --queue folder --output folder" );
+		System.exit( 1 );
+	}
+}
@@ -0,0 +1,446 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import net.imagej.ImageJ;
+
+/**
+ * Watches a folder for new image files and projects each of them as soon as
+ * it is complete.
+ * <p>
+ * Meant to run next to a microscope during acquisition: the SciJava context
+ * and the projection op are created once at startup, so that each new stack
+ * only pays for its own opening, projection and saving. A file is considered
+ * complete when its size and modification time did not change for a settle
+ * period, and it can be opened for reading.
+ * <p>
+ * For each file, a line is appended to
+ * <code>LocalZProjector_latency.csv</code> in the output folder, with the
+ * time spent waiting for the file to settle, opening it, projecting it and
+ * saving the results, and the latency from the moment the file was first seen
+ * to the moment its projection was saved.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * WatchFolderDaemon --params params.json --watch folder --output folder [--pattern *.tif] [--settle 2000]
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class WatchFolderDaemon implements AutoCloseable
+{
+
+	public static final String DEFAULT_PATTERN = "*.{tif,tiff,TIF,TIFF}";
+
+	public static final long DEFAULT_SETTLE_MILLIS = 2000;
+
+	public static final String METRICS_FILE = "LocalZProjector_latency.csv";
+
+	private static final long POLL_MILLIS = 250;
+
+	/**
+	 * A file seen in the watched folder, waiting to be complete.
+	 */
+	private static class PendingFile
+	{
+
+		private final long firstSeen;
+
+		private long lastChange;
+
+		private long size = -1;
+
+		private long lastModified = -1;
+
+		private PendingFile( final long now )
+		{
+			this.firstSeen = now;
+			this.lastChange = now;
+		}
+	}
+
+	private final Path folder;
+
+	private final Path outputFolder;
+
+	private final PathMatcher matcher;
+
+	private final long settleMillis;
+
+	private final HeadlessProjector< ? > projector;
+
+	private final LogService log;
+
+	private final Map< Path, PendingFile > pending = new LinkedHashMap<>();
+
+	private final Set< Path > done = new HashSet<>();
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a daemon. Nothing happens until {@link #run()} is called.
+	 * 
+	 * @param context
+	 *            the context to get the services from.
+	 * @param parameters
+	 *            the projection parameters.
+	 * @param folder
+	 *            the folder to watch.
+	 * @param outputFolder
+	 *            the folder to save the results into. Must be different
+	 *            from the watched folder.
+	 * @param pattern
+	 *            the glob pattern that the names of the files to process
+	 *            must match.
+	 * @param settleMillis
+	 *            how long the size of a file must remain unchanged before it
+	 *            is processed, in milliseconds.
+	 */
+	public WatchFolderDaemon(
+			final Context context,
+			final ProjectionParameters parameters,
+			final Path folder,
+			final Path outputFolder,
+			final String pattern,
+			final long settleMillis )
+	{
+		if ( !Files.isDirectory( folder ) )
+			throw new IllegalArgumentException( "Watched folder does not exist: " + folder + "." );
+		if ( folder.toAbsolutePath().normalize().equals( outputFolder.toAbsolutePath().normalize() ) )
+			throw new IllegalArgumentException( "The output folder must be different from the watched folder." );
+		if ( settleMillis < 0 )
+			throw new IllegalArgumentException( "The settle time cannot be negative. Was " + settleMillis + "." );
+
+		this.folder = folder;
+		this.outputFolder = outputFolder;
+		this.matcher = folder.getFileSystem().getPathMatcher( "glob:" + pattern );
+		this.settleMillis = settleMillis;
+		this.log = context.getService( LogService.class );
+		this.projector = new HeadlessProjector<>( context, parameters );
+	}
+
+	/**
+	 * Watches the folder and processes the files until {@link #close()} is
+	 * called. The files already in the folder are processed first, except
+	 * those whose projection is already in the output folder, so that a
+	 * restarted daemon does not process them again.
+	 * 
+	 * @throws IOException
+	 *             if the folder cannot be watched or the metrics file cannot
+	 *             be written.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for files.
+	 */
+	public void run() throws IOException, InterruptedException
+	{
+		Files.createDirectories( outputFolder );
+		final Path metricsFile = outputFolder.resolve( METRICS_FILE );
+		final boolean newMetrics = !Files.exists( metricsFile );
+		try (WatchService watchService = folder.getFileSystem().newWatchService();
+				PrintWriter metrics = new PrintWriter( Files.newBufferedWriter( metricsFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND ) ))
+		{
+			if ( newMetrics )
+			{
+				metrics.println( "file,bytes,settle_ms,open_ms,project_ms,save_ms,latency_ms,status" );
+				metrics.flush();
+			}
+
+			folder.register( watchService, ENTRY_CREATE, ENTRY_MODIFY );
+			scan();
+			log.info( "Watching " + folder + " for " + matcher + " files." );
+
+			while ( !stopped )
+			{
+				final WatchKey key = watchService.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+				if ( null != key )
+				{
+					for ( final WatchEvent< ? > event : key.pollEvents() )
+					{
+						if ( event.kind() == OVERFLOW )
+							scan();
+						else
+							track( folder.resolve( ( Path ) event.context() ) );
+					}
+					key.reset();
+				}
+				processReady( metrics );
+			}
+		}
+	}
+
+	/**
+	 * Tracks all the matching files currently in the folder.
+	 */
+	private void scan() throws IOException
+	{
+		try (DirectoryStream< Path > stream = Files.newDirectoryStream( folder ))
+		{
+			for ( final Path file : stream )
+				track( file );
+		}
+	}
+
+	private void track( final Path file )
+	{
+		if ( done.contains( file ) || pending.containsKey( file ) )
+			return;
+		if ( !matcher.matches( file.getFileName() ) || !Files.isRegularFile( file ) )
+			return;
+		// Projected before the daemon was restarted.
+		if ( Files.exists( HeadlessProjector.outputFile( file, outputFolder ) ) )
+		{
+			log.info( "Skipping " + file.getFileName() + ": its projection already exists." );
+			done.add( file );
+			return;
+		}
+		pending.put( file, new PendingFile( System.currentTimeMillis() ) );
+	}
+
+	/**
+	 * Processes the pending files that are complete, in the order in which
+	 * they were seen.
+	 */
+	private void processReady( final PrintWriter metrics )
+	{
+		final List< Path > ready = new ArrayList<>();
+		final long now = System.currentTimeMillis();
+		for ( final Iterator< Map.Entry< Path, PendingFile > > it = pending.entrySet().iterator(); it.hasNext(); )
+		{
+			final Map.Entry< Path, PendingFile > entry = it.next();
+			final Path file = entry.getKey();
+			final PendingFile p = entry.getValue();
+			final long size;
+			final long lastModified;
+			try
+			{
+				size = Files.size( file );
+				lastModified = Files.getLastModifiedTime( file ).toMillis();
+			}
+			catch ( final IOException e )
+			{
+				// Deleted or renamed before being complete.
+				it.remove();
+				continue;
+			}
+			if ( size != p.size || lastModified != p.lastModified )
+			{
+				p.size = size;
+				p.lastModified = lastModified;
+				p.lastChange = now;
+				continue;
+			}
+			if ( now - p.lastChange >= settleMillis && canRead( file ) )
+				ready.add( file );
+		}
+
+		for ( final Path file : ready )
+		{
+			if ( stopped )
+				return;
+			final PendingFile p = pending.remove( file );
+			done.add( file );
+			process( file, p, metrics );
+		}
+	}
+
+	private void process( final Path file, final PendingFile p, final PrintWriter metrics )
+	{
+		final long start = System.currentTimeMillis();
+		final String settle = Long.toString( start - p.firstSeen );
+		try
+		{
+			final HeadlessProjector.Result result = projector.process( file, outputFolder );
+			final long latency = System.currentTimeMillis() - p.firstSeen;
+			metrics.println( String.join( ",",
+					csv( file ),
+					Long.toString( result.bytes ),
+					settle,
+					Long.toString( result.openMillis ),
+					Long.toString( result.projectMillis ),
+					Long.toString( result.saveMillis ),
+					Long.toString( latency ),
+					"ok" ) );
+			log.info( String.format( "Projected %s in %.1f s (%.1f s after it appeared).",
+					file.getFileName(), result.totalMillis() / 1000., latency / 1000. ) );
+		}
+		catch ( final Exception e )
+		{
+			final long latency = System.currentTimeMillis() - p.firstSeen;
+			metrics.println( String.join( ",", csv( file ), Long.toString( p.size ), settle, "", "", "", Long.toString( latency ), "failed" ) );
+			log.error( "Could not project " + file + ".", e );
+		}
+		metrics.flush();
+	}
+
+	private static boolean canRead( final Path file )
+	{
+		try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ))
+		{
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	private static String csv( final Path file )
+	{
+		final String name = file.getFileName().toString();
+		return ( name.indexOf( ',' ) >= 0 || name.indexOf( '"' ) >= 0 )
+				? '"' + name.replace( "\"", "\"\"" ) + '"'
+				: name;
+	}
+
+	/**
+	 * Stops watching the folder. The file being projected, if any, is
+	 * canceled.
+	 */
+	@Override
+	public void close()
+	{
+		stopped = true;
+		projector.cancel( "The watch-folder daemon was stopped." );
+	}
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		String params = null;
+		String watch = null;
+		String output = null;
+		String pattern = DEFAULT_PATTERN;
+		long settle = DEFAULT_SETTLE_MILLIS;
+		for ( int i = 0; i < args.length; i++ )
+		{
+			final String arg = args[ i ];
+			if ( i == args.length - 1 )
+				usage( "Missing value for " + arg + "." );
+			final String value = args[ ++i ];
+			switch ( arg )
+			{
+			case "--params":
+				params = value;
+				break;
+			case "--watch":
+				watch = value;
+				break;
+			case "--output":
+				output = value;
+				break;
+			case "--pattern":
+				pattern = value;
+				break;
+			case "--settle":
+				settle = Long.parseLong( value );
+				break;
+			default:
+				usage( "Unknown option: " + arg + "." );
+			}
+		}
+		if ( null == params || null == watch || null == output )
+			usage( "The --params, --watch and --output options are required." );
+
+		System.setProperty( "java.awt.headless", "true" );
+		final ProjectionParameters parameters = ProjectionParameters.deserialize( new File( params ) );
+		final ImageJ ij = new ImageJ();
+		final WatchFolderDaemon daemon = new WatchFolderDaemon( ij.context(), parameters, Paths.get( watch ), Paths.get( output ), pattern, settle );
+
+		// The JVM exits when the hook returns: wait for the files being
+		// written and for the context to be disposed.
+		final CountDownLatch finished = new CountDownLatch( 1 );
+		Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+			daemon.close();
+			try
+			{
+				finished.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, "Local Z Projector Watch Folder Shutdown" ) );
+		try
+		{
+			daemon.run();
+		}
+		finally
+		{
+			try
+			{
+				ij.context().dispose();
+			}
+			finally
+			{
+				finished.countDown();
+			}
+		}
+	}
+
+	private static void usage( final String message )
+	{
+		System.err.println( message );
+		System.err.println( "Usage: WatchFolderDaemon --params params.json --watch folder --output folder [--pattern " + DEFAULT_PATTERN + "] [--settle " + DEFAULT_SETTLE_MILLIS + "]" );
+		System.exit( 1 );
+	}
+}
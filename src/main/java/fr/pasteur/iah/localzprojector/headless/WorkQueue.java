@@ -0,0 +1,418 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * A queue of {@link WorkUnit}s shared by several processes through the file
+ * system only.
+ * <p>
+ * The queue is a folder:
+ * <ul>
+ * <li><code>parameters.json</code>: the {@link ProjectionParameters} of the
+ * job.</li>
+ * <li><code>units/</code>: one JSON file per unit.</li>
+ * <li><code>claims/</code>: one lock file per unit claimed by a worker. A
+ * unit is claimed by creating its lock file, which fails if it already
+ * exists, so that only one worker can claim it. The worker refreshes the
+ * modification time of the lock while it computes the unit.</li>
+ * <li><code>done/</code> and <code>failed/</code>: one marker file per unit
+ * completed or failed. Failed units can be requeued.</li>
+ * <li><code>results.n5</code>: the N5 container the workers write the
+ * projections into.</li>
+ * </ul>
+ * Atomic file creation is all that is needed, so the queue works for
+ * processes on the same machine and on nodes sharing a file system that
+ * supports it.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class WorkQueue
+{
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	private final Path folder;
+
+	/**
+	 * The units of the queue, read once: they do not change after the queue
+	 * is created.
+	 */
+	private List< WorkUnit > units;
+
+	/**
+	 * The index of the next unit this instance has not tried to claim yet.
+	 */
+	private int next = 0;
+
+	/**
+	 * Opens the queue stored in the specified folder.
+	 * 
+	 * @param folder
+	 *            the queue folder.
+	 */
+	public WorkQueue( final Path folder )
+	{
+		if ( !Files.isRegularFile( folder.resolve( "parameters.json" ) ) )
+			throw new IllegalArgumentException( "Not a work queue folder: " + folder + "." );
+		this.folder = folder;
+	}
+
+	/**
+	 * Creates a new queue in the specified folder, which must not contain a
+	 * queue already.
+	 * 
+	 * @param folder
+	 *            the queue folder.
+	 * @param parameters
+	 *            the projection parameters of the job.
+	 * @param units
+	 *            the units of the job.
+	 * @return the new queue.
+	 * @throws IOException
+	 *             if the queue files cannot be written.
+	 */
+	public static WorkQueue create( final Path folder, final ProjectionParameters parameters, final List< WorkUnit > units ) throws IOException
+	{
+		if ( Files.exists( folder.resolve( "parameters.json" ) ) )
+			throw new IllegalArgumentException( "Folder already contains a work queue: " + folder + "." );
+		for ( final String sub : new String[] { "units", "claims", "done", "failed" } )
+			Files.createDirectories( folder.resolve( sub ) );
+		for ( final WorkUnit unit : units )
+		{
+			try (Writer writer = Files.newBufferedWriter( folder.resolve( "units" ).resolve( unit.id + ".json" ) ))
+			{
+				GSON.toJson( unit, writer );
+			}
+		}
+		// Written last: the queue is valid once the parameters exist.
+		ProjectionParameters.serialize( parameters, folder.resolve( "parameters.json" ).toFile() );
+		return new WorkQueue( folder );
+	}
+
+	public ProjectionParameters getParameters() throws IOException
+	{
+		return ProjectionParameters.deserialize( folder.resolve( "parameters.json" ).toFile() );
+	}
+
+	/**
+	 * Returns the path of the N5 container the results are written into.
+	 * 
+	 * @return the container path.
+	 */
+	public Path getResults()
+	{
+		return folder.resolve( "results.n5" );
+	}
+
+	/**
+	 * Returns all the units of the queue, sorted by identifier. They are read
+	 * from the queue folder the first time only.
+	 * 
+	 * @return the units.
+	 * @throws IOException
+	 *             if the unit files cannot be read.
+	 */
+	public synchronized List< WorkUnit > getUnits() throws IOException
+	{
+		if ( null == units )
+		{
+			final List< WorkUnit > list = new ArrayList<>();
+			try (DirectoryStream< Path > stream = Files.newDirectoryStream( folder.resolve( "units" ), "*.json" ))
+			{
+				for ( final Path file : stream )
+				{
+					try (Reader reader = Files.newBufferedReader( file ))
+					{
+						list.add( GSON.fromJson( reader, WorkUnit.class ) );
+					}
+				}
+			}
+			list.sort( Comparator.comparing( u -> u.id ) );
+			units = Collections.unmodifiableList( list );
+		}
+		return units;
+	}
+
+	/**
+	 * Claims the next unit that is not claimed yet.
+	 * <p>
+	 * The units are tried in order, each once, so that claiming all the
+	 * units of the queue takes a single pass. When they have all been tried,
+	 * the units that are still not done are tried again, to pick up those
+	 * requeued with {@link #requeueFailed()} and, with a stale time, those
+	 * abandoned by crashed workers.
+	 * 
+	 * @param staleMillis
+	 *            if strictly positive, a unit whose lock was not refreshed
+	 *            for longer than this and that is still not done or failed
+	 *            is considered abandoned by a crashed worker, and can be
+	 *            claimed again. See {@link #keepAlive(WorkUnit, long)}.
+	 * @return the claimed unit, or <code>null</code> if there is none left.
+	 * @throws IOException
+	 *             if the queue files cannot be read or written.
+	 */
+	public synchronized WorkUnit claim( final long staleMillis ) throws IOException
+	{
+		final List< WorkUnit > all = getUnits();
+		while ( next < all.size() )
+		{
+			final WorkUnit unit = all.get( next++ );
+			if ( isDone( unit ) || isFailed( unit ) )
+				continue;
+			if ( tryLock( lockFile( unit ) ) )
+				return unit;
+		}
+
+		for ( final WorkUnit unit : all )
+		{
+			if ( isDone( unit ) || isFailed( unit ) )
+				continue;
+			final Path lock = lockFile( unit );
+			if ( tryLock( lock ) )
+				return unit;
+			if ( staleMillis > 0 && breakLock( lock, staleMillis ) && tryLock( lock ) )
+				return unit;
+		}
+		return null;
+	}
+
+	/**
+	 * Refreshes the lock of the specified unit periodically, so that the
+	 * other workers do not consider it abandoned while it is computed.
+	 * 
+	 * @param unit
+	 *            the unit claimed by this worker.
+	 * @param periodMillis
+	 *            the time between two refreshes, in milliseconds. Must be
+	 *            well below the stale time of the workers.
+	 * @return an object that stops refreshing the lock when closed.
+	 */
+	public Closeable keepAlive( final WorkUnit unit, final long periodMillis )
+	{
+		final Path lock = lockFile( unit );
+		final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "Local Z Projector heartbeat of unit " + unit.id );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		heartbeat.scheduleAtFixedRate( () -> {
+			try
+			{
+				Files.setLastModifiedTime( lock, FileTime.fromMillis( System.currentTimeMillis() ) );
+			}
+			catch ( final IOException e )
+			{
+				// Broken by another worker, or transient: nothing to do.
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS );
+		return heartbeat::shutdownNow;
+	}
+
+	/**
+	 * Makes the failed units claimable again. Their failure markers are kept
+	 * with a <code>.retried</code> suffix.
+	 * 
+	 * @return the number of units requeued.
+	 * @throws IOException
+	 *             if the queue files cannot be read or written.
+	 */
+	public int requeueFailed() throws IOException
+	{
+		int requeued = 0;
+		for ( final WorkUnit unit : getUnits() )
+		{
+			if ( !isFailed( unit ) )
+				continue;
+			// Unlock while it is still marked as failed, so that no worker
+			// skips it in between.
+			Files.deleteIfExists( lockFile( unit ) );
+			final Path marker = failedFile( unit );
+			Files.move( marker, marker.resolveSibling( marker.getFileName() + ".retried" ), StandardCopyOption.REPLACE_EXISTING );
+			requeued++;
+		}
+		return requeued;
+	}
+
+	/**
+	 * Marks the specified unit as done.
+	 * 
+	 * @param unit
+	 *            the unit.
+	 * @throws IOException
+	 *             if the marker cannot be written.
+	 */
+	public void complete( final WorkUnit unit ) throws IOException
+	{
+		Files.write( folder.resolve( "done" ).resolve( unit.id ), workerName().getBytes() );
+	}
+
+	/**
+	 * Marks the specified unit as failed, with the error that made it fail.
+	 * Failed units are not claimed again.
+	 * 
+	 * @param unit
+	 *            the unit.
+	 * @param error
+	 *            the error.
+	 * @throws IOException
+	 *             if the marker cannot be written.
+	 */
+	public void fail( final WorkUnit unit, final Throwable error ) throws IOException
+	{
+		final StringWriter str = new StringWriter();
+		str.append( workerName() ).append( '\n' );
+		error.printStackTrace( new PrintWriter( str ) );
+		Files.write( failedFile( unit ), str.toString().getBytes() );
+	}
+
+	public boolean isDone( final WorkUnit unit )
+	{
+		return Files.exists( folder.resolve( "done" ).resolve( unit.id ) );
+	}
+
+	public boolean isFailed( final WorkUnit unit )
+	{
+		return Files.exists( failedFile( unit ) );
+	}
+
+	/**
+	 * Returns a name for the current process, that identifies it in the lock
+	 * and marker files.
+	 * 
+	 * @return the process name, usually <code>pid@host</code>.
+	 */
+	public static String workerName()
+	{
+		return ManagementFactory.getRuntimeMXBean().getName();
+	}
+
+	private Path lockFile( final WorkUnit unit )
+	{
+		return folder.resolve( "claims" ).resolve( unit.id + ".lock" );
+	}
+
+	private Path failedFile( final WorkUnit unit )
+	{
+		return folder.resolve( "failed" ).resolve( unit.id + ".txt" );
+	}
+
+	private static boolean tryLock( final Path lock ) throws IOException
+	{
+		try
+		{
+			Files.write( lock, workerName().getBytes(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+			return true;
+		}
+		catch ( final FileAlreadyExistsException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Moves a lock that was not refreshed for longer than the stale time out
+	 * of the way. Only one of the workers that try to break the same lock
+	 * succeeds in moving it. Another worker may have broken the stale lock
+	 * and claimed the unit between the check and the move, so the moved lock
+	 * is checked again: if it is not the one found stale, it is put back and
+	 * the unit is left to its owner.
+	 */
+	private static boolean breakLock( final Path lock, final long staleMillis ) throws IOException
+	{
+		final FileTime modified;
+		final byte[] owner;
+		try
+		{
+			modified = Files.getLastModifiedTime( lock );
+			owner = Files.readAllBytes( lock );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return false;
+		}
+		if ( System.currentTimeMillis() - modified.toMillis() <= staleMillis )
+			return false;
+
+		final Path broken = lock.resolveSibling( lock.getFileName() + "." + System.nanoTime() + ".stale" );
+		try
+		{
+			Files.move( lock, broken, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final NoSuchFileException | AtomicMoveNotSupportedException e )
+		{
+			return false;
+		}
+		if ( Files.getLastModifiedTime( broken ).equals( modified ) && Arrays.equals( Files.readAllBytes( broken ), owner ) )
+			return true;
+
+		// A fresh lock: give it back to its owner, unless the unit was
+		// claimed again in the meantime.
+		try
+		{
+			Files.move( broken, lock );
+		}
+		catch ( final FileAlreadyExistsException e )
+		{
+			// Keep the moved lock as a trace.
+		}
+		return false;
+	}
+}
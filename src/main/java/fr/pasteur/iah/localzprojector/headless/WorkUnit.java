@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.headless;
+
+/**
+ * A unit of work of a sharded projection: a range of time-points of one
+ * file, possibly restricted to a XY tile. Bounds are inclusive.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class WorkUnit
+{
+
+	/**
+	 * The unit identifier, unique in its queue.
+	 */
+	public String id;
+
+	/**
+	 * The image file to project.
+	 */
+	public String file;
+
+	/**
+	 * The N5 dataset the projection of the file is written to.
+	 */
+	public String dataset;
+
+	public long tMin;
+
+	public long tMax;
+
+	public long xMin;
+
+	public long xMax;
+
+	public long yMin;
+
+	public long yMax;
+
+	public WorkUnit()
+	{}
+
+	public WorkUnit( final String id, final String file, final String dataset, final long tMin, final long tMax, final long xMin, final long xMax, final long yMin, final long yMax )
+	{
+		this.id = id;
+		this.file = file;
+		this.dataset = dataset;
+		this.tMin = tMin;
+		this.tMax = tMax;
+		this.xMin = xMin;
+		this.xMax = xMax;
+		this.yMin = yMin;
+		this.yMax = yMax;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s [%s, t=%d-%d, x=%d-%d, y=%d-%d]", id, file, tMin, tMax, xMin, xMax, yMin, yMax );
+	}
+}
@@ -32,20 +32,33 @@
  */
 package fr.pasteur.iah.localzprojector.process;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
+import fr.pasteur.iah.localzprojector.util.StageTimings;
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.ops.OpService;
 import net.imagej.ops.special.computer.AbstractBinaryComputerOp;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
@@ -64,16 +77,36 @@ public class CollectVolumeOp< T extends RealType< T > & NativeType< T > >
 	@Parameter
 	private OpService ops;
 
+	@Parameter
+	private ThreadService threadService;
+
 	private String cancelReason;
 
+	/**
+	 * The parameters compiled for the number of channels of the last source.
+	 */
+	private CompiledExtractSurfaceParameters compiled;
+
+	private SurfaceStatistics surfaceStatistics;
+
+	private StageTimings timings = StageTimings.DISABLED;
+
 	@Override
 	public void compute( final ImgPlus< T > source, final RandomAccessibleInterval< UnsignedShortType > referenceSurface, final RandomAccessibleInterval< T > output )
 	{
 		// Prepare.
 		cancelReason = null;
+		final long start = timings.start();
 
 		final Img< T > img = source.getImg();
 
+		// Read the reference surface once for all channels.
+		final FlatSurface surface = FlatSurface.of( referenceSurface );
+		final SurfaceStatistics stats = ( null == surfaceStatistics )
+				? SurfaceStatistics.compute( referenceSurface, SurfaceStatistics.tileSize( source ), source.dimension( source.numDimensions() - 1 ) )
+				: surfaceStatistics;
+		surfaceStatistics = null;
+
 		final int channelAxis = source.dimensionIndex( Axes.CHANNEL );
 		if ( channelAxis < 0 )
 		{
@@ -82,7 +115,8 @@ public class CollectVolumeOp< T extends RealType< T > & NativeType< T > >
 				throw new IllegalArgumentException( "Expected single-channel source to be 3D, but was " + source.numDimensions() + "D." );
 
 			// Process.
-			processChannel( img, 0, referenceSurface, output );
+			compile( 1 );
+			processChannel( img, 0, surface, stats, output );
 		}
 		else
 		{
@@ -93,43 +127,128 @@ public class CollectVolumeOp< T extends RealType< T > & NativeType< T > >
 			final long nChannels = img.dimension( channelAxis );
 
 			// Process.
+			compile( ( int ) nChannels );
 			for ( int c = 0; c < nChannels; c++ )
 			{
 				final IntervalView< T > channel = Views.hyperSlice( img, channelAxis, c );
 				final IntervalView< T > target = Views.hyperSlice( output, channelAxis, c );
-				processChannel( channel, c, referenceSurface, target );
+				processChannel( channel, c, surface, stats, target );
 				if ( isCanceled() )
 					break;
 			}
 		}
+
+		timings.stop( StageTimings.EXTRACTION, start );
+		timings.count( StageTimings.PIXELS_WRITTEN, Intervals.numElements( output ) );
 	}
 
-	private void processChannel( final RandomAccessibleInterval< T > channel, final int c, final RandomAccessibleInterval< UnsignedShortType > referenceSurface, final RandomAccessibleInterval< T > target )
+	/**
+	 * Collects the volume around the reference surface, iterating over source
+	 * slices in ascending Z order, and scattering the pixels of each slice in
+	 * the output layer they belong to. This way each source slice is visited
+	 * once, which matters for virtual stacks and cached images. The XY plane
+	 * is split in the tiles of the reference surface statistics, processed in
+	 * parallel, and each tile only visits the Z range spanned by the reference
+	 * surface over its footprint.
+	 */
+	private void processChannel( final RandomAccessibleInterval< T > channel, final int c, final FlatSurface surface, final SurfaceStatistics stats, final RandomAccessibleInterval< T > target )
 	{
+		final int offset = compiled.offset( c );
+		final long nLayers = target.dimension( 2 );
+		final int[] surfaceZ = surface.data();
+		final int width = surface.width();
 
-		final Cursor< T > cursor = Views.iterable( target ).localizingCursor(); // 3D
-		final RandomAccess< UnsignedShortType > raReference = referenceSurface.randomAccess( referenceSurface ); // 2D
-		final RandomAccess< T > raInput = Views.extendZero( channel ).randomAccess(); // 3D
+		// Voxels that fall outside of the source are 0.
+		for ( final T p : Views.iterable( target ) )
+			p.setZero();
 
-		// Iterate over output.
-		while ( cursor.hasNext() )
+		// Tiles of the reference surface statistics.
+		final ConcurrentLinkedQueue< int[] > todos = new ConcurrentLinkedQueue<>();
+		for ( int ty = 0; ty < stats.nTilesY(); ty++ )
+			for ( int tx = 0; tx < stats.nTilesX(); tx++ )
+				todos.add( new int[] { tx, ty } );
+		final int nThreads = Math.min( todos.size(), ThreadBudget.threads() );
+		final List< Runnable > runnables = new ArrayList<>( nThreads );
+		for ( int i = 0; i < nThreads; i++ )
 		{
-			cursor.fwd();
+			runnables.add( () -> {
+				final RandomAccess< T > raTarget = target.randomAccess( target ); // 3D
+				int[] txy;
+				while ( ( txy = todos.poll() ) != null )
+				{
+					final Interval tile = stats.tileInterval( txy[ 0 ], txy[ 1 ] );
+					final long minZ = Math.max( channel.min( 2 ), ( long ) stats.tileMin( txy[ 0 ], txy[ 1 ] ) + offset - deltaZ );
+					final long maxZ = Math.min( channel.max( 2 ), ( long ) stats.tileMax( txy[ 0 ], txy[ 1 ] ) + offset - deltaZ + nLayers - 1 );
+					for ( long z = minZ; z <= maxZ; z++ )
+					{
+						if ( isCanceled() )
+							return;
 
-			// Read offset set by the reference surface.
-			raReference.setPosition( cursor.getLongPosition( 0 ), 0 );
-			raReference.setPosition( cursor.getLongPosition( 1 ), 1 );
-			final int referenceOffset = raReference.get().get();
+						final RandomAccessibleInterval< T > slice = Views.interval( Views.hyperSlice( channel, 2, z ), tile );
+						final Cursor< T > cursor = Views.flatIterable( slice ).localizingCursor();
+						while ( cursor.hasNext() )
+						{
+							cursor.fwd();
+							final int x = cursor.getIntPosition( 0 );
+							final int y = cursor.getIntPosition( 1 );
+							final long layer = z - surfaceZ[ y * width + x ] - offset + deltaZ;
+							if ( layer < 0 || layer >= nLayers )
+								continue;
 
-			// Position the input cursor at the right z.
-			final long zTarget = cursor.getLongPosition( 2 );
-			raInput.setPosition( cursor.getLongPosition( 0 ), 0 );
-			raInput.setPosition( cursor.getLongPosition( 1 ), 1 );
-			raInput.setPosition( referenceOffset - deltaZ + zTarget + params.offset( c ), 2 );
+							raTarget.setPosition( x, 0 );
+							raTarget.setPosition( y, 1 );
+							raTarget.setPosition( layer, 2 );
+							raTarget.get().set( cursor.get() );
+						}
+					}
+				}
+			} );
+		}
 
-			// Copy values.
-			cursor.get().set( raInput.get() );
+		final ExecutorService es = threadService.getExecutorService();
+		final List< Future< ? > > futures = runnables.stream()
+				.map( r -> es.submit( r ) )
+				.collect( Collectors.toList() );
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
 		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			futures.forEach( f -> f.cancel( true ) );
+			cancel( "Interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			futures.forEach( f -> f.cancel( true ) );
+			cancel( "Error while collecting a tile." );
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	@Override
+	public void setSurfaceStatistics( final SurfaceStatistics statistics )
+	{
+		this.surfaceStatistics = statistics;
+	}
+
+	@Override
+	public void setTimings( final StageTimings timings )
+	{
+		this.timings = ( null == timings ) ? StageTimings.DISABLED : timings;
+	}
+
+	private void compile( final int nChannels )
+	{
+		if ( compiled == null || compiled.nChannels() != nChannels )
+			compiled = params.compile( nChannels );
 	}
 
 	@Override
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+
+/**
+ * Immutable, dense form of {@link ExtractSurfaceParameters}, sized to the
+ * number of channels of a given image and validated once.
+ * <p>
+ * The projector ops read the parameters of a channel from primitive arrays,
+ * instead of looking them up in the maps of {@link ExtractSurfaceParameters}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public final class CompiledExtractSurfaceParameters
+{
+
+	private final int[] offsets;
+
+	private final int[] deltaZs;
+
+	private final ProjectionMethod[] projectionMethods;
+
+	private final String[] accumulators;
+
+	private final boolean collect;
+
+	private final int collectDeltaZ;
+
+	private CompiledExtractSurfaceParameters( final int[] offsets, final int[] deltaZs, final ProjectionMethod[] projectionMethods, final String[] accumulators )
+	{
+		this.offsets = offsets;
+		this.deltaZs = deltaZs;
+		this.projectionMethods = projectionMethods;
+		this.accumulators = accumulators;
+
+		boolean doCollect = false;
+		int deltaZCollect = 0;
+		for ( int c = 0; c < projectionMethods.length; c++ )
+		{
+			if ( projectionMethods[ c ] == ProjectionMethod.COLLECT )
+			{
+				doCollect = true;
+				deltaZCollect = Math.max( deltaZCollect, deltaZs[ c ] );
+			}
+		}
+		this.collect = doCollect;
+		this.collectDeltaZ = deltaZCollect;
+	}
+
+	/**
+	 * Compiles the specified parameters for an image with the specified number
+	 * of channels.
+	 *
+	 * @param params
+	 *            the parameters to compile.
+	 * @param nChannels
+	 *            the number of channels in the image. Use 1 for images without
+	 *            a channel axis.
+	 * @return a new compiled parameters instance.
+	 * @throws IllegalArgumentException
+	 *             if the parameters are invalid.
+	 */
+	public static CompiledExtractSurfaceParameters compile( final ExtractSurfaceParameters params, final int nChannels )
+	{
+		boolean ok = true;
+		final StringBuilder message = new StringBuilder();
+		if ( nChannels < 1 )
+		{
+			message.append( "\nNumber of channels cannot be lower than 1. Was " + nChannels + "." );
+			ok = false;
+		}
+
+		final int n = Math.max( 0, nChannels );
+		final int[] offsets = new int[ n ];
+		final int[] deltaZs = new int[ n ];
+		final ProjectionMethod[] projectionMethods = new ProjectionMethod[ n ];
+		final String[] accumulators = new String[ n ];
+		for ( int c = 0; c < n; c++ )
+		{
+			offsets[ c ] = params.offset( c );
+			deltaZs[ c ] = params.deltaZ( c );
+			projectionMethods[ c ] = params.projectionMethod( c );
+			accumulators[ c ] = params.accumulator( c );
+			if ( deltaZs[ c ] < 0 )
+			{
+				message.append( "\nDeltaZ cannot be negative. Was " + deltaZs[ c ] + " for channel " + c + "." );
+				ok = false;
+			}
+		}
+
+		if ( !ok )
+			throw new IllegalArgumentException( "Error compiling ExtractSurfaceParameters:" + message.toString() );
+
+		return new CompiledExtractSurfaceParameters( offsets, deltaZs, projectionMethods, accumulators );
+	}
+
+	/**
+	 * Returns the number of channels these parameters were compiled for.
+	 *
+	 * @return the number of channels.
+	 */
+	public int nChannels()
+	{
+		return offsets.length;
+	}
+
+	/**
+	 * Returns the offset to use for the specified channel.
+	 *
+	 * @param channel
+	 *            the channel for which this parameter applies.
+	 * @return the offset.
+	 * @see ExtractSurfaceParameters#offset(int)
+	 */
+	public int offset( final int channel )
+	{
+		return offsets[ channel ];
+	}
+
+	/**
+	 * Returns the half-range of Z of intensity collection, to use for the
+	 * specified channel.
+	 *
+	 * @param channel
+	 *            the channel for which this parameter applies.
+	 * @return the half-range.
+	 * @see ExtractSurfaceParameters#deltaZ(int)
+	 */
+	public int deltaZ( final int channel )
+	{
+		return deltaZs[ channel ];
+	}
+
+	/**
+	 * Returns the projection method to use for the specified channel.
+	 *
+	 * @param channel
+	 *            the channel for which this parameter applies.
+	 * @return the projection method.
+	 * @see ExtractSurfaceParameters#projectionMethod(int)
+	 */
+	public ProjectionMethod projectionMethod( final int channel )
+	{
+		return projectionMethods[ channel ];
+	}
+
+	/**
+	 * Returns the name of the accumulator plugin that projects the specified
+	 * channel.
+	 *
+	 * @param channel
+	 *            the channel for which this parameter applies.
+	 * @return the accumulator plugin name.
+	 * @see ExtractSurfaceParameters#accumulator(int)
+	 */
+	public String accumulator( final int channel )
+	{
+		return accumulators[ channel ];
+	}
+
+	/**
+	 * Returns <code>true</code> if at least one channel uses the
+	 * {@link ProjectionMethod#COLLECT} method.
+	 *
+	 * @return whether to collect a volume instead of projecting.
+	 */
+	public boolean isCollect()
+	{
+		return collect;
+	}
+
+	/**
+	 * Returns the largest half-range of Z among the channels that use the
+	 * {@link ProjectionMethod#COLLECT} method, or 0 if there are none.
+	 *
+	 * @return the half-range of the collected volume.
+	 */
+	public int collectDeltaZ()
+	{
+		return collectDeltaZ;
+	}
+}
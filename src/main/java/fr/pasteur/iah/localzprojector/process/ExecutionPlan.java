@@ -0,0 +1,806 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import fr.pasteur.iah.localzprojector.process.ReferenceSurfaceParameters.Method;
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imglib2.Dimensions;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+
+/**
+ * The memory estimate of a local projection run, and the execution strategy
+ * chosen from it.
+ * <p>
+ * The estimate is built from the input dimensions and pixel type, the
+ * binning, filter and projection parameters, and the output mode. It is
+ * compared to the heap memory available when the plan is created. When the
+ * strategy is selected automatically, the output is streamed if the whole
+ * movie does not fit in memory and the time-points have somewhere else to
+ * go, images too large for the heap to hold in one array are stored in
+ * cells aligned on the statistics tiles, and images that do not fit in the
+ * heap at all are stored in cells cached on disk, with a bounded number of
+ * cells in memory.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ExecutionPlan
+{
+
+	/**
+	 * How an image is stored.
+	 */
+	public enum Storage
+	{
+		/**
+		 * A single primitive array.
+		 */
+		ARRAY,
+		/**
+		 * One primitive array per cell.
+		 */
+		CELL,
+		/**
+		 * Cells stored in a temporary folder, of which a bounded number are
+		 * cached in memory.
+		 */
+		DISK;
+	}
+
+	/**
+	 * The fraction of the available heap the plan allows itself to use.
+	 */
+	private static final double HEAP_FRACTION = 0.8;
+
+	/**
+	 * Images larger than this fraction of the available heap are stored in
+	 * cells when the strategy is automatic. Large arrays are hard to allocate
+	 * in a fragmented heap.
+	 */
+	private static final double ARRAY_FRACTION = 0.25;
+
+	/**
+	 * The fraction of the available heap used by the in-memory cell cache of
+	 * each image stored on disk.
+	 */
+	private static final double DISK_CACHE_FRACTION = 0.1;
+
+	/**
+	 * The heap memory available when the plan was created, in bytes.
+	 */
+	public final long availableBytes;
+
+	/**
+	 * The memory of one source time-point, in bytes.
+	 */
+	public final long sourceFrameBytes;
+
+	/**
+	 * The scratch memory needed to compute the reference surface of one
+	 * time-point, in bytes.
+	 */
+	public final long referenceSurfaceBytes;
+
+	/**
+	 * The scratch memory needed to project one time-point, in bytes.
+	 */
+	public final long projectionBytes;
+
+	/**
+	 * The memory of one output time-point, in bytes.
+	 */
+	public final long outputFrameBytes;
+
+	/**
+	 * The memory of the output kept for the whole run, in bytes. 0 in
+	 * streaming mode, bounded by the cache size if stored on disk.
+	 */
+	public final long outputBytes;
+
+	/**
+	 * The memory of the source time-points read ahead and copied in memory,
+	 * in bytes: the one held by each concurrent time-point plus the one
+	 * loaded ahead. 0 if time-points are not read ahead, or if the source is
+	 * stored in cells, in which case time-points are read lazily.
+	 */
+	public final long prefetchBytes;
+
+	/**
+	 * The memory of the reference surfaces kept for the whole run, in bytes.
+	 * 0 in streaming mode, bounded by the cache size if stored on disk.
+	 */
+	public final long referenceSurfacesBytes;
+
+	/**
+	 * The estimated peak memory of the run, in bytes.
+	 */
+	public final long peakBytes;
+
+	/**
+	 * Whether the output is streamed time-point per time-point.
+	 */
+	public final boolean streaming;
+
+	/**
+	 * How the output is stored.
+	 */
+	public final Storage outputStorage;
+
+	/**
+	 * How the reference surfaces are stored.
+	 */
+	public final Storage referenceSurfacesStorage;
+
+	/**
+	 * How the full-size reference surface of each time-point is stored.
+	 */
+	public final Storage surfaceStorage;
+
+	/**
+	 * The maximal memory of the cell cache of each image stored on disk, in
+	 * bytes.
+	 */
+	public final long diskCacheBytes;
+
+	/**
+	 * The XY size of the tiles of the surface statistics, and of the cells
+	 * of images stored in cells. Aligned on the cells of a source stored in
+	 * cells; otherwise, when the strategy is automatic, small enough for the
+	 * cell cache of images stored on disk.
+	 */
+	public final int[] tileSize;
+
+	/**
+	 * The number of time-points processed concurrently.
+	 */
+	public final int concurrentFrames;
+
+	/**
+	 * The directory in which the images used only during the run are cached
+	 * on disk, or <code>null</code> if it is not created yet.
+	 */
+	private Path cacheDirectory;
+
+	private ExecutionPlan(
+			final long availableBytes,
+			final long sourceFrameBytes,
+			final long referenceSurfaceBytes,
+			final long projectionBytes,
+			final long outputFrameBytes,
+			final long outputBytes,
+			final long prefetchBytes,
+			final long referenceSurfacesBytes,
+			final long peakBytes,
+			final boolean streaming,
+			final Storage outputStorage,
+			final Storage referenceSurfacesStorage,
+			final Storage surfaceStorage,
+			final long diskCacheBytes,
+			final int[] tileSize,
+			final int concurrentFrames )
+	{
+		this.availableBytes = availableBytes;
+		this.sourceFrameBytes = sourceFrameBytes;
+		this.referenceSurfaceBytes = referenceSurfaceBytes;
+		this.projectionBytes = projectionBytes;
+		this.outputFrameBytes = outputFrameBytes;
+		this.outputBytes = outputBytes;
+		this.prefetchBytes = prefetchBytes;
+		this.referenceSurfacesBytes = referenceSurfacesBytes;
+		this.peakBytes = peakBytes;
+		this.streaming = streaming;
+		this.outputStorage = outputStorage;
+		this.referenceSurfacesStorage = referenceSurfacesStorage;
+		this.surfaceStorage = surfaceStorage;
+		this.diskCacheBytes = diskCacheBytes;
+		this.tileSize = tileSize;
+		this.concurrentFrames = concurrentFrames;
+	}
+
+	/**
+	 * Returns the memory needed to process one time-point, in bytes, not
+	 * counting the output.
+	 *
+	 * @return the number of bytes.
+	 */
+	public long frameWorkingSet()
+	{
+		return sourceFrameBytes + referenceSurfaceBytes + projectionBytes;
+	}
+
+	/**
+	 * Returns whether the estimated peak memory fits in the heap memory
+	 * available when the plan was created.
+	 *
+	 * @return <code>true</code> if the run is expected to fit in memory.
+	 */
+	public boolean fits()
+	{
+		return peakBytes <= availableBytes;
+	}
+
+	/**
+	 * Creates an image stored as specified. Cells span one tile in X and Y,
+	 * and one pixel along the other dimensions. An image stored on disk has
+	 * its own cache directory, deleted when the JVM exits, so that it can
+	 * outlive the run.
+	 *
+	 * @param dimensions
+	 *            the image dimensions. X and Y must be the first two.
+	 * @param type
+	 *            the pixel type.
+	 * @param storage
+	 *            how to store the image.
+	 * @param <V>
+	 *            the pixel type.
+	 * @return a new image.
+	 */
+	public < V extends NativeType< V > > Img< V > createImg( final Dimensions dimensions, final V type, final Storage storage )
+	{
+		return imgFactory( type, storage, dimensions.numDimensions() ).create( dimensions );
+	}
+
+	/**
+	 * Returns a factory for images stored as specified. Cells span one tile
+	 * in X and Y, and one pixel along the other dimensions. Each image stored
+	 * on disk has its own cache directory, deleted when the JVM exits.
+	 *
+	 * @param type
+	 *            the pixel type.
+	 * @param storage
+	 *            how to store the images.
+	 * @param numDimensions
+	 *            the number of dimensions of the images. X and Y must be the
+	 *            first two.
+	 * @param <V>
+	 *            the pixel type.
+	 * @return a new factory.
+	 */
+	public < V extends NativeType< V > > ImgFactory< V > imgFactory( final V type, final Storage storage, final int numDimensions )
+	{
+		if ( storage == Storage.ARRAY )
+			return new ArrayImgFactory<>( type );
+
+		final int[] cellDimensions = cellDimensions( numDimensions );
+		if ( storage == Storage.CELL )
+			return new CellImgFactory<>( type, cellDimensions );
+
+		return new DiskCachedCellImgFactory<>( type, diskOptions( cellDimensions )
+				.deleteCacheDirectoryOnExit( true ) );
+	}
+
+	/**
+	 * Creates an image of the specified time-point stored as specified, that
+	 * is only used during the run. Images stored on disk are cached in the
+	 * directory of the time-point, which is removed by
+	 * {@link #deleteFrameCache(long)} or {@link #deleteCache()}. Images
+	 * handed over to a sink, that may keep them after the run, must be
+	 * created with {@link #createImg(Dimensions, NativeType, Storage)}
+	 * instead.
+	 *
+	 * @param dimensions
+	 *            the image dimensions. X and Y must be the first two.
+	 * @param type
+	 *            the pixel type.
+	 * @param storage
+	 *            how to store the image.
+	 * @param t
+	 *            the time-point.
+	 * @param <V>
+	 *            the pixel type.
+	 * @return a new image.
+	 */
+	public < V extends NativeType< V > > Img< V > createFrameImg( final Dimensions dimensions, final V type, final Storage storage, final long t )
+	{
+		return frameImgFactory( type, storage, dimensions.numDimensions(), t ).create( dimensions );
+	}
+
+	/**
+	 * Returns a factory for images of the specified time-point stored as
+	 * specified, that are only used during the run. Images stored on disk
+	 * are cached in the directory of the time-point, which is removed by
+	 * {@link #deleteFrameCache(long)} or {@link #deleteCache()}.
+	 *
+	 * @param type
+	 *            the pixel type.
+	 * @param storage
+	 *            how to store the images.
+	 * @param numDimensions
+	 *            the number of dimensions of the images. X and Y must be the
+	 *            first two.
+	 * @param t
+	 *            the time-point.
+	 * @param <V>
+	 *            the pixel type.
+	 * @return a new factory.
+	 */
+	public < V extends NativeType< V > > ImgFactory< V > frameImgFactory( final V type, final Storage storage, final int numDimensions, final long t )
+	{
+		if ( storage != Storage.DISK )
+			return imgFactory( type, storage, numDimensions );
+
+		return new DiskCachedCellImgFactory<>( type, diskOptions( cellDimensions( numDimensions ) )
+				.tempDirectory( frameDirectory( t ) )
+				.deleteCacheDirectoryOnExit( false ) );
+	}
+
+	/**
+	 * Returns a factory for images stored as specified, that are only used
+	 * during the run. Images stored on disk are cached in the directory of
+	 * the run, which is removed by {@link #deleteCache()}.
+	 *
+	 * @param type
+	 *            the pixel type.
+	 * @param storage
+	 *            how to store the images.
+	 * @param numDimensions
+	 *            the number of dimensions of the images. X and Y must be the
+	 *            first two.
+	 * @param <V>
+	 *            the pixel type.
+	 * @return a new factory.
+	 */
+	public < V extends NativeType< V > > ImgFactory< V > runImgFactory( final V type, final Storage storage, final int numDimensions )
+	{
+		if ( storage != Storage.DISK )
+			return imgFactory( type, storage, numDimensions );
+
+		return new DiskCachedCellImgFactory<>( type, diskOptions( cellDimensions( numDimensions ) )
+				.tempDirectory( cacheDirectory() )
+				.deleteCacheDirectoryOnExit( false ) );
+	}
+
+	/**
+	 * Deletes the directory in which the images created by
+	 * {@link #runImgFactory(NativeType, Storage, int)} and
+	 * {@link #frameImgFactory(NativeType, Storage, int, long)} are cached on
+	 * disk. These images must not be used anymore. A new directory is
+	 * created if images are created again.
+	 */
+	public synchronized void deleteCache()
+	{
+		if ( null == cacheDirectory )
+			return;
+		delete( cacheDirectory );
+		cacheDirectory = null;
+	}
+
+	/**
+	 * Deletes the directory in which the images of the specified time-point
+	 * created by {@link #frameImgFactory(NativeType, Storage, int, long)} are
+	 * cached on disk, once the time-point is written. These images must not
+	 * be used anymore.
+	 *
+	 * @param t
+	 *            the time-point.
+	 */
+	public synchronized void deleteFrameCache( final long t )
+	{
+		if ( null == cacheDirectory )
+			return;
+		delete( cacheDirectory.resolve( frameDirectoryName( t ) ) );
+	}
+
+	private static void delete( final Path directory )
+	{
+		if ( !Files.exists( directory ) )
+			return;
+		try (Stream< Path > paths = Files.walk( directory ))
+		{
+			paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+		}
+		catch ( final IOException e )
+		{
+			// Left for the JVM exit.
+		}
+	}
+
+	private synchronized Path cacheDirectory()
+	{
+		if ( null == cacheDirectory )
+		{
+			try
+			{
+				cacheDirectory = Files.createTempDirectory( "LocalZProjector-" );
+				cacheDirectory.toFile().deleteOnExit();
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( "Could not create a cache directory.", e );
+			}
+		}
+		return cacheDirectory;
+	}
+
+	private synchronized Path frameDirectory( final long t )
+	{
+		final Path directory = cacheDirectory().resolve( frameDirectoryName( t ) );
+		try
+		{
+			return Files.createDirectories( directory );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not create a cache directory.", e );
+		}
+	}
+
+	private static String frameDirectoryName( final long t )
+	{
+		return "t" + t;
+	}
+
+	private int[] cellDimensions( final int numDimensions )
+	{
+		final int[] cellDimensions = new int[ numDimensions ];
+		Arrays.fill( cellDimensions, 1 );
+		for ( int d = 0; d < Math.min( 2, numDimensions ); d++ )
+			cellDimensions[ d ] = tileSize[ d ];
+		return cellDimensions;
+	}
+
+	private DiskCachedCellImgOptions diskOptions( final int[] cellDimensions )
+	{
+		// Assume at most 8 bytes per pixel.
+		final long cellBytes = 8L * cellDimensions[ 0 ] * ( cellDimensions.length > 1 ? cellDimensions[ 1 ] : 1 );
+		return DiskCachedCellImgOptions.options()
+				.cellDimensions( cellDimensions )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( Math.max( 1, diskCacheBytes / cellBytes ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( "Execution plan:" );
+		str.append( "\n - available memory: " + megabytes( availableBytes ) );
+		str.append( "\n - estimated peak memory: " + megabytes( peakBytes ) + ( fits() ? "" : " (does not fit)" ) );
+		str.append( "\n - per time-point: source " + megabytes( sourceFrameBytes )
+				+ ", reference surface " + megabytes( referenceSurfaceBytes )
+				+ ", projection " + megabytes( projectionBytes )
+				+ ", output " + megabytes( outputFrameBytes ) );
+		str.append( "\n - time-points read ahead: " + ( prefetchBytes == 0 ? "none copied" : megabytes( prefetchBytes ) ) );
+		str.append( "\n - output: " + ( streaming ? "streamed" : megabytes( outputBytes ) + " in memory, " + outputStorage ) );
+		str.append( "\n - reference surfaces: " + ( referenceSurfacesBytes == 0 ? "not kept" : megabytes( referenceSurfacesBytes ) + " in memory, " + referenceSurfacesStorage ) );
+		str.append( "\n - surface of each time-point: " + surfaceStorage );
+		str.append( "\n - tile size: " + tileSize[ 0 ] + " x " + tileSize[ 1 ] );
+		str.append( "\n - concurrent time-points: " + concurrentFrames );
+		return str.toString();
+	}
+
+	private static String megabytes( final long bytes )
+	{
+		return String.format( Locale.US, "%.1f MB", bytes / 1024. / 1024. );
+	}
+
+	/**
+	 * Returns the heap memory that can still be allocated, in bytes.
+	 *
+	 * @return the number of bytes.
+	 */
+	public static long availableMemory()
+	{
+		final Runtime rt = Runtime.getRuntime();
+		return rt.maxMemory() - ( rt.totalMemory() - rt.freeMemory() );
+	}
+
+	/**
+	 * Estimates the memory of a run and chooses how to execute it.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters.
+	 * @param extractSurfaceParams
+	 *            the extract surface parameters.
+	 * @param streamRequested
+	 *            whether the output must be streamed.
+	 * @param canStream
+	 *            whether the time-points can be streamed, that is, whether
+	 *            they are saved or passed to a sink. If <code>false</code>
+	 *            the output is never streamed automatically.
+	 * @param lazy
+	 *            whether the output is a lazy view, in which case only the
+	 *            reference surfaces are kept in memory.
+	 * @param memoryBudget
+	 *            the memory budget for concurrent time-points, in bytes. If
+	 *            0, time-points are processed one at a time.
+	 * @param pipelined
+	 *            whether the next time-point is read ahead while the current
+	 *            one is processed. Time-points are also read ahead when
+	 *            several are processed concurrently.
+	 * @param automatic
+	 *            whether to select the strategy from the estimate. If
+	 *            <code>false</code>, the output is streamed only if
+	 *            requested, and images are stored in arrays unless they
+	 *            are too large for a single array.
+	 * @param storage
+	 *            if not <code>null</code>, how to store the output, the
+	 *            reference surfaces and the surface of each time-point,
+	 *            regardless of the estimate. Images too large for a single
+	 *            array are stored in cells anyway.
+	 * @return a new plan.
+	 */
+	public static ExecutionPlan create(
+			final Dataset input,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams,
+			final boolean streamRequested,
+			final boolean canStream,
+			final boolean lazy,
+			final long memoryBudget,
+			final boolean pipelined,
+			final boolean automatic,
+			final Storage storage )
+	{
+		final int nChannels = ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) );
+		final CompiledExtractSurfaceParameters compiledParams = extractSurfaceParams.compile( nChannels );
+		final long nFrames = Math.max( 1, input.getFrames() );
+		final long plane = input.dimension( Axes.X ) * input.dimension( Axes.Y );
+		final double bytesPerPixel = bytesPerPixel( input );
+
+		final long sourceFrameBytes = input.getBytesOfInfo() / nFrames;
+		final long referenceSurfaceBytes = estimateReferenceSurface( plane, bytesPerPixel, referenceSurfaceParams );
+		final long projectionBytes = estimateProjection( plane, bytesPerPixel, compiledParams );
+
+		final long outputFramePixels = compiledParams.isCollect()
+				? plane * nChannels * ( 1 + 2 * compiledParams.collectDeltaZ() )
+				: plane * nChannels;
+		final long outputFrameBytes = ( long ) Math.ceil( outputFramePixels * bytesPerPixel );
+		final long allReferenceSurfacesBytes = 2 * plane * nFrames;
+		final long allOutputBytes = outputFrameBytes * nFrames;
+
+		final long availableBytes = availableMemory();
+		final long usable = ( long ) ( HEAP_FRACTION * availableBytes );
+		final long frameBytes = sourceFrameBytes + referenceSurfaceBytes + projectionBytes;
+
+		final long diskCacheBytes = ( long ) ( DISK_CACHE_FRACTION * usable );
+		final boolean fitsInMemory = allOutputBytes + allReferenceSurfacesBytes + 2 * frameBytes <= usable;
+
+		// Stream if requested, or if the whole movie does not fit and is
+		// not explicitly stored on disk.
+		final boolean streaming = !lazy && ( streamRequested
+				|| ( automatic && null == storage && canStream && !fitsInMemory ) );
+
+		// Otherwise images that do not fit go to disk.
+		final Storage outputStorage;
+		final Storage referenceSurfacesStorage;
+		final Storage surfaceStorage;
+		if ( null != storage )
+		{
+			outputStorage = storage( outputFramePixels * ( streaming ? 1 : nFrames ), storage );
+			referenceSurfacesStorage = storage( plane * nFrames, storage );
+			surfaceStorage = storage( plane, storage );
+		}
+		else if ( automatic && !fitsInMemory )
+		{
+			outputStorage = streaming ? storage( outputFramePixels, outputFrameBytes, usable, automatic ) : Storage.DISK;
+			referenceSurfacesStorage = Storage.DISK;
+			surfaceStorage = ( 2 * frameBytes > usable ) ? Storage.DISK : storage( plane, 2 * plane, usable, automatic );
+		}
+		else
+		{
+			outputStorage = storage( outputFramePixels * ( streaming ? 1 : nFrames ), streaming ? outputFrameBytes : allOutputBytes, usable, automatic );
+			referenceSurfacesStorage = storage( plane * nFrames, allReferenceSurfacesBytes, usable, automatic );
+			surfaceStorage = storage( plane, 2 * plane, usable, automatic );
+		}
+
+		final long outputBytes = ( streaming || lazy ) ? 0 : resident( allOutputBytes, outputStorage, diskCacheBytes );
+		final long referenceSurfacesBytes = streaming ? 0 : resident( allReferenceSurfacesBytes, referenceSurfacesStorage, diskCacheBytes );
+		final long resident = outputBytes + referenceSurfacesBytes;
+
+		// Time-points read ahead are copied in memory, unless the source is
+		// stored in cells. Each concurrent time-point then holds its own
+		// copy, and its own output in streaming mode.
+		final boolean copiesSource = copiesPrefetchedTimePoints( input );
+		final long perFrame = referenceSurfaceBytes + projectionBytes
+				+ ( copiesSource ? sourceFrameBytes : 0 )
+				+ ( streaming ? outputFrameBytes : 0 );
+		final int concurrentFrames;
+		if ( lazy || memoryBudget <= 0 || nFrames < 2 )
+		{
+			concurrentFrames = 1;
+		}
+		else
+		{
+			final long budget = automatic
+					? Math.min( memoryBudget, Math.max( 0, usable - resident ) )
+					: memoryBudget;
+			// One more time-point is held by the loader.
+			final long fit = budget / Math.max( 1, perFrame ) - ( copiesSource ? 1 : 0 );
+			final long n = Math.min( fit, Math.min( nFrames, ThreadBudget.threads() ) );
+			concurrentFrames = ( int ) Math.max( 1, n );
+		}
+
+		final boolean prefetch = pipelined || concurrentFrames > 1;
+		final long prefetchBytes = ( prefetch && copiesSource ) ? ( concurrentFrames + 1 ) * sourceFrameBytes : 0;
+		final long workBytes = perFrame - ( copiesSource ? sourceFrameBytes : 0 );
+		final long peakBytes = resident + concurrentFrames * workBytes + prefetchBytes;
+
+		return new ExecutionPlan(
+				availableBytes,
+				sourceFrameBytes,
+				referenceSurfaceBytes,
+				projectionBytes,
+				outputFrameBytes,
+				outputBytes,
+				prefetchBytes,
+				referenceSurfacesBytes,
+				peakBytes,
+				streaming,
+				outputStorage,
+				referenceSurfacesStorage,
+				surfaceStorage,
+				diskCacheBytes,
+				tileSize( input, automatic, diskCacheBytes ),
+				concurrentFrames );
+	}
+
+	private static Storage storage( final long nPixels, final long bytes, final long usable, final boolean automatic )
+	{
+		// A single array cannot hold more than 2^31 elements.
+		if ( nPixels > Integer.MAX_VALUE )
+			return Storage.CELL;
+		if ( automatic && bytes > ARRAY_FRACTION * usable )
+			return Storage.CELL;
+		return Storage.ARRAY;
+	}
+
+	private static Storage storage( final long nPixels, final Storage requested )
+	{
+		if ( requested == Storage.ARRAY && nPixels > Integer.MAX_VALUE )
+			return Storage.CELL;
+		return requested;
+	}
+
+	/**
+	 * Tiles are aligned on the cells of a source stored in cells. Otherwise,
+	 * when the strategy is automatic, they are shrunk until the cell cache of
+	 * an image stored on disk holds two rows of them, so that sweeping over
+	 * the tiles does not evict the cells of the row it is about to revisit.
+	 */
+	private static int[] tileSize( final Dataset input, final boolean automatic, final long diskCacheBytes )
+	{
+		final int[] tileSize = SurfaceStatistics.tileSize( input.getImgPlus() );
+		if ( !automatic || input.getImgPlus().getImg() instanceof AbstractCellImg )
+			return tileSize;
+
+		// Assume at most 8 bytes per pixel, as for the cache size.
+		final long fit = diskCacheBytes / ( 16 * Math.max( 1, input.dimension( Axes.X ) ) );
+		int size = SurfaceStatistics.DEFAULT_TILE_SIZE;
+		while ( size > SurfaceStatistics.MIN_TILE_SIZE && size > fit )
+			size /= 2;
+		return new int[] { size, size };
+	}
+
+	/**
+	 * Returns whether the time-points of the specified source are copied in
+	 * memory when they are read ahead. Sources stored in cells, including
+	 * cached and virtual ones, are read lazily instead: a copy would read
+	 * all the cells of the time-point, including those of the tiles and Z
+	 * slices the projection skips.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @return <code>true</code> if read-ahead time-points are copied.
+	 */
+	public static boolean copiesPrefetchedTimePoints( final Dataset input )
+	{
+		return !( input.getImgPlus().getImg() instanceof AbstractCellImg );
+	}
+
+	private static long resident( final long bytes, final Storage storage, final long diskCacheBytes )
+	{
+		return ( storage == Storage.DISK ) ? Math.min( bytes, diskCacheBytes ) : bytes;
+	}
+
+	private static double bytesPerPixel( final Dataset input )
+	{
+		return ( double ) input.getBytesOfInfo() / Math.max( 1, Intervals.numElements( input.getImgPlus() ) );
+	}
+
+	/**
+	 * Scratch memory of the reference surface: binned slice, filtered slice
+	 * and max values in the source type, binned Z of max and its median
+	 * filtered copy, full-size surface.
+	 */
+	private static long estimateReferenceSurface( final long plane, final double bytesPerPixel, final ReferenceSurfaceParameters params )
+	{
+		final int binning = Math.max( 1, params.binning );
+		final long binnedPlane = plane / ( binning * binning );
+
+		// The slice is copied if it is binned or smoothed.
+		final int nSlices = ( binning > 1 || params.sigma > 0. ) ? 3 : 2;
+		long bytes = ( long ) ( nSlices * binnedPlane * bytesPerPixel );
+
+		// The focus filter reads a neighborhood of the binned slice; the
+		// sparse methods only store one value per grid node.
+		if ( params.method == Method.SPARSE_MAX_OF_MEAN || params.method == Method.SPARSE_MAX_OF_STD )
+		{
+			final long step = Math.max( 1, params.filterWindowSize / binning );
+			bytes += 8 * ( binnedPlane / ( step * step ) + 1 );
+		}
+
+		// Z of max, median filtered.
+		bytes += ( params.medianHalfSize > 0 ) ? 4 * binnedPlane : 2 * binnedPlane;
+
+		// Rescaled to full size.
+		if ( binning > 1 )
+			bytes += 2 * plane;
+		return bytes;
+	}
+
+	/**
+	 * Scratch memory of the projection. Channels are projected one after the
+	 * other, with a flat surface, a plane buffer, a mask and an accumulator.
+	 * Collecting only needs the flat surface.
+	 */
+	private static long estimateProjection( final long plane, final double bytesPerPixel, final CompiledExtractSurfaceParameters params )
+	{
+		if ( params.isCollect() )
+			return 4 * plane;
+
+		int perChannel = 0;
+		for ( int c = 0; c < params.nChannels(); c++ )
+		{
+			final ProjectionMethod method = params.projectionMethod( c );
+			// Running value and count, plus the second moment for std.
+			final int accumulator = ( method == ProjectionMethod.STD ) ? 20 : 12;
+			perChannel = Math.max( perChannel, 1 + accumulator );
+		}
+		// The plane buffer stores integer types in their own primitive type
+		// and others as doubles.
+		final double planeBuffer = bytesPerPixel <= 4 ? bytesPerPixel : 8;
+		return ( long ) ( plane * ( 4 + planeBuffer + perChannel ) );
+	}
+}
@@ -32,26 +32,33 @@
  */
 package fr.pasteur.iah.localzprojector.process;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.scijava.listeners.Listeners;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.plugin.PluginService;
 
 import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import fr.pasteur.iah.localzprojector.process.accumulator.PlaneBuffer;
+import fr.pasteur.iah.localzprojector.process.accumulator.ProjectionAccumulator;
+import fr.pasteur.iah.localzprojector.process.accumulator.ProjectionAccumulators;
+import fr.pasteur.iah.localzprojector.util.StageTimings;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.ops.OpService;
-import net.imagej.ops.create.img.Imgs;
 import net.imagej.ops.special.computer.AbstractBinaryComputerOp;
-import net.imglib2.Cursor;
-import net.imglib2.Localizable;
-import net.imglib2.RandomAccess;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
-import net.imglib2.util.Pair;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -64,6 +71,20 @@ import net.imglib2.view.Views;
  * one Z-slice at a time. We want to avoid triggering a loading event for a
  * whole plane for every pixel. In summary: we want to avoid moving in Z as
  * little as possible.
+ * <p>
+ * Each plane is read tile by tile, using the tiles of the
+ * {@link SurfaceStatistics}. Tiles for which the plane is outside of the Z
+ * band around the reference surface are not read at all. When the source is
+ * backed by cells, the tiles are aligned on the cells, so that unneeded cells
+ * are never loaded.
+ * <p>
+ * The projection itself is delegated to a {@link ProjectionAccumulator}
+ * plugin, matched by name against the projection method of each channel.
+ * Several configurations can be extracted in the same sweep over Z with
+ * {@link #computeAll(ImgPlus, RandomAccessibleInterval, List, List)}.
+ * <p>
+ * The accumulators, the masks and the plane buffer are kept between calls,
+ * and reused as long as the planes keep the same size.
  * 
  * @author Jean-Yves Tinevez
  *
@@ -82,18 +103,97 @@ public class ExtractSurfaceOnePassOp< T extends RealType< T > & NativeType< T >
 	@Parameter
 	private OpService ops;
 
+	@Parameter
+	private PluginService pluginService;
+
 	private String cancelReason;
 
+	/**
+	 * The single configuration made of the op parameters.
+	 */
+	private List< ExtractSurfaceParameters > defaultConfigurations;
+
+	/**
+	 * The configurations of the current call, compiled for the number of
+	 * channels of its source.
+	 */
+	private List< CompiledExtractSurfaceParameters > compiled;
+
+	private SurfaceStatistics surfaceStatistics;
+
+	private StageTimings timings = StageTimings.DISABLED;
+
 	private Listeners.List< SliceProcessListener > listeners = new Listeners.List<>();
 
+	/*
+	 * Scratch of the last plane size, reused by the next calls.
+	 */
+
+	/**
+	 * The accumulators of each configuration, per accumulator plugin name.
+	 */
+	private final List< Map< String, ProjectionAccumulator > > accumulatorPool = new ArrayList<>();
+
+	private boolean[][] maskPool;
+
+	private PlaneBuffer< T > bufferPool;
+
+	private int bufferWidth;
+
+	private int bufferHeight;
+
+	private Class< ? > bufferType;
+
 	@Override
 	public void compute( final ImgPlus< T > source, final RandomAccessibleInterval< UnsignedShortType > referenceSurface, final RandomAccessibleInterval< T > output )
 	{
+		if ( null == defaultConfigurations )
+			defaultConfigurations = Collections.singletonList( params );
+		computeAll( source, referenceSurface, defaultConfigurations, Collections.singletonList( output ) );
+	}
+
+	/**
+	 * Extracts several projections from the same source and reference surface
+	 * in a single sweep over Z. Each configuration specifies the offset, the
+	 * half-range and the projection method to use for each channel, and
+	 * produces one output. The source planes and the reference surface are
+	 * read only once for all configurations.
+	 * 
+	 * @param source
+	 *            the source image, 3D or 4D (3D+C).
+	 * @param referenceSurface
+	 *            the reference surface, 2D.
+	 * @param configurations
+	 *            the list of configurations, not empty.
+	 * @param outputs
+	 *            the list of outputs, one per configuration, in the same
+	 *            order.
+	 */
+	public void computeAll(
+			final ImgPlus< T > source,
+			final RandomAccessibleInterval< UnsignedShortType > referenceSurface,
+			final List< ExtractSurfaceParameters > configurations,
+			final List< ? extends RandomAccessibleInterval< T > > outputs )
+	{
+		if ( configurations.isEmpty() )
+			throw new IllegalArgumentException( "Expected at least one configuration." );
+		if ( configurations.size() != outputs.size() )
+			throw new IllegalArgumentException( "Expected one output per configuration, but got " + configurations.size()
+					+ " configurations and " + outputs.size() + " outputs." );
+
 		// Prepare.
 		cancelReason = null;
+		final long start = timings.start();
 
 		final Img< T > img = source.getImg();
 
+		// Read the reference surface once for all channels and configurations.
+		final FlatSurface surface = FlatSurface.of( referenceSurface );
+		final SurfaceStatistics stats = ( null == surfaceStatistics )
+				? SurfaceStatistics.compute( referenceSurface, SurfaceStatistics.tileSize( source ), source.dimension( source.numDimensions() - 1 ) )
+				: surfaceStatistics;
+		surfaceStatistics = null;
+
 		final int channelAxis = source.dimensionIndex( Axes.CHANNEL );
 		if ( channelAxis < 0 )
 		{
@@ -102,7 +202,9 @@ public class ExtractSurfaceOnePassOp< T extends RealType< T > & NativeType< T >
 				throw new IllegalArgumentException( "Expected single-channel source to be 3D, but was " + source.numDimensions() + "D." );
 
 			// Process.
-			processChannel( img, 0, referenceSurface, output );
+			compile( configurations, 1 );
+			final List< RandomAccessibleInterval< T > > targets = new ArrayList<>( outputs );
+			processChannel( img, 0, surface, stats, targets );
 		}
 		else
 		{
@@ -113,142 +215,201 @@ public class ExtractSurfaceOnePassOp< T extends RealType< T > & NativeType< T >
 			final long nChannels = img.dimension( channelAxis );
 
 			// Process.
+			compile( configurations, ( int ) nChannels );
 			for ( int c = 0; c < nChannels; c++ )
 			{
 				if ( isCanceled() )
 					break;
 
 				final IntervalView< T > channel = Views.hyperSlice( img, channelAxis, c );
-				final IntervalView< T > target = Views.hyperSlice( output, channelAxis, c );
-				processChannel( channel, c, referenceSurface, target );
+				final List< RandomAccessibleInterval< T > > targets = new ArrayList<>( outputs.size() );
+				for ( final RandomAccessibleInterval< T > output : outputs )
+					targets.add( Views.hyperSlice( output, channelAxis, c ) );
+				processChannel( channel, c, surface, stats, targets );
 			}
 		}
+
+		timings.stop( StageTimings.EXTRACTION, start );
+		for ( final RandomAccessibleInterval< T > output : outputs )
+			timings.count( StageTimings.PIXELS_WRITTEN, Intervals.numElements( output ) );
 	}
 
 	private void processChannel(
 			final RandomAccessibleInterval< T > channel,
 			final int c,
-			final RandomAccessibleInterval< UnsignedShortType > referenceSurface,
-			final RandomAccessibleInterval< T > target )
+			final FlatSurface surface,
+			final SurfaceStatistics stats,
+			final List< RandomAccessibleInterval< T > > targets )
 	{
-		final int offset = params.offset( c );
-		final int deltaZ = params.deltaZ( c );
-		final ProjectionMethod projectionMethod = params.projectionMethod( c );
-
-		final Accumulator< T > accumulator;
-		switch ( projectionMethod )
+		final int width = ( int ) channel.dimension( 0 );
+		final int height = ( int ) channel.dimension( 1 );
+		final int[] surfaceZ = surface.data();
+
+		// One accumulator and one mask per configuration.
+		final int nConfigs = targets.size();
+		final int[] offsets = new int[ nConfigs ];
+		final int[] deltaZs = new int[ nConfigs ];
+		final ProjectionAccumulator[] accumulators = new ProjectionAccumulator[ nConfigs ];
+		final boolean[][] masks = masks( nConfigs, width * height );
+		long minBound = Long.MAX_VALUE;
+		long maxBound = Long.MIN_VALUE;
+		for ( int k = 0; k < nConfigs; k++ )
 		{
-		case COLLECT:
-			throw new IllegalArgumentException( "Cannot project with the " + projectionMethod + " method." );
-		case MEAN:
-			accumulator = new MeanAccumulator< T >( target );
-			break;
-		case MIP:
-			accumulator = new MIPAccumulator< T >( target );
-			break;
-		default:
-			throw new IllegalArgumentException( "Unknown projection method: " + this + "." );
+			final CompiledExtractSurfaceParameters p = compiled.get( k );
+			final ProjectionMethod projectionMethod = p.projectionMethod( c );
+			if ( projectionMethod == ProjectionMethod.COLLECT )
+				throw new IllegalArgumentException( "Cannot project with the " + projectionMethod + " method." );
+
+			offsets[ k ] = p.offset( c );
+			deltaZs[ k ] = p.deltaZ( c );
+			accumulators[ k ] = accumulator( k, p.accumulator( c ) );
+			accumulators[ k ].init( width, height );
+			minBound = Math.min( minBound, ( long ) stats.min() + offsets[ k ] - deltaZs[ k ] );
+			maxBound = Math.max( maxBound, ( long ) stats.max() + offsets[ k ] + deltaZs[ k ] );
 		}
-
-		final Pair< UnsignedShortType, UnsignedShortType > minMax = ops.stats().minMax( Views.iterable( referenceSurface ) );
-		final long minBound = minMax.getA().getIntegerLong() + offset - deltaZ;
-		final long maxBound = minMax.getB().getIntegerLong() + offset + deltaZ;
 		final long minZ = Math.max( channel.min( 2 ), minBound );
 		final long maxZ = Math.min( channel.max( 2 ), maxBound );
 
-		final RandomAccess< UnsignedShortType > raReference = referenceSurface.randomAccess( referenceSurface ); // 2D
+		final PlaneBuffer< T > buffer = buffer( channel, width, height );
+		final boolean[] active = new boolean[ nConfigs ];
 		for ( long z = minZ; z <= maxZ; z++ )
 		{
 			final long localZ = z;
 			if ( isCanceled() )
 				break;
 
-			final Cursor< T > cursor = Views.hyperSlice( channel, 2, localZ ).localizingCursor();
-			while ( cursor.hasNext() )
-			{
-				cursor.fwd();
-				raReference.setPosition( cursor );
+			// Skip the plane if the histogram says no pixel is in any band.
+			boolean planeHasPixels = false;
+			for ( int k = 0; k < nConfigs; k++ )
+				planeHasPixels |= stats.count( z - offsets[ k ] - deltaZs[ k ], z - offsets[ k ] + deltaZs[ k ] ) > 0;
 
-				final int surfaceZ = raReference.get().get();
-				if ( localZ >= surfaceZ + offset - deltaZ && localZ <= surfaceZ + offset + deltaZ )
-					accumulator.accumulate( cursor.get(), cursor );
+			if ( planeHasPixels )
+			{
+				final RandomAccessibleInterval< T > plane = Views.hyperSlice( channel, 2, localZ );
+				for ( int ty = 0; ty < stats.nTilesY(); ty++ )
+				{
+					for ( int tx = 0; tx < stats.nTilesX(); tx++ )
+					{
+						// Skip tiles for which z is outside of every band.
+						final long tileMin = stats.tileMin( tx, ty );
+						final long tileMax = stats.tileMax( tx, ty );
+						boolean tileHasPixels = false;
+						for ( int k = 0; k < nConfigs; k++ )
+						{
+							active[ k ] = z >= tileMin + offsets[ k ] - deltaZs[ k ] && z <= tileMax + offsets[ k ] + deltaZs[ k ];
+							tileHasPixels |= active[ k ];
+						}
+						if ( !tileHasPixels )
+							continue;
+
+						final Interval tile = stats.tileInterval( tx, ty );
+						final int x0 = ( int ) tile.min( 0 );
+						final int tileWidth = ( int ) tile.dimension( 0 );
+						boolean read = false;
+						for ( int k = 0; k < nConfigs; k++ )
+						{
+							if ( !active[ k ] )
+								continue;
+
+							// Pixels for which z is in the band around the reference surface.
+							final long sMin = z - offsets[ k ] - deltaZs[ k ];
+							final long sMax = z - offsets[ k ] + deltaZs[ k ];
+							final boolean[] mask = masks[ k ];
+							for ( int y = ( int ) tile.min( 1 ); y <= tile.max( 1 ); y++ )
+							{
+								boolean hasPixels = false;
+								final int rowOffset = y * width + x0;
+								for ( int x = rowOffset; x < rowOffset + tileWidth; x++ )
+								{
+									final int sz = surfaceZ[ x ];
+									mask[ x ] = sz >= sMin && sz <= sMax;
+									hasPixels |= mask[ x ];
+								}
+								if ( !hasPixels )
+									continue;
+
+								// Read the tile once for all configurations.
+								if ( !read )
+								{
+									buffer.read( plane, tile );
+									timings.count( StageTimings.VOXELS_READ, Intervals.numElements( tile ) );
+									read = true;
+								}
+								buffer.accumulateRow( accumulators[ k ], rowOffset, tileWidth, mask );
+							}
+						}
+					}
+				}
 			}
 			listeners.list.forEach( l -> l.sliceProcessed( localZ ) );
 		}
+
+		for ( int k = 0; k < nConfigs; k++ )
+			accumulators[ k ].write( targets.get( k ) );
 	}
 
-	public Listeners.List< SliceProcessListener > getListeners()
+	private ProjectionAccumulator accumulator( final int k, final String name )
 	{
-		return listeners;
+		while ( accumulatorPool.size() <= k )
+			accumulatorPool.add( new HashMap<>() );
+		return accumulatorPool.get( k ).computeIfAbsent( name, n -> ProjectionAccumulators.create( pluginService, n ) );
 	}
 
 	/**
-	 * Interface for projection accumulator.
+	 * The masks are entirely written before being read for each row, so they
+	 * do not need to be cleared.
 	 */
-	private static interface Accumulator< T extends RealType< T > & NativeType< T > >
+	private boolean[][] masks( final int nConfigs, final int size )
 	{
-		public void accumulate( T val, final Localizable pos );
+		if ( null == maskPool || maskPool.length < nConfigs || maskPool[ 0 ].length != size )
+			maskPool = new boolean[ nConfigs ][ size ];
+		return maskPool;
 	}
 
-	private static final class MeanAccumulator< T extends RealType< T > & NativeType< T > > implements Accumulator< T >
+	private PlaneBuffer< T > buffer( final RandomAccessibleInterval< T > channel, final int width, final int height )
 	{
-
-		private final RandomAccess< IntType > nRa;
-
-		private final RandomAccess< T > ra;
-
-		public MeanAccumulator( final RandomAccessibleInterval< T > target )
-		{
-			this.ra = target.randomAccess( target );
-			this.nRa = Imgs.create( Util.getArrayOrCellImgFactory( target, new IntType() ), target, new IntType() ).randomAccess( target );
-		}
-
-		@Override
-		public void accumulate( final T val, final Localizable pos )
+		final T type = Util.getTypeFromInterval( channel );
+		if ( null == bufferPool || bufferWidth != width || bufferHeight != height || bufferType != type.getClass() )
 		{
-			nRa.setPosition( pos );
-			final int n = nRa.get().get() + 1;
-
-			ra.setPosition( pos );
-			final double av = ra.get().getRealDouble();
-
-			// Running average trying to limit integer precision impact and overflow.
-			final double nAv = ( n - 1. ) / n * av + val.getRealDouble() / n;
-			ra.get().setReal( nAv );
-
-			nRa.get().inc();
+			bufferPool = PlaneBuffer.create( type, width, height );
+			bufferWidth = width;
+			bufferHeight = height;
+			bufferType = type.getClass();
 		}
+		return bufferPool;
 	}
 
-	private static final class MIPAccumulator< T extends RealType< T > & NativeType< T > > implements Accumulator< T >
+	public Listeners.List< SliceProcessListener > getListeners()
 	{
+		return listeners;
+	}
 
-		private final RandomAccess< T > ra;
-
-		/**
-		 * We work directly on the target.
-		 * 
-		 * @param target
-		 *            the image in which to write the MIP.
-		 */
-		public MIPAccumulator( final RandomAccessibleInterval< T > target )
-		{
-			this.ra = target.randomAccess( target );
-		}
+	public interface SliceProcessListener
+	{
+		public void sliceProcessed( long z );
+	}
 
-		@Override
-		public void accumulate( final T val, final Localizable pos )
-		{
-			ra.setPosition( pos );
-			if ( ra.get().compareTo( val ) < 0 )
-				ra.get().set( val );
-		}
+	@Override
+	public void setSurfaceStatistics( final SurfaceStatistics statistics )
+	{
+		this.surfaceStatistics = statistics;
+	}
 
+	@Override
+	public void setTimings( final StageTimings timings )
+	{
+		this.timings = ( null == timings ) ? StageTimings.DISABLED : timings;
 	}
 
-	public interface SliceProcessListener
+	/**
+	 * Compiles the configurations at each call: this is cheap, and the
+	 * caller may change the list between calls.
+	 */
+	private void compile( final List< ExtractSurfaceParameters > configurations, final int nChannels )
 	{
-		public void sliceProcessed( long z );
+		compiled = new ArrayList<>( configurations.size() );
+		for ( final ExtractSurfaceParameters configuration : configurations )
+			compiled.add( configuration.compile( nChannels ) );
 	}
 
 	@Override
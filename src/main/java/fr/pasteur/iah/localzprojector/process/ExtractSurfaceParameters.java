@@ -67,7 +67,19 @@ public class ExtractSurfaceParameters
 		 * Do not project but instead collect all the specified slices around
 		 * the reference surface.
 		 */
-		COLLECT( "Collect" );
+		COLLECT( "Collect" ),
+		/**
+		 * Take the sum of intensities along Z.
+		 */
+		SUM( "Sum" ),
+		/**
+		 * Take the minimum intensity along Z.
+		 */
+		MIN( "Min" ),
+		/**
+		 * Take the standard deviation of intensities along Z.
+		 */
+		STD( "Std" );
 
 		private final String str;
 
@@ -89,11 +101,18 @@ public class ExtractSurfaceParameters
 
 	private final Map< Integer, ProjectionMethod > projectionMethods;
 
-	private ExtractSurfaceParameters( final Map< Integer, Integer > offsets, final Map< Integer, Integer > deltaZs, final Map< Integer, ProjectionMethod > projectionMethods )
+	/**
+	 * The names of the accumulator plugins that replace the projection
+	 * method of some channels. May be <code>null</code>.
+	 */
+	private final Map< Integer, String > accumulators;
+
+	private ExtractSurfaceParameters( final Map< Integer, Integer > offsets, final Map< Integer, Integer > deltaZs, final Map< Integer, ProjectionMethod > projectionMethods, final Map< Integer, String > accumulators )
 	{
 		this.offsets = offsets;
 		this.deltaZs = deltaZs;
 		this.projectionMethods = projectionMethods;
+		this.accumulators = accumulators;
 	}
 
 	/**
@@ -154,6 +173,39 @@ public class ExtractSurfaceParameters
 			return val;
 	}
 
+	/**
+	 * Returns the name of the
+	 * {@link fr.pasteur.iah.localzprojector.process.accumulator.ProjectionAccumulator}
+	 * plugin that projects the specified channel. This is the name set with
+	 * {@link Builder#accumulator(int, String)} if any, and the name of the
+	 * projection method of the channel otherwise.
+	 * 
+	 * @param channel
+	 *            the channel for which this parameter applies.
+	 * @return the accumulator plugin name.
+	 */
+	public String accumulator( final int channel )
+	{
+		final String val = ( null == accumulators ) ? null : accumulators.get( Integer.valueOf( channel ) );
+		if ( null == val )
+			return projectionMethod( channel ).name();
+		else
+			return val;
+	}
+
+	/**
+	 * Compiles these parameters to a dense, immutable form for an image with
+	 * the specified number of channels.
+	 * 
+	 * @param nChannels
+	 *            the number of channels in the image.
+	 * @return a new {@link CompiledExtractSurfaceParameters} instance.
+	 */
+	public CompiledExtractSurfaceParameters compile( final int nChannels )
+	{
+		return CompiledExtractSurfaceParameters.compile( this, nChannels );
+	}
+
 	public static final ExtractSurfaceParameters df;
 	static
 	{
@@ -200,11 +252,14 @@ public class ExtractSurfaceParameters
 
 		private final Map< Integer, ProjectionMethod > projectionMethods;
 
+		private final Map< Integer, String > accumulators;
+
 		private Builder()
 		{
 			this.offsets = new HashMap<>();
 			this.deltaZs = new HashMap<>();
 			this.projectionMethods = new HashMap<>();
+			this.accumulators = new HashMap<>();
 		}
 
 		/**
@@ -262,6 +317,26 @@ public class ExtractSurfaceParameters
 			return this;
 		}
 
+		/**
+		 * Sets the name of the
+		 * {@link fr.pasteur.iah.localzprojector.process.accumulator.ProjectionAccumulator}
+		 * plugin to project the specified channel with, instead of the one of
+		 * its projection method. This is how third-party accumulators are
+		 * used. Ignored if the channel is collected with
+		 * {@link ProjectionMethod#COLLECT}.
+		 * 
+		 * @param channel
+		 *            the channel for which this parameter applies.
+		 * @param accumulator
+		 *            the name of the accumulator plugin.
+		 * @return this builder.
+		 */
+		public Builder accumulator( final int channel, final String accumulator )
+		{
+			accumulators.put( Integer.valueOf( channel ), accumulator );
+			return this;
+		}
+
 		/**
 		 * Creates the parameter object.
 		 * 
@@ -269,7 +344,8 @@ public class ExtractSurfaceParameters
 		 */
 		public ExtractSurfaceParameters get()
 		{
-			return new ExtractSurfaceParameters( offsets, deltaZs, projectionMethods );
+			// Not serialized when empty, as in files written before.
+			return new ExtractSurfaceParameters( offsets, deltaZs, projectionMethods, accumulators.isEmpty() ? null : accumulators );
 		}
 	}
 
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * A copy of a 2D reference surface stored in a flat <code>int</code> array,
+ * in flat iteration order. The projector ops read the reference surface once
+ * for every source plane, so it is much cheaper to read it from a primitive
+ * array than to random-access it for every pixel.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public final class FlatSurface
+{
+
+	private final int[] z;
+
+	private final int width;
+
+	private final int height;
+
+	private FlatSurface( final int[] z, final int width, final int height )
+	{
+		this.z = z;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Copies the specified reference surface.
+	 *
+	 * @param referenceSurface
+	 *            the reference surface, 2D.
+	 * @return a new flat surface.
+	 */
+	public static FlatSurface of( final RandomAccessibleInterval< UnsignedShortType > referenceSurface )
+	{
+		final int width = ( int ) referenceSurface.dimension( 0 );
+		final int height = ( int ) referenceSurface.dimension( 1 );
+		final int[] z = new int[ width * height ];
+		int i = 0;
+		for ( final UnsignedShortType p : Views.flatIterable( referenceSurface ) )
+			z[ i++ ] = p.get();
+		return new FlatSurface( z, width, height );
+	}
+
+	/**
+	 * Returns the Z position of the reference surface, for all pixels, in flat
+	 * iteration order. The array is not copied.
+	 *
+	 * @return the Z positions.
+	 */
+	public int[] data()
+	{
+		return z;
+	}
+
+	public int width()
+	{
+		return width;
+	}
+
+	public int height()
+	{
+		return height;
+	}
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.util.Arrays;
+
+import fr.pasteur.iah.localzprojector.util.ImgPlusUtil;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.ops.OpEnvironment;
+import net.imagej.ops.special.computer.Computers;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * The local Z projection of a whole dataset, computed on demand.
+ * <p>
+ * The projection is exposed as a {@link CachedCellImg} whose cells span one
+ * XY tile, all the channels (and the collected Z layers with the
+ * {@link ExtractSurfaceParameters.ProjectionMethod#COLLECT} method) and one
+ * time-point. A cell is computed the first time it is accessed: the
+ * reference surface is computed on the tile enlarged by a halo covering the
+ * binning, filter and median neighborhoods, then the projection is
+ * extracted on the tile. A bounded number of cells is kept in memory, the
+ * least recently used ones being evicted first. Browsing a region or a
+ * time-point only costs the cells it touches.
+ * <p>
+ * Away from the image borders, cells are identical to the output of
+ * {@link LocalZProjectionOp}. Near the borders, and with the sparse
+ * methods whose grid depends on the tile origin, the reference surface may
+ * differ slightly.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the source image.
+ */
+public class LazyLocalZProjection< T extends RealType< T > & NativeType< T > > implements CellLoader< T >
+{
+
+	/**
+	 * The default number of cells kept in memory.
+	 */
+	public static final long DEFAULT_MAX_CACHED_CELLS = 256;
+
+	private final OpEnvironment ops;
+
+	private final ImgPlus< T > source;
+
+	private final ReferenceSurfaceParameters referenceSurfaceParams;
+
+	private final ExtractSurfaceParameters extractSurfaceParams;
+
+	private final boolean doCollect;
+
+	private final int deltaZCollect;
+
+	private final int sourceTAxis;
+
+	private final CalibratedAxis[] timePointAxes;
+
+	private final long[] outputDims;
+
+	private final CalibratedAxis[] outputAxes;
+
+	private final int outputTAxis;
+
+	private final int halo;
+
+	/**
+	 * Ops are stateful, so each loading thread uses its own.
+	 */
+	private final ThreadLocal< ReferenceSurfaceOp< T > > referenceSurfaceOps;
+
+	private final ThreadLocal< ProjectorOp< T > > projectorOps;
+
+	/**
+	 * Creates the loader of a lazy projection.
+	 *
+	 * @param ops
+	 *            the op environment.
+	 * @param source
+	 *            the source image. X and Y must be the first two dimensions,
+	 *            and it must have a Z axis.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters.
+	 * @param extractSurfaceParams
+	 *            the extract surface parameters.
+	 */
+	public LazyLocalZProjection(
+			final OpEnvironment ops,
+			final ImgPlus< T > source,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams )
+	{
+		final int zAxis = source.dimensionIndex( Axes.Z );
+		if ( zAxis < 0 )
+			throw new IllegalArgumentException( "Expected source to have a Z axis." );
+
+		this.ops = ops;
+		this.source = source;
+		this.referenceSurfaceParams = referenceSurfaceParams;
+		this.extractSurfaceParams = extractSurfaceParams;
+
+		final int nChannels = ( int ) Math.max( 1, source.dimension( Axes.CHANNEL ) );
+		final CompiledExtractSurfaceParameters compiledParams = extractSurfaceParams.compile( nChannels );
+		this.doCollect = compiledParams.isCollect();
+		this.deltaZCollect = compiledParams.collectDeltaZ();
+		this.sourceTAxis = source.dimensionIndex( Axes.TIME );
+		this.timePointAxes = ImgPlusUtil.hypersliceAxes( source, Axes.TIME );
+
+		// Same layout as the output of the local projection op.
+		final int nOut = doCollect ? source.numDimensions() : source.numDimensions() - 1;
+		this.outputDims = new long[ nOut ];
+		this.outputAxes = new CalibratedAxis[ nOut ];
+		int id = 0;
+		int tAxis = -1;
+		for ( int d = 0; d < source.numDimensions(); d++ )
+		{
+			if ( d == zAxis )
+			{
+				if ( !doCollect )
+					continue;
+				outputDims[ id ] = 1 + 2 * deltaZCollect;
+			}
+			else
+			{
+				outputDims[ id ] = source.dimension( d );
+			}
+			if ( d == sourceTAxis )
+				tAxis = id;
+			outputAxes[ id++ ] = source.axis( d );
+		}
+		this.outputTAxis = tAxis;
+
+		// Halo, in binned pixels, covering the smoothing, the focus filter and
+		// the median filter.
+		final int binning = Math.max( 1, referenceSurfaceParams.binning );
+		final int filterHalfSize = ( int ) Math.ceil( ( double ) referenceSurfaceParams.filterWindowSize / binning / 2. );
+		final int gaussHalfSize = ( int ) Math.ceil( 3. * referenceSurfaceParams.sigma );
+		this.halo = binning * ( 1 + filterHalfSize + gaussHalfSize + Math.max( 0, referenceSurfaceParams.medianHalfSize ) );
+
+		this.referenceSurfaceOps = ThreadLocal.withInitial( () -> createReferenceSurfaceOp() );
+		this.projectorOps = ThreadLocal.withInitial( () -> createProjectorOp() );
+	}
+
+	/**
+	 * Creates the lazy projection image.
+	 *
+	 * @param maxCachedCells
+	 *            the maximal number of cells kept in memory.
+	 * @return a new cached cell image.
+	 */
+	public CachedCellImg< T, ? > createImg( final long maxCachedCells )
+	{
+		final int[] cellDimensions = new int[ outputDims.length ];
+		for ( int d = 0; d < cellDimensions.length; d++ )
+			cellDimensions[ d ] = ( int ) Math.min( Integer.MAX_VALUE, outputDims[ d ] );
+		setTileSize( cellDimensions );
+		if ( outputTAxis >= 0 )
+			cellDimensions[ outputTAxis ] = 1;
+
+		return new ReadOnlyCachedCellImgFactory( options( cellDimensions, maxCachedCells ) )
+				.create( outputDims, source.firstElement().createVariable(), this );
+	}
+
+	/**
+	 * Creates the lazy image of the reference surfaces, as a X, Y image, plus
+	 * T as third dimension if the source has a time axis. It is computed
+	 * tile per tile like the projection, but independently from it.
+	 *
+	 * @param maxCachedCells
+	 *            the maximal number of cells kept in memory.
+	 * @return a new cached cell image.
+	 */
+	public CachedCellImg< UnsignedShortType, ? > createReferenceSurfaceImg( final long maxCachedCells )
+	{
+		final long[] dims = ( sourceTAxis < 0 )
+				? new long[] { source.dimension( 0 ), source.dimension( 1 ) }
+				: new long[] { source.dimension( 0 ), source.dimension( 1 ), source.dimension( sourceTAxis ) };
+		final int[] cellDimensions = new int[ dims.length ];
+		Arrays.fill( cellDimensions, 1 );
+		setTileSize( cellDimensions );
+
+		final CellLoader< UnsignedShortType > loader = cell -> {
+			final long t = ( sourceTAxis < 0 ) ? 0 : cell.min( 2 );
+			final RandomAccessibleInterval< UnsignedShortType > surface = computeSurface( t, cell.min( 0 ), cell.max( 0 ), cell.min( 1 ), cell.max( 1 ) );
+			final RandomAccessibleInterval< UnsignedShortType > target = ( sourceTAxis < 0 )
+					? Views.zeroMin( cell )
+					: Views.zeroMin( Views.hyperSlice( cell, 2, t ) );
+			LoopBuilder.setImages( surface, target ).forEachPixel( ( i, o ) -> o.set( i ) );
+		};
+		return new ReadOnlyCachedCellImgFactory( options( cellDimensions, maxCachedCells ) )
+				.create( dims, new UnsignedShortType(), loader );
+	}
+
+	/**
+	 * Tiles aligned on the source cells, but not smaller than the default so
+	 * that the halo stays small compared to the tile.
+	 */
+	private void setTileSize( final int[] cellDimensions )
+	{
+		final int[] tileSize = SurfaceStatistics.tileSize( source );
+		for ( int d = 0; d < 2; d++ )
+			cellDimensions[ d ] = tileSize[ d ] * ( ( SurfaceStatistics.DEFAULT_TILE_SIZE + tileSize[ d ] - 1 ) / tileSize[ d ] );
+	}
+
+	private static ReadOnlyCachedCellImgOptions options( final int[] cellDimensions, final long maxCachedCells )
+	{
+		return ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( cellDimensions )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( Math.max( 1, maxCachedCells ) );
+	}
+
+	/**
+	 * Returns the axes of the lazy projection image, in the order of its
+	 * dimensions.
+	 *
+	 * @return the axes.
+	 */
+	public CalibratedAxis[] getOutputAxes()
+	{
+		return outputAxes;
+	}
+
+	@Override
+	public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+	{
+		final long t = ( outputTAxis < 0 ) ? 0 : cell.min( outputTAxis );
+		final RandomAccessibleInterval< UnsignedShortType > surface = computeSurface( t, cell.min( 0 ), cell.max( 0 ), cell.min( 1 ), cell.max( 1 ) );
+
+		// Projection on the tile.
+		final RandomAccessibleInterval< T > tp = timePoint( t );
+		final long[] tileMin = new long[ tp.numDimensions() ];
+		final long[] tileMax = new long[ tp.numDimensions() ];
+		tp.min( tileMin );
+		tp.max( tileMax );
+		for ( int d = 0; d < 2; d++ )
+		{
+			tileMin[ d ] = cell.min( d );
+			tileMax[ d ] = cell.max( d );
+		}
+		final ImgPlus< T > tile = wrap( Views.zeroMin( Views.interval( tp, tileMin, tileMax ) ), t );
+		final RandomAccessibleInterval< T > target = ( outputTAxis < 0 )
+				? Views.zeroMin( cell )
+				: Views.zeroMin( Views.hyperSlice( cell, outputTAxis, t ) );
+		projectorOps.get().compute( tile, surface, target );
+	}
+
+	/**
+	 * Computes the reference surface on the specified XY tile of a
+	 * time-point, from the tile enlarged by the halo. The returned surface
+	 * has the size of the tile, and a min at 0.
+	 */
+	private RandomAccessibleInterval< UnsignedShortType > computeSurface( final long t, final long x0, final long x1, final long y0, final long y1 )
+	{
+		final RandomAccessibleInterval< T > tp = timePoint( t );
+
+		// Tile enlarged by the halo, aligned on the binning grid.
+		final int binning = Math.max( 1, referenceSurfaceParams.binning );
+		final long[] haloMin = new long[ tp.numDimensions() ];
+		final long[] haloMax = new long[ tp.numDimensions() ];
+		tp.min( haloMin );
+		tp.max( haloMax );
+		final long[] tileMin = new long[] { x0, y0 };
+		final long[] tileMax = new long[] { x1, y1 };
+		for ( int d = 0; d < 2; d++ )
+		{
+			haloMin[ d ] = Math.max( tp.min( d ), Math.floorDiv( tileMin[ d ] - halo, binning ) * binning );
+			haloMax[ d ] = Math.min( tp.max( d ), ( Math.floorDiv( tileMax[ d ] + halo, binning ) + 1 ) * binning - 1 );
+		}
+
+		final ImgPlus< T > haloTile = wrap( Views.zeroMin( Views.interval( tp, haloMin, haloMax ) ), t );
+		final ImgPlus< T > channel = ImgPlusUtil.hypersliceChannel( haloTile, referenceSurfaceParams.targetChannel );
+		final Img< UnsignedShortType > haloSurface = referenceSurfaceOps.get().calculate( channel );
+		return Views.zeroMin( Views.interval( haloSurface,
+				new long[] { x0 - haloMin[ 0 ], y0 - haloMin[ 1 ] },
+				new long[] { x1 - haloMin[ 0 ], y1 - haloMin[ 1 ] } ) );
+	}
+
+	private RandomAccessibleInterval< T > timePoint( final long t )
+	{
+		return ( sourceTAxis < 0 )
+				? source
+				: Views.hyperSlice( source, sourceTAxis, t );
+	}
+
+	private ImgPlus< T > wrap( final RandomAccessibleInterval< T > rai, final long t )
+	{
+		return new ImgPlus<>( ImgPlusUtil.wrapToImg( rai ), "Time-point " + t + "  of " + source.getName(), timePointAxes );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private ReferenceSurfaceOp< T > createReferenceSurfaceOp()
+	{
+		return ( ReferenceSurfaceOp ) Functions.unary(
+				ops,
+				ReferenceSurfaceOp.class,
+				Img.class,
+				ImgPlus.class,
+				referenceSurfaceParams );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private ProjectorOp< T > createProjectorOp()
+	{
+		if ( doCollect )
+			return ( CollectVolumeOp ) Computers.binary( ops,
+					CollectVolumeOp.class,
+					RandomAccessibleInterval.class,
+					ImgPlus.class,
+					RandomAccessibleInterval.class,
+					extractSurfaceParams,
+					deltaZCollect );
+
+		return ( ExtractSurfaceOnePassOp ) Computers.binary( ops,
+				ExtractSurfaceOnePassOp.class,
+				RandomAccessibleInterval.class,
+				ImgPlus.class,
+				RandomAccessibleInterval.class,
+				extractSurfaceParams );
+	}
+}
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * A lazy view on the volume collected around the reference surface.
+ * <p>
+ * This view has the same dimensions as the source image, except along Z where
+ * it has <code>1 + 2 * deltaZ</code> layers. Pixel values are read from the
+ * source on access, at the Z position given by the reference surface, the
+ * channel offset and the layer index. Nothing is copied, so browsing or
+ * cropping the view costs only what is accessed. Pixels that fall outside of
+ * the source are 0.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the source image.
+ */
+public class LocalVolumeView< T extends RealType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+
+	private final RandomAccessible< T > source;
+
+	private final RandomAccessibleInterval< UnsignedShortType > surfaces;
+
+	private final int zAxis;
+
+	private final int cAxis;
+
+	private final int tAxis;
+
+	private final int deltaZ;
+
+	private final int[] offsets;
+
+	/**
+	 * Creates a new view.
+	 *
+	 * @param source
+	 *            the source image. X and Y must be the first two dimensions.
+	 * @param zAxis
+	 *            the index of the Z axis in the source.
+	 * @param cAxis
+	 *            the index of the channel axis in the source, or -1 if there
+	 *            is none.
+	 * @param tAxis
+	 *            the index of the time axis in the source, or -1 if there is
+	 *            none.
+	 * @param surfaces
+	 *            the reference surfaces, as a X, Y image, plus T as third
+	 *            dimension if the source has a time axis.
+	 * @param deltaZ
+	 *            the half-range of the collected volume.
+	 * @param offsets
+	 *            the Z offset to use for each channel.
+	 */
+	public LocalVolumeView(
+			final RandomAccessibleInterval< T > source,
+			final int zAxis,
+			final int cAxis,
+			final int tAxis,
+			final RandomAccessibleInterval< UnsignedShortType > surfaces,
+			final int deltaZ,
+			final int[] offsets )
+	{
+		super( collectedInterval( source, zAxis, deltaZ ) );
+		this.source = Views.extendZero( source );
+		this.zAxis = zAxis;
+		this.cAxis = cAxis;
+		this.tAxis = tAxis;
+		this.surfaces = surfaces;
+		this.deltaZ = deltaZ;
+		this.offsets = offsets;
+	}
+
+	private static long[] collectedInterval( final Interval source, final int zAxis, final int deltaZ )
+	{
+		final long[] dims = new long[ source.numDimensions() ];
+		source.dimensions( dims );
+		dims[ zAxis ] = 1 + 2 * deltaZ;
+		return dims;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new LocalVolumeRandomAccess();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	private final class LocalVolumeRandomAccess extends Point implements RandomAccess< T >
+	{
+
+		private final RandomAccess< T > sourceRa;
+
+		private final RandomAccess< UnsignedShortType > surfaceRa;
+
+		private LocalVolumeRandomAccess()
+		{
+			super( LocalVolumeView.this.numDimensions() );
+			this.sourceRa = source.randomAccess();
+			this.surfaceRa = surfaces.randomAccess();
+		}
+
+		private LocalVolumeRandomAccess( final LocalVolumeRandomAccess ra )
+		{
+			this();
+			setPosition( ra );
+		}
+
+		@Override
+		public T get()
+		{
+			surfaceRa.setPosition( position[ 0 ], 0 );
+			surfaceRa.setPosition( position[ 1 ], 1 );
+			if ( tAxis >= 0 )
+				surfaceRa.setPosition( position[ tAxis ], 2 );
+			final int s = surfaceRa.get().get();
+			final int offset = cAxis < 0 ? offsets[ 0 ] : offsets[ ( int ) position[ cAxis ] ];
+
+			for ( int d = 0; d < n; d++ )
+				sourceRa.setPosition( d == zAxis ? s - deltaZ + position[ d ] + offset : position[ d ], d );
+			return sourceRa.get();
+		}
+
+		@Override
+		public LocalVolumeRandomAccess copy()
+		{
+			return new LocalVolumeRandomAccess( this );
+		}
+
+		public LocalVolumeRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+}
@@ -32,20 +32,44 @@
  */
 package fr.pasteur.iah.localzprojector.process;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
 
 import org.scijava.Cancelable;
 import org.scijava.ItemIO;
 import org.scijava.app.StatusService;
 import org.scijava.display.DisplayService;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.util.VersionUtils;
 
 import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import fr.pasteur.iah.localzprojector.util.AsyncDatasetWriter;
 import fr.pasteur.iah.localzprojector.util.ImgPlusUtil;
+import fr.pasteur.iah.localzprojector.util.StageTimings;
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
+import fr.pasteur.iah.localzprojector.util.ThrottledDisplayUpdater;
+import fr.pasteur.iah.localzprojector.util.TimePointPipeline;
 import io.scif.services.DatasetIOService;
 import net.imagej.Dataset;
 import net.imagej.DefaultDataset;
@@ -62,10 +86,12 @@ import net.imagej.ops.special.function.Functions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
 import net.imglib2.img.ImgView;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -92,6 +118,166 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 	@Parameter( type = ItemIO.INPUT, required = false )
 	protected String saveFolder = System.getProperty( "user.home" );
 
+	/**
+	 * If <code>true</code> and the {@link ProjectionMethod#COLLECT} method is
+	 * used, the output is a lazy view computed on access from the source and
+	 * the reference surfaces, instead of a volume copied in memory. Since
+	 * nothing is computed until the view is accessed, it cannot be combined
+	 * with {@link #saveAtEachTimePoint}, {@link #showOutputDuringCalculation},
+	 * {@link #streamOutput}, {@link #sink} or {@link #n5Output}.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean lazyCollect = false;
+
+	/**
+	 * If <code>true</code>, time-points are processed in a pipeline: the next
+	 * time-point is loaded in memory while the current one is projected, and
+	 * the previous one is displayed and saved. Otherwise time-points are
+	 * processed strictly one after the other.
+	 * <p>
+	 * A time-point read ahead is copied in the heap, which costs one
+	 * time-point of memory per time-point in flight, and reads all of it
+	 * even where the projection would skip tiles or Z slices. Sources stored
+	 * in cells, such as BDV, HDF5 or N5 images, are not copied: they are
+	 * read lazily by the projection, and only gain the overlap with saving.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean pipelined = false;
+
+	/**
+	 * The heap memory, in bytes, that can be used to process several
+	 * time-points concurrently. The number of concurrent time-points is
+	 * determined from this budget and from the memory estimated for one
+	 * time-point, and the processors are shared between them. If 0,
+	 * time-points are processed one at a time.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected long memoryBudget = 0;
+
+	/**
+	 * The number of threads used to save the time-points in the background
+	 * when {@link #saveAtEachTimePoint} is <code>true</code>.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected int writerThreads = 1;
+
+	/**
+	 * If <code>true</code>, the output is not accumulated over time. Each
+	 * time-point is allocated on its own, passed to the {@link #sink} and
+	 * saved if {@link #saveAtEachTimePoint} is <code>true</code>, then
+	 * released. Nothing is displayed, and {@link #calculate(Dataset)} returns
+	 * <code>null</code>. Ignored if the output is a lazy view.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean streamOutput = false;
+
+	/**
+	 * Receives the results of each time-point, in order. If not
+	 * <code>null</code>, the output is streamed, as with
+	 * {@link #streamOutput}.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected TimePointSink< T > sink;
+
+	/**
+	 * If <code>true</code> and {@link #saveAtEachTimePoint} is
+	 * <code>true</code>, the run can be resumed. A manifest is saved in the
+	 * save folder, recording the time-points whose files are complete. When a
+	 * run with the same parameters is started again on the same input, these
+	 * time-points are checked and read back from their files instead of
+	 * being processed again.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean resume = false;
+
+	/**
+	 * If not <code>null</code>, the path of an N5 container in which the
+	 * projections, and the reference surfaces if
+	 * {@link #showReferenceSurface} is <code>true</code>, are written as
+	 * they are computed. A BigDataViewer XML file is written next to it. The
+	 * output is streamed, as with {@link #streamOutput}.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected String n5Output;
+
+	/**
+	 * The maximal number of display refreshes per second when
+	 * {@link #showOutputDuringCalculation} is <code>true</code>. Time-points
+	 * computed faster than this are not all shown. If 0, displays are
+	 * refreshed as fast as they can.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected double displayRefreshRate = 5.;
+
+	/**
+	 * If not <code>null</code>, the path of a file in which the time spent in
+	 * each stage of the run and the amount of data processed are written at
+	 * the end of the run. As CSV if the file name ends with <code>.csv</code>,
+	 * as JSON otherwise.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected String reportFile;
+
+	/**
+	 * If <code>true</code>, the execution strategy is selected from the
+	 * memory estimated for the run: the output is streamed if the whole
+	 * movie does not fit in memory and the time-points are saved or passed
+	 * to a sink, large images are stored in cells, and images that do not
+	 * fit in memory otherwise are stored in cells cached on disk. See
+	 * {@link #plan(Dataset)}.
+	 * <p>
+	 * Off by default, because it changes what the op returns: when the
+	 * output is streamed, the time-points are only saved and the output
+	 * dataset is <code>null</code>, and images may be stored on disk rather
+	 * than in memory. Callers that rely on the returned dataset should leave
+	 * it off.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean automaticStrategy = false;
+
+	/**
+	 * If not <code>null</code>, how to store the output, the reference
+	 * surfaces and the reference surface of each time-point, regardless of
+	 * the memory estimate. With {@link ExecutionPlan.Storage#DISK}, they are
+	 * stored in cells cached on disk, which allows processing images larger
+	 * than the heap.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected ExecutionPlan.Storage bufferStorage;
+
+	/**
+	 * If <code>true</code> and {@link #saveAtEachTimePoint} is
+	 * <code>true</code>, the input is treated as a growing acquisition. As
+	 * with {@link #resume}, the time-points already saved by previous runs
+	 * with the same parameters are not processed again, even if time-points
+	 * were appended to the input since. Only the new time-points are
+	 * processed and saved next to the previous ones. File names use a fixed
+	 * number of digits so that they do not change as the acquisition grows.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected boolean incremental = false;
+
+	/**
+	 * If strictly positive, the reference surface of a time-point is only
+	 * searched within this many Z slices of the surface of the previous
+	 * time-point, which is faster when the sample moves slowly. Otherwise the
+	 * whole Z range of the parameters is searched.
+	 * <p>
+	 * Only the time-point just before is used, so that the result does not
+	 * depend on the order in which concurrent time-points complete. When it
+	 * is processed in the same run, the reference surface of a time-point
+	 * waits for the one of the previous time-point. When its surface is not
+	 * known, the whole Z range is searched.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected int warmStartMargin = 0;
+
+	/**
+	 * The minimal number of digits of the time-point in file names, in
+	 * incremental mode.
+	 */
+	private static final int INCREMENTAL_DIGITS = 6;
+
 	@Parameter
 	protected DisplayService displayService;
 
@@ -104,6 +290,9 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 	@Parameter
 	private AutoscaleService autoscaleService;
 
+	@Parameter
+	private LogService log;
+
 	protected String cancelReason;
 
 	protected Cancelable cancelable;
@@ -113,12 +302,71 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 	 */
 	private DefaultDataset referenceSurfaces;
 
-	@SuppressWarnings( "unchecked" )
+	/**
+	 * The workers of the current run.
+	 */
+	private volatile List< TimePointWorker > workers = Collections.emptyList();
+
+	/**
+	 * The files that could not be saved during the last run.
+	 */
+	private List< AsyncDatasetWriter.Failure > writeFailures = Collections.emptyList();
+
+	/**
+	 * The timings of the last run.
+	 */
+	private StageTimings timings = StageTimings.DISABLED;
+
+	/**
+	 * The execution plan of the last run.
+	 */
+	private ExecutionPlan plan;
+
+	/**
+	 * The reference surface and projector ops of each worker of the last run,
+	 * with their scratch images. Reused by the next runs as long as the input
+	 * has the same geometry.
+	 */
+	private final List< ReferenceSurfaceOp< T > > pooledReferenceSurfaceOps = new ArrayList<>();
+
+	private final List< ProjectorOp< T > > pooledProjectorOps = new ArrayList<>();
+
+	private String pooledGeometry;
+
 	@Override
 	public Dataset calculate( final Dataset input )
 	{
 		cancelReason = null;
+		plan = null;
+		writeFailures = Collections.emptyList();
+		timings = new StageTimings();
+		final long start = timings.start();
+		try
+		{
+			return project( input );
+		}
+		finally
+		{
+			if ( null != plan )
+				plan.deleteCache();
+			timings.stop( StageTimings.TOTAL, start );
+			if ( null != reportFile )
+			{
+				try
+				{
+					timings.write( new File( reportFile ) );
+				}
+				catch ( final IOException e )
+				{
+					log.error( "Could not write the timing report " + reportFile + ".", e );
+				}
+			}
+		}
+	}
 
+	@SuppressWarnings( "unchecked" )
+	private Dataset project( final Dataset input )
+	{
 		/*
 		 * Do we have a Z axis?
 		 */
@@ -131,17 +379,19 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 		 * Do we have to project or collect a thick slice?
 		 */
 
-		boolean doCollect = false;
-		int deltaZCollect = 0;
-		final long nChannels = input.dimension( Axes.CHANNEL );
-		for ( int c = 0; c < nChannels; c++ )
-		{
-			if ( extractSurfaceParams.projectionMethod( c ).equals( ProjectionMethod.COLLECT ) )
-			{
-				doCollect = true;
-				deltaZCollect = Math.max( deltaZCollect, Math.abs( extractSurfaceParams.deltaZ( c ) ) );
-			}
-		}
+		final int nChannels = ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) );
+		final CompiledExtractSurfaceParameters compiledParams = extractSurfaceParams.compile( nChannels );
+		final boolean doCollect = compiledParams.isCollect();
+		final int deltaZCollect = compiledParams.collectDeltaZ();
+		if ( doCollect && lazyCollect )
+			checkLazyCollect();
+
+		plan = plan( input );
+		bindOps( input );
+		log.debug( plan );
+		if ( !plan.fits() )
+			log.warn( "The estimated peak memory of the run (" + ( plan.peakBytes >> 20 ) + " MB) exceeds the available memory ("
+					+ ( plan.availableBytes >> 20 ) + " MB). Consider saving or streaming the output, or increasing the binning." );
 
 		final String outputName = doCollect
 				? "Local Volume of " + input.getName()
@@ -157,7 +407,164 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 		final long[] outputDims = doCollect
 				? new long[ input.numDimensions() ]
 				: new long[ input.numDimensions() - 1 ];
+		outputLayout( input, doCollect, deltaZCollect, outputDims, outputAxes );
+
+		// Dimensions and axes of a single time-point of the output.
+		int outputTAxis = -1;
+		for ( int d = 0; d < outputAxes.length; d++ )
+			if ( outputAxes[ d ].type() == Axes.TIME )
+				outputTAxis = d;
+		final long[] frameDims = outputTAxis < 0
+				? outputDims
+				: new long[ outputDims.length - 1 ];
+		final CalibratedAxis[] frameAxes = outputTAxis < 0
+				? outputAxes
+				: new CalibratedAxis[ outputAxes.length - 1 ];
+		if ( outputTAxis >= 0 )
+		{
+			int id3 = 0;
+			for ( int d = 0; d < outputDims.length; d++ )
+			{
+				if ( d == outputTAxis )
+					continue;
+				frameDims[ id3 ] = outputDims[ d ];
+				frameAxes[ id3++ ] = outputAxes[ d ];
+			}
+		}
+
+		/*
+		 * Stores reference surface in a dataset.
+		 */
+
+		// Not in streaming mode, unless we need all of them for the lazy view.
+		final boolean streaming = plan.streaming;
+		if ( streaming && !( streamOutput || null != sink || null != n5Output ) )
+			log.info( "The output of " + input.getName() + " does not fit in memory. Time-points are saved but not accumulated." );
+		final boolean lazy = doCollect && lazyCollect;
+		referenceSurfaces = null;
+		if ( !streaming || lazy )
+		{
+			referenceSurfaces = createReferenceSurfaces( input );
+		}
+
+		/*
+		 * Process time-point by time-point.
+		 */
+
+		// Create reference surface op.
+		final ReferenceSurfaceOp< T > referenceSurfaceOp = pooledReferenceSurfaceOp( input, 0 );
+
+		if ( lazy )
+			return calculateLazyCollect( input, referenceSurfaceOp, compiledParams, outputName, outputAxes );
+
+		/*
+		 * Create output. Not in streaming mode, where time-points are created
+		 * one by one.
+		 */
+
+		final ImgPlus< T > outImgPlus;
+		final DefaultDataset output;
+		if ( streaming )
+		{
+			outImgPlus = null;
+			output = null;
+		}
+		else
+		{
+			final Img< T > outputImg = plan.createImg( FinalDimensions.wrap( outputDims ), ( T ) input.firstElement(), plan.outputStorage );
+			outImgPlus = new ImgPlus<>( outputImg, outputName, outputAxes );
+			output = new DefaultDataset( ops().context(), outImgPlus );
+		}
+
+		/*
+		 * How many time-points can we process concurrently?
+		 */
+
+		final long nFrames = input.getFrames();
+		final int nConcurrentFrames = plan.concurrentFrames;
+		// Share the threads available to the caller between time-points.
+		final int threadsPerFrame = Math.max( 1, ThreadBudget.threads() / nConcurrentFrames );
+
+		final boolean prefetch = pipelined || nConcurrentFrames > 1;
+		final AsyncDatasetWriter fileWriter = saveAtEachTimePoint
+				? new AsyncDatasetWriter( ioService, log, Math.max( 1, writerThreads ), Math.max( 1, writerThreads ) )
+				: null;
+		if ( null != fileWriter )
+			fileWriter.setTimings( timings );
+		final TimePointSink< T > outputSink = createSink( input );
+		final TimePointStages stages = new TimePointStages( input, outImgPlus, output, frameDims, frameAxes, prefetch, fileWriter, outputSink );
+
+		// One set of ops per concurrent time-point.
+		final List< TimePointWorker > workerList = new ArrayList<>( nConcurrentFrames );
+		workerList.add( new TimePointWorker( stages, referenceSurfaceOp, pooledProjectorOp( 0, doCollect, deltaZCollect ), threadsPerFrame ) );
+		for ( int i = 1; i < nConcurrentFrames; i++ )
+			workerList.add( new TimePointWorker( stages, pooledReferenceSurfaceOp( input, i ), pooledProjectorOp( i, doCollect, deltaZCollect ), threadsPerFrame ) );
+		workers = workerList;
+
+		// Skip the time-points already saved by a previous run?
+		final long[] timePoints;
+		if ( ( resume || incremental ) && saveAtEachTimePoint )
+		{
+			timePoints = stages.resume();
+		}
+		else
+		{
+			if ( resume || incremental )
+				log.warn( "Resuming requires saving at each time-point. Processing all time-points." );
+			timePoints = new long[ ( int ) nFrames ];
+			for ( int i = 0; i < timePoints.length; i++ )
+				timePoints[ i ] = i;
+		}
+		if ( warmStartMargin > 0 )
+			stages.expectSurfaceRanges( timePoints );
+
+		try
+		{
+			if ( prefetch )
+			{
+				new TimePointPipeline< ImgPlus< T >, TimePointResult< T > >(
+						stages::load,
+						workerList,
+						stages::write,
+						this,
+						1 ).run( timePoints );
+			}
+			else
+			{
+				final TimePointWorker worker = workerList.get( 0 );
+				for ( final long t : timePoints )
+				{
+					final TimePointResult< T > result = worker.process( t, stages.load( t ) );
+					if ( result == null )
+						break;
+					stages.write( t, result );
+				}
+			}
+		}
+		finally
+		{
+			stages.closeDisplays();
+			if ( null != fileWriter )
+			{
+				status.showStatus( "Waiting for files to be saved..." );
+				fileWriter.close();
+				writeFailures = fileWriter.getFailures();
+			}
+			if ( null != outputSink )
+				outputSink.close();
+		}
+
+		return output;
+	}
 
+	/**
+	 * Fills the dimensions and axes of the output: those of the input without
+	 * Z, or with <code>1 + 2 * deltaZCollect</code> layers along Z when
+	 * collecting.
+	 */
+	private static void outputLayout( final Dataset input, final boolean doCollect, final int deltaZCollect, final long[] outputDims, final CalibratedAxis[] outputAxes )
+	{
+		final int zAxis = input.dimensionIndex( Axes.Z );
 		int id = 0;
 		for ( int d = 0; d < input.numDimensions(); d++ )
 		{
@@ -177,15 +584,15 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 				outputAxes[ id++ ] = input.axis( d );
 			}
 		}
-		final Img< T > outputImg = ops().create().img( FinalDimensions.wrap( outputDims ), ( T ) input.firstElement() );
-		final ImgPlus< T > outImgPlus = new ImgPlus<>( outputImg, outputName, outputAxes );
-		final DefaultDataset output = new DefaultDataset( ops().context(), outImgPlus );
-
-		/*
-		 * Stores reference surface in a dataset.
-		 */
+	}
 
-		// We want single channel & single Z.
+	/**
+	 * Creates the dataset that stores the reference surfaces: single channel
+	 * and single Z.
+	 */
+	private DefaultDataset createReferenceSurfaces( final Dataset input )
+	{
+		final int zAxis = input.dimensionIndex( Axes.Z );
 		final int cAxis = input.dimensionIndex( Axes.CHANNEL );
 		final long[] refSurfaceDims = cAxis < 0
 				? new long[ input.numDimensions() - 1 ]
@@ -193,43 +600,167 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 		final CalibratedAxis[] refSurfaceAxes = cAxis < 0
 				? new CalibratedAxis[ input.numDimensions() - 1 ]
 				: new CalibratedAxis[ input.numDimensions() - 2 ];
-		int id2 = 0;
+		int id = 0;
 		for ( int d = 0; d < input.numDimensions(); d++ )
 		{
 			if ( d == cAxis || d == zAxis )
 				continue;
-			refSurfaceDims[ id2 ] = input.dimension( d );
-			refSurfaceAxes[ id2++ ] = input.axis( d );
+			refSurfaceDims[ id ] = input.dimension( d );
+			refSurfaceAxes[ id++ ] = input.axis( d );
 		}
-		final Img< UnsignedShortType > refSurfaceImg = ops().create().img( FinalDimensions.wrap( refSurfaceDims ), new UnsignedShortType() );
+		final Img< UnsignedShortType > refSurfaceImg = plan.createImg( FinalDimensions.wrap( refSurfaceDims ), new UnsignedShortType(), plan.referenceSurfacesStorage );
 		final ImgPlus< UnsignedShortType > refSurfaceImgPlus = new ImgPlus<>( refSurfaceImg, "Reference surface of " + input.getName(), refSurfaceAxes );
-		referenceSurfaces = new DefaultDataset( ops().context(), refSurfaceImgPlus );
+		return new DefaultDataset( ops().context(), refSurfaceImgPlus );
+	}
 
-		/*
-		 * Show output?
-		 */
+	/**
+	 * Returns the sink that receives the time-points in streaming mode: the
+	 * user sink, the N5 container, both or none.
+	 */
+	private TimePointSink< T > createSink( final Dataset input )
+	{
+		if ( null == n5Output )
+			return sink;
 
-		ImageDisplay referenceSurfaceDisplay = null;
-		ImageDisplay projectionDisplay = null;
+		final N5TimePointSink< T > n5Sink;
+		try
+		{
+			n5Sink = new N5TimePointSink<>( n5Output, showReferenceSurface, N5TimePointSink.DEFAULT_BLOCK_SIZE, Math.max( 1, writerThreads ) );
+			n5Sink.setAttribute( "source", input.getName() );
+			n5Sink.setAttribute( "referenceSurfaceParameters", referenceSurfaceParams );
+			n5Sink.setAttribute( "extractSurfaceParameters", extractSurfaceParams );
+			n5Sink.setAttribute( "version", getVersion() );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "Cannot create the N5 container " + n5Output + ".", e );
+		}
+		if ( null == sink )
+			return n5Sink;
 
-		/*
-		 * Process time-point by time-point.
-		 */
+		final TimePointSink< T > userSink = sink;
+		return new TimePointSink< T >()
+		{
+			@Override
+			public void accept( final TimePointResult< T > result )
+			{
+				n5Sink.accept( result );
+				userSink.accept( result );
+			}
 
-		// Create reference surface op.
-		@SuppressWarnings( "rawtypes" )
-		final ReferenceSurfaceOp< T > referenceSurfaceOp = ( ReferenceSurfaceOp ) Functions.unary(
+			@Override
+			public void close()
+			{
+				try
+				{
+					n5Sink.close();
+				}
+				finally
+				{
+					userSink.close();
+				}
+			}
+		};
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	private ReferenceSurfaceOp< T > createReferenceSurfaceOp( final Dataset input )
+	{
+		final ReferenceSurfaceOp< T > op = ( ReferenceSurfaceOp ) Functions.unary(
 				ops(),
 				ReferenceSurfaceOp.class,
 				Img.class,
 				ImgPlus.class,
-				referenceSurfaceParams );
+				referenceSurfaceParams,
+				plan.tileSize );
+		op.setTimings( timings );
+		if ( plan.surfaceStorage != ExecutionPlan.Storage.ARRAY )
+			op.setSurfaceFactory( plan.runImgFactory( new UnsignedShortType(), plan.surfaceStorage, 2 ) );
+		return op;
+	}
+
+	/**
+	 * Binds the ops of the workers to the geometry of the specified input, and
+	 * computes the execution plan. The ops are matched when first needed, and
+	 * are then reused, with their scratch images, by all the runs on inputs
+	 * of the same geometry. Calling this method is optional:
+	 * {@link #calculate(Dataset)} does it too.
+	 * 
+	 * @param input
+	 *            an input of the geometry to bind to.
+	 */
+	public void prepare( final Dataset input )
+	{
+		if ( input.dimensionIndex( Axes.Z ) < 0 )
+			return;
+		timings = new StageTimings();
+		plan = plan( input );
+		bindOps( input );
+
+		final int nChannels = ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) );
+		final CompiledExtractSurfaceParameters compiledParams = extractSurfaceParams.compile( nChannels );
+		for ( int i = 0; i < plan.concurrentFrames; i++ )
+		{
+			pooledReferenceSurfaceOp( input, i );
+			pooledProjectorOp( i, compiledParams.isCollect(), compiledParams.collectDeltaZ() );
+		}
+	}
+
+	/**
+	 * Discards the pooled ops if the specified input does not have the
+	 * geometry they were created for.
+	 */
+	private void bindOps( final Dataset input )
+	{
+		final String geometry = geometry( input ) + " " + Arrays.toString( plan.tileSize ) + " " + plan.surfaceStorage;
+		if ( geometry.equals( pooledGeometry ) )
+			return;
+		pooledReferenceSurfaceOps.clear();
+		pooledProjectorOps.clear();
+		pooledGeometry = geometry;
+	}
+
+	/**
+	 * Returns a string that identifies the dimensions, axes and pixel type of
+	 * the specified dataset.
+	 * 
+	 * @param input
+	 *            the dataset.
+	 * @return the geometry of the dataset.
+	 */
+	static String geometry( final Dataset input )
+	{
+		final StringBuilder str = new StringBuilder( input.firstElement().getClass().getSimpleName() );
+		for ( int d = 0; d < input.numDimensions(); d++ )
+			str.append( ' ' ).append( input.axis( d ).type() ).append( '=' ).append( input.dimension( d ) );
+		return str.toString();
+	}
+
+	private ReferenceSurfaceOp< T > pooledReferenceSurfaceOp( final Dataset input, final int i )
+	{
+		while ( pooledReferenceSurfaceOps.size() <= i )
+			pooledReferenceSurfaceOps.add( createReferenceSurfaceOp( input ) );
+		final ReferenceSurfaceOp< T > op = pooledReferenceSurfaceOps.get( i );
+		// Surfaces stored on disk get the factory of their time-point.
+		op.setTimings( timings );
+		op.setSearchRange( Integer.MIN_VALUE, Integer.MAX_VALUE );
+		return op;
+	}
 
-		// Create projection op.
-		final ProjectorOp< T > projectorOp;
+	private ProjectorOp< T > pooledProjectorOp( final int i, final boolean doCollect, final int deltaZCollect )
+	{
+		while ( pooledProjectorOps.size() <= i )
+			pooledProjectorOps.add( createProjectorOp( extractSurfaceParams, doCollect, deltaZCollect ) );
+		final ProjectorOp< T > op = pooledProjectorOps.get( i );
+		op.setTimings( timings );
+		return op;
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	private ProjectorOp< T > createProjectorOp( final ExtractSurfaceParameters extractSurfaceParams, final boolean doCollect, final int deltaZCollect )
+	{
 		if ( doCollect )
 		{
-			@SuppressWarnings( "rawtypes" )
 			final CollectVolumeOp< T > lop = ( CollectVolumeOp ) Computers.binary( ops(),
 					CollectVolumeOp.class,
 					RandomAccessibleInterval.class,
@@ -237,45 +768,523 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 					RandomAccessibleInterval.class,
 					extractSurfaceParams,
 					deltaZCollect );
-			projectorOp = lop;
+			lop.setTimings( timings );
+			return lop;
 		}
 		else
 		{
-			@SuppressWarnings( "rawtypes" )
 			final ExtractSurfaceOnePassOp< T > lop = ( ExtractSurfaceOnePassOp ) Computers.binary( ops(),
 					ExtractSurfaceOnePassOp.class,
 					RandomAccessibleInterval.class,
 					ImgPlus.class,
 					RandomAccessibleInterval.class,
 					extractSurfaceParams );
-
-			projectorOp = lop;
+			lop.setTimings( timings );
+			return lop;
 		}
+	}
 
-		final long nFrames = input.getFrames();
-		for ( long t = 0; t < nFrames; t++ )
-		{
-
-			status.showStatus( "Processing time-point " + t );
-			final ImgPlus< T > tp = getSourceTimePoint( ( ImgPlus< T > ) input.getImgPlus(), t, ops() );
-
-			/*
-			 * Get reference surface.
-			 */
+	/**
+	 * Returns the local projection of the specified input, computed on
+	 * demand. Nothing is computed by this method: each XY tile of each
+	 * time-point is computed when first accessed, and cached. See
+	 * {@link LazyLocalZProjection}.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @param maxCachedCells
+	 *            the maximal number of tiles kept in memory.
+	 * @return a new dataset, backed by a cached cell image.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public Dataset calculateLazy( final Dataset input, final long maxCachedCells )
+	{
+		final LazyLocalZProjection< T > projection = new LazyLocalZProjection<>(
+				ops(),
+				( ImgPlus< T > ) input.getImgPlus(),
+				referenceSurfaceParams,
+				extractSurfaceParams );
+		final String name = extractSurfaceParams.compile( ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) ) ).isCollect()
+				? "Local Volume of " + input.getName()
+				: "Local Z Projection of " + input.getName();
+		final ImgPlus< T > imgPlus = new ImgPlus<>( projection.createImg( maxCachedCells ), name, projection.getOutputAxes() );
+		return new DefaultDataset( ops().context(), imgPlus );
+	}
 
-			if ( isCanceled() )
-				return output;
-			cancelable = referenceSurfaceOp;
+	/**
+	 * Returns the local projection of the specified input, computed on
+	 * demand, keeping at most
+	 * {@link LazyLocalZProjection#DEFAULT_MAX_CACHED_CELLS} tiles in memory.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @return a new dataset, backed by a cached cell image.
+	 */
+	public Dataset calculateLazy( final Dataset input )
+	{
+		return calculateLazy( input, LazyLocalZProjection.DEFAULT_MAX_CACHED_CELLS );
+	}
 
-			final ImgPlus< T > channel = ImgPlusUtil.hypersliceChannel( tp, referenceSurfaceParams.targetChannel );
-			final Img< UnsignedShortType > referenceSurface = referenceSurfaceOp.calculate( channel );
-			copyOnReferenceSurfaceOutput( referenceSurface, ( ImgPlus< UnsignedShortType > ) referenceSurfaces.getImgPlus(), t );
+	/**
+	 * Computes the reference surface of each time-point of the specified
+	 * input with the current reference surface parameters. This is the first
+	 * phase of the two-phase API: the surfaces can then be passed to
+	 * {@link #project(Dataset, Dataset, ExtractSurfaceParameters)} as many
+	 * times as needed, for instance to try several extraction parameters.
+	 * Time-points are processed concurrently.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @return the reference surfaces, with the dimensions of the input
+	 *         without channels and Z.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public Dataset computeSurfaces( final Dataset input )
+	{
+		if ( input.dimensionIndex( Axes.Z ) < 0 )
+			throw new IllegalArgumentException( "Expected input to have a Z axis." );
 
-			/*
+		cancelReason = null;
+		timings = new StageTimings();
+		final long start = timings.start();
+		plan = plan( input );
+		final DefaultDataset surfaces = createReferenceSurfaces( input );
+		final ImgPlus< UnsignedShortType > out = ( ImgPlus< UnsignedShortType > ) surfaces.getImgPlus();
+		final ImgPlus< T > source = ( ImgPlus< T > ) input.getImgPlus();
+
+		try
+		{
+			forEachTimePoint( Math.max( 1, input.getFrames() ), () -> createReferenceSurfaceOp( input ), ( op, t ) -> {
+				if ( plan.surfaceStorage == ExecutionPlan.Storage.DISK )
+					op.setSurfaceFactory( plan.frameImgFactory( new UnsignedShortType(), plan.surfaceStorage, 2, t ) );
+				final ImgPlus< T > tp = ImgPlusUtil.hypersliceTimePoint( source, t );
+				final ImgPlus< T > channel = ImgPlusUtil.hypersliceChannel( tp, referenceSurfaceParams.targetChannel );
+				final Img< UnsignedShortType > surface = op.calculate( channel );
+				copyOnReferenceSurfaceOutput( surface, out, t );
+				plan.deleteFrameCache( t );
+			} );
+		}
+		finally
+		{
+			plan.deleteCache();
+		}
+		timings.stop( StageTimings.TOTAL, start );
+		return surfaces;
+	}
+
+	/**
+	 * Extracts the local projection of the specified input around reference
+	 * surfaces computed beforehand, for instance by
+	 * {@link #computeSurfaces(Dataset)}. This is the second phase of the
+	 * two-phase API. Time-points are processed concurrently. The parameters
+	 * of this op are not used, except for the storage of the output.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @param surfaces
+	 *            the reference surfaces, with the dimensions of the input
+	 *            without channels and Z.
+	 * @param extractSurfaceParams
+	 *            the extract surface parameters.
+	 * @return the local projection.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public Dataset project( final Dataset input, final Dataset surfaces, final ExtractSurfaceParameters extractSurfaceParams )
+	{
+		if ( input.dimensionIndex( Axes.Z ) < 0 )
+			throw new IllegalArgumentException( "Expected input to have a Z axis." );
+		if ( !( surfaces.firstElement() instanceof UnsignedShortType ) )
+			throw new IllegalArgumentException( "Expected reference surfaces to be 16-bit unsigned integer images." );
+		if ( surfaces.dimension( Axes.X ) != input.dimension( Axes.X )
+				|| surfaces.dimension( Axes.Y ) != input.dimension( Axes.Y )
+				|| Math.max( 1, surfaces.getFrames() ) != Math.max( 1, input.getFrames() ) )
+			throw new IllegalArgumentException( "Reference surfaces do not match the input size in X, Y or T." );
+
+		cancelReason = null;
+		timings = new StageTimings();
+		final long start = timings.start();
+		plan = ExecutionPlan.create( input, referenceSurfaceParams, extractSurfaceParams, false, false, false, 0, false, automaticStrategy, bufferStorage );
+
+		final int nChannels = ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) );
+		final CompiledExtractSurfaceParameters compiledParams = extractSurfaceParams.compile( nChannels );
+		final boolean doCollect = compiledParams.isCollect();
+		final int deltaZCollect = compiledParams.collectDeltaZ();
+		final int nOut = doCollect ? input.numDimensions() : input.numDimensions() - 1;
+		final long[] outputDims = new long[ nOut ];
+		final CalibratedAxis[] outputAxes = new CalibratedAxis[ nOut ];
+		outputLayout( input, doCollect, deltaZCollect, outputDims, outputAxes );
+		final String outputName = doCollect
+				? "Local Volume of " + input.getName()
+				: "Local Z Projection of " + input.getName();
+		final Img< T > outputImg = plan.createImg( FinalDimensions.wrap( outputDims ), ( T ) input.firstElement(), plan.outputStorage );
+		final ImgPlus< T > outImgPlus = new ImgPlus<>( outputImg, outputName, outputAxes );
+
+		final ImgPlus< T > source = ( ImgPlus< T > ) input.getImgPlus();
+		final ImgPlus< UnsignedShortType > surfacesImgPlus = ( ImgPlus< UnsignedShortType > ) surfaces.getImgPlus();
+		try
+		{
+			forEachTimePoint( Math.max( 1, input.getFrames() ), () -> createProjectorOp( extractSurfaceParams, doCollect, deltaZCollect ), ( op, t ) -> {
+				final ImgPlus< T > tp = ImgPlusUtil.hypersliceTimePoint( source, t );
+				final ImgPlus< UnsignedShortType > surface = ImgPlusUtil.hypersliceTimePoint( surfacesImgPlus, t );
+				final ImgPlus< T > outputSlice = ImgPlusUtil.hypersliceTimePoint( outImgPlus, t );
+				op.compute( tp, surface, outputSlice );
+				timings.count( StageTimings.FRAMES, 1 );
+			} );
+		}
+		finally
+		{
+			plan.deleteCache();
+		}
+		timings.stop( StageTimings.TOTAL, start );
+		return new DefaultDataset( ops().context(), outImgPlus );
+	}
+
+	/**
+	 * Runs a task on each time-point, concurrently. Each thread creates its
+	 * own op, and the processors are shared between threads.
+	 */
+	private < O extends Cancelable > void forEachTimePoint( final long nFrames, final Supplier< O > opFactory, final ObjLongConsumer< O > task )
+	{
+		final int nCores = ThreadBudget.threads();
+		final int nThreads = ( int ) Math.max( 1, Math.min( nFrames, nCores ) );
+		final int threadsPerFrame = Math.max( 1, nCores / nThreads );
+		final List< Cancelable > phaseOps = new CopyOnWriteArrayList<>();
+		cancelable = new Cancelable()
+		{
+			@Override
+			public boolean isCanceled()
+			{
+				return LocalZProjectionOp.this.isCanceled();
+			}
+
+			@Override
+			public void cancel( final String reason )
+			{
+				for ( final Cancelable op : phaseOps )
+					op.cancel( reason );
+			}
+
+			@Override
+			public String getCancelReason()
+			{
+				return LocalZProjectionOp.this.getCancelReason();
+			}
+		};
+		final ThreadLocal< O > localOps = ThreadLocal.withInitial( () -> {
+			final O op = opFactory.get();
+			phaseOps.add( op );
+			return op;
+		} );
+
+		final AtomicInteger progress = new AtomicInteger( 0 );
+		final ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>( ( int ) nFrames );
+			for ( long t = 0; t < nFrames; t++ )
+			{
+				final long tp = t;
+				futures.add( executor.submit( () -> {
+					if ( isCanceled() )
+						return;
+					ThreadBudget.set( threadsPerFrame );
+					try
+					{
+						task.accept( localOps.get(), tp );
+					}
+					finally
+					{
+						ThreadBudget.set( 0 );
+					}
+					status.showProgress( progress.incrementAndGet(), ( int ) nFrames );
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			cancel( "Interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			cancel( "Error while processing a time-point." );
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new RuntimeException( cause );
+		}
+		finally
+		{
+			executor.shutdownNow();
+			cancelable = null;
+		}
+	}
+
+	/**
+	 * Estimates the memory needed by a run on the specified input with the
+	 * current parameters, and returns the execution strategy selected from
+	 * it. Does not run anything.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @return the execution plan.
+	 */
+	public ExecutionPlan plan( final Dataset input )
+	{
+		final int nChannels = ( int ) Math.max( 1, input.dimension( Axes.CHANNEL ) );
+		final boolean lazy = lazyCollect && extractSurfaceParams.compile( nChannels ).isCollect();
+		final boolean canStream = saveAtEachTimePoint || null != sink || null != n5Output;
+		return ExecutionPlan.create(
+				input,
+				referenceSurfaceParams,
+				extractSurfaceParams,
+				streamOutput || null != sink || null != n5Output,
+				canStream,
+				lazy,
+				memoryBudget,
+				pipelined,
+				automaticStrategy,
+				bufferStorage );
+	}
+
+	/**
+	 * The loading and writing stages of the processing of a single
+	 * time-point. The processing stage is done by {@link TimePointWorker}s.
+	 */
+	private class TimePointStages
+	{
+
+		private final Dataset input;
+
+		private final ImgPlus< T > outImgPlus;
+
+		private final DefaultDataset output;
+
+		private final long[] frameDims;
+
+		private final CalibratedAxis[] frameAxes;
+
+		private final boolean copySource;
+
+		private final AsyncDatasetWriter fileWriter;
+
+		private final TimePointSink< T > outputSink;
+
+		/**
+		 * The factory of the reference surfaces stored on disk, when they are
+		 * handed over to the sink. They may be kept after the run, so they
+		 * are not stored in the cache directory of the run.
+		 */
+		private final ImgFactory< UnsignedShortType > sinkSurfaceFactory;
+
+		private final long nFrames;
+
+		private final String inputName;
+
+		private final int ndigits;
+
+		/**
+		 * The manifest of the run, if it can be resumed.
+		 */
+		private volatile ResumeManifest manifest;
+
+		/**
+		 * The Z range of the reference surface of the time-points processed
+		 * so far, to warm-start the next ones. Also the lock on which the
+		 * time-points wait for the surface of the previous one.
+		 */
+		private final Map< Long, int[] > surfaceRanges = new HashMap<>();
+
+		/**
+		 * The time-points of this run whose reference surface is not yet
+		 * recorded nor given up on.
+		 */
+		private final Set< Long > pendingSurfaces = new HashSet<>();
+
+		private volatile ThrottledDisplayUpdater displayUpdater;
+
+		private ImageDisplay referenceSurfaceDisplay;
+
+		private ImageDisplay projectionDisplay;
+
+		private TimePointStages(
+				final Dataset input,
+				final ImgPlus< T > outImgPlus,
+				final DefaultDataset output,
+				final long[] frameDims,
+				final CalibratedAxis[] frameAxes,
+				final boolean prefetch,
+				final AsyncDatasetWriter fileWriter,
+				final TimePointSink< T > outputSink )
+		{
+			this.input = input;
+			this.outImgPlus = outImgPlus;
+			this.output = output;
+			this.frameDims = frameDims;
+			this.frameAxes = frameAxes;
+			// Sources stored in cells are read lazily by the projection.
+			this.copySource = prefetch && ExecutionPlan.copiesPrefetchedTimePoints( input );
+			this.fileWriter = fileWriter;
+			this.outputSink = outputSink;
+			this.sinkSurfaceFactory = ( null != outputSink && plan.surfaceStorage == ExecutionPlan.Storage.DISK )
+					? plan.imgFactory( new UnsignedShortType(), plan.surfaceStorage, 2 )
+					: null;
+			this.nFrames = input.getFrames();
+
+			final String str = input.getName() == null
+					? "LocalZProjectorOutput"
+					: input.getName();
+			final int dotIndex = str.lastIndexOf( '.' );
+			this.inputName = dotIndex > 0
+					? str.substring( 0, dotIndex )
+					: str;
+			this.ndigits = incremental
+					? Math.max( INCREMENTAL_DIGITS, Long.toString( nFrames ).length() )
+					: Long.toString( nFrames ).length();
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private ImgPlus< T > load( final long t )
+		{
+			status.showStatus( "Processing time-point " + t );
+			final long start = timings.start();
+			final ImgPlus< T > tp = getSourceTimePoint( ( ImgPlus< T > ) input.getImgPlus(), t, ops() );
+			if ( !copySource )
+			{
+				timings.stop( StageTimings.FETCH, start );
+				return tp;
+			}
+
+			// Read the time-point now, in the loader thread.
+			final Img< T > copy = Util.getArrayOrCellImgFactory( tp, tp.firstElement() ).create( tp );
+			ops().copy().rai( copy, tp );
+			timings.stop( StageTimings.FETCH, start );
+			// The time-point has no time axis, so this returns all its axes.
+			return new ImgPlus<>( copy, tp.getName(), ImgPlusUtil.hypersliceAxes( tp, Axes.TIME ) );
+		}
+
+		/**
+		 * Creates the output of a single time-point, in streaming mode. The
+		 * sink may keep it after the run, otherwise it is deleted once
+		 * written.
+		 */
+		@SuppressWarnings( "unchecked" )
+		private ImgPlus< T > createFrame( final long t )
+		{
+			final Img< T > img = ( null != outputSink )
+					? plan.createImg( FinalDimensions.wrap( frameDims ), ( T ) input.firstElement(), plan.outputStorage )
+					: plan.createFrameImg( FinalDimensions.wrap( frameDims ), ( T ) input.firstElement(), plan.outputStorage, t );
+			return new ImgPlus<>( img, "Time-point " + t + " of " + input.getName(), frameAxes );
+		}
+
+		/**
+		 * Returns the factory of the reference surface of the specified
+		 * time-point, when it is stored on disk.
+		 */
+		private ImgFactory< UnsignedShortType > surfaceFactory( final long t )
+		{
+			return ( null != sinkSurfaceFactory )
+					? sinkSurfaceFactory
+					: plan.frameImgFactory( new UnsignedShortType(), plan.surfaceStorage, 2, t );
+		}
+
+		/**
+		 * Deletes the images of the specified time-point cached on disk, once
+		 * it is written. Those handed over to the sink are kept.
+		 */
+		private void release( final long t )
+		{
+			if ( null == outputSink )
+				plan.deleteFrameCache( t );
+		}
+
+		private void write( final long t, final TimePointResult< T > result )
+		{
+			/*
+			 * Show results? Refreshed in another thread.
+			 */
+
+			if ( showOutputDuringCalculation && null != output )
+			{
+				if ( null == displayUpdater )
+					displayUpdater = new ThrottledDisplayUpdater( this::refreshDisplays, log, displayRefreshRate );
+				displayUpdater.request( t );
+			}
+
+			/*
+			 * Save at each time-point.
+			 */
+
+			if ( saveAtEachTimePoint )
+			{
+				// The time-point is complete when all its files are saved.
+				final AtomicInteger filesToSave = new AtomicInteger( showReferenceSurface ? 2 : 1 );
+				final Runnable onSaved = () -> {
+					if ( filesToSave.decrementAndGet() != 0 )
+						return;
+					if ( null != manifest )
+						markCompleted( t );
+					release( t );
+				};
+
+				// Save reference surface if asked.
+				if ( showReferenceSurface )
+				{
+					final String refTpName = referenceSurfaceName( t );
+
+					final CalibratedAxis[] axesRefSurface = new CalibratedAxis[ 2 ];
+					axesRefSurface[ 0 ] = input.getImgPlus().axis( input.getImgPlus().dimensionIndex( Axes.X ) );
+					axesRefSurface[ 1 ] = input.getImgPlus().axis( input.getImgPlus().dimensionIndex( Axes.Y ) );
+
+					final ImgPlus< UnsignedShortType > imgPlusSingleTP = new ImgPlus<>( result.referenceSurface, refTpName, axesRefSurface );
+					final Dataset refSurfaceDataset = new DefaultDataset( ioService.context(), imgPlusSingleTP );
+
+					final Path destination = Paths.get( saveFolder, refTpName + ".tif" );
+					fileWriter.submit( refSurfaceDataset, destination.toString(), onSaved );
+				}
+
+				final String outputTpName = projectionName( t );
+				final ImgPlus< T > imgPlusOutputSingleTP = new ImgPlus< T >( ImgPlusUtil.wrapToImgPlus( result.projection ), outputTpName, frameAxes );
+				final Dataset outputTpDataset = new DefaultDataset( ioService.context(), imgPlusOutputSingleTP );
+
+				final Path destination = Paths.get( saveFolder, outputTpName + ".tif" );
+				fileWriter.submit( outputTpDataset, destination.toString(), onSaved );
+			}
+
+			/*
+			 * Stream.
+			 */
+
+			if ( null != outputSink )
+			{
+				final long start = timings.start();
+				outputSink.accept( result );
+				timings.stop( StageTimings.SAVE, start );
+			}
+
+			// Files are still being saved otherwise.
+			if ( !saveAtEachTimePoint )
+				release( t );
+
+			status.showProgress( ( int ) t + 1, ( int ) nFrames );
+		}
+
+		/**
+		 * Shows the specified time-point in the displays. Called by the
+		 * display updater.
+		 */
+		private void refreshDisplays( final long t )
+		{
+			final long start = timings.start();
+			/*
 			 * Show reference surface?
 			 */
 
-			if ( showOutputDuringCalculation && showReferenceSurface )
+			if ( showReferenceSurface && null != referenceSurfaces )
 			{
 				if ( referenceSurfaceDisplay == null )
 				{
@@ -291,17 +1300,10 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 			}
 
 			/*
-			 * Extract surface.
+			 * Show projection?
 			 */
 
-			if ( isCanceled() )
-				return output;
-			cancelable = projectorOp;
-
-			final ImgPlus< T > outputSlice = ImgPlusUtil.hypersliceTimePoint( outImgPlus, t );
-			projectorOp.compute( tp, referenceSurface, outputSlice );
-
-			if ( showOutputDuringCalculation )
+			if ( null != output )
 			{
 				if ( projectionDisplay == null )
 				{
@@ -331,70 +1333,365 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 					projectionDisplay.setPosition( t, timeAxisIndex );
 				projectionDisplay.update();
 			}
+			timings.stop( StageTimings.DISPLAY, start );
+		}
 
-			/*
-			 * Save at each time-point.
-			 */
+		/**
+		 * Shows the last time-point written, and stops the display updater.
+		 */
+		private void closeDisplays()
+		{
+			if ( null != displayUpdater )
+				displayUpdater.close();
+		}
 
-			if ( saveAtEachTimePoint )
+		private String referenceSurfaceName( final long t )
+		{
+			return String.format( "%s_RefSurface_%0" + ndigits + "d", inputName, t );
+		}
+
+		private String projectionName( final long t )
+		{
+			return String.format( "%s_LocalProjection_%0" + ndigits + "d", inputName, t );
+		}
+
+		/**
+		 * Opens the manifest of the run in the save folder, and returns the
+		 * time-points that still have to be processed.
+		 */
+		private long[] resume()
+		{
+			final String hash = ResumeManifest.parametersHash( input, referenceSurfaceParams, extractSurfaceParams, showReferenceSurface, !incremental, warmStartMargin );
+			final Path file = Paths.get( saveFolder, inputName + "_LocalZProjector_manifest.json" );
+			manifest = ResumeManifest.open( file, hash, nFrames, incremental );
+			synchronized ( surfaceRanges )
 			{
-				final String str = input.getName() == null
-						? "LocalZProjectorOutput"
-						: input.getName();
-				final int dotIndex = str.lastIndexOf( '.' );
-				final String inputName = dotIndex > 0
-						? str.substring( 0, dotIndex )
-						: str;
-				final int ndigits = Long.toString( nFrames ).length();
-				// Save reference surface if asked.
-				if ( showReferenceSurface )
+				surfaceRanges.putAll( manifest.getSurfaceRanges() );
+			}
+
+			final List< Long > todo = new ArrayList<>();
+			for ( long t = 0; t < nFrames; t++ )
+			{
+				if ( manifest.isCompleted( t ) )
 				{
-					final String refTpName = String.format( "%s_RefSurface_%0" + ndigits + "d", inputName, t );
-					
-					final CalibratedAxis[] axesRefSurface = new CalibratedAxis[ 2 ];
-					axesRefSurface[ 0 ] = input.getImgPlus().axis( input.getImgPlus().dimensionIndex( Axes.X ) );
-					axesRefSurface[ 1 ] = input.getImgPlus().axis( input.getImgPlus().dimensionIndex( Axes.Y ) );
+					status.showStatus( "Checking time-point " + t );
+					if ( restore( t ) )
+						continue;
+					log.warn( "The files of time-point " + t + " are missing or invalid. Processing it again." );
+					manifest.unmark( t );
+				}
+				todo.add( Long.valueOf( t ) );
+			}
 
-					final ImgPlus< UnsignedShortType > imgPlusSingleTP = new ImgPlus<>( referenceSurface, refTpName, axesRefSurface );
-					final Dataset refSurfaceDataset = new DefaultDataset( ioService.context(), imgPlusSingleTP );
+			try
+			{
+				manifest.save();
+			}
+			catch ( final IOException e )
+			{
+				log.error( "Could not save the manifest " + file + ". The run will not be resumable.", e );
+				manifest = null;
+			}
 
-					final Path destination = Paths.get( saveFolder, refTpName + ".tif" );
-					try
-					{
-						ioService.save( refSurfaceDataset, destination.toString() );
-					}
-					catch ( final IOException e )
-					{
-						e.printStackTrace();
-					}
+			if ( todo.size() < nFrames )
+				log.info( "Resuming: " + ( nFrames - todo.size() ) + " time-points already processed, " + todo.size() + " to go." );
+			return todo.stream().mapToLong( Long::longValue ).toArray();
+		}
+
+		/**
+		 * Checks that the files of a complete time-point are present, and
+		 * reads them back in the output if we have one.
+		 */
+		@SuppressWarnings( "unchecked" )
+		private boolean restore( final long t )
+		{
+			final Path projectionFile = Paths.get( saveFolder, projectionName( t ) + ".tif" );
+			final Path referenceSurfaceFile = Paths.get( saveFolder, referenceSurfaceName( t ) + ".tif" );
+			try
+			{
+				if ( !isNonEmptyFile( projectionFile ) )
+					return false;
+				if ( showReferenceSurface && !isNonEmptyFile( referenceSurfaceFile ) )
+					return false;
+
+				if ( null != outImgPlus )
+				{
+					final ImgPlus< T > slice = ImgPlusUtil.hypersliceTimePoint( outImgPlus, t );
+					final ImgPlus< T > saved = ( ImgPlus< T > ) ioService.open( projectionFile.toString() ).getImgPlus();
+					if ( !Intervals.equalDimensions( slice, saved ) )
+						return false;
+					ops().copy().rai( slice, saved );
 				}
 
-				final String outputTpName = String.format( "%s_LocalProjection_%0" + ndigits + "d", inputName, t );
-				final CalibratedAxis[] outputTpAxes = ImgPlusUtil.hypersliceAxes( outImgPlus, Axes.TIME );
-				final ImgPlus< T > imgPlusOutputSingleTP = new ImgPlus< T >( ImgPlusUtil.wrapToImgPlus( outputSlice ), outputTpName, outputTpAxes );
-				final Dataset outputTpDataset = new DefaultDataset( ioService.context(), imgPlusOutputSingleTP );
+				if ( null != referenceSurfaces && showReferenceSurface )
+				{
+					final ImgPlus< UnsignedShortType > saved = ( ImgPlus< UnsignedShortType > ) ioService.open( referenceSurfaceFile.toString() ).getImgPlus();
+					copyOnReferenceSurfaceOutput( ImgPlusUtil.wrapToImg( saved ), ( ImgPlus< UnsignedShortType > ) referenceSurfaces.getImgPlus(), t );
+				}
+				return true;
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				return false;
+			}
+		}
 
-				final Path destination = Paths.get( saveFolder, outputTpName + ".tif" );
+		/**
+		 * Declares the time-points processed in this run, whose reference
+		 * surface the next time-points wait for.
+		 */
+		private void expectSurfaceRanges( final long[] timePoints )
+		{
+			synchronized ( surfaceRanges )
+			{
+				for ( final long t : timePoints )
+					pendingSurfaces.add( Long.valueOf( t ) );
+			}
+		}
+
+		/**
+		 * Returns the Z range of the surface of the time-point just before
+		 * the specified one, or <code>null</code> if it is not known. If the
+		 * previous time-point is processed in this run, waits for its
+		 * reference surface.
+		 */
+		private int[] surfaceRangeBefore( final long t )
+		{
+			final Long previous = Long.valueOf( t - 1 );
+			synchronized ( surfaceRanges )
+			{
 				try
 				{
-					ioService.save( outputTpDataset, destination.toString() );
+					while ( pendingSurfaces.contains( previous ) && !isCanceled() )
+						surfaceRanges.wait( 100 );
 				}
-				catch ( final IOException e )
+				catch ( final InterruptedException e )
 				{
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					return null;
 				}
+				return surfaceRanges.get( previous );
+			}
+		}
+
+		private void recordSurfaceRange( final long t, final SurfaceStatistics statistics )
+		{
+			synchronized ( surfaceRanges )
+			{
+				surfaceRanges.put( Long.valueOf( t ), new int[] { statistics.min(), statistics.max() } );
+				pendingSurfaces.remove( Long.valueOf( t ) );
+				surfaceRanges.notifyAll();
+			}
+			final ResumeManifest m = manifest;
+			if ( null != m )
+				m.setSurfaceRange( t, statistics.min(), statistics.max() );
+		}
+
+		/**
+		 * Stops waiting for the reference surface of the specified
+		 * time-point, if it failed or was canceled before it was recorded.
+		 */
+		private void releaseSurfaceRange( final long t )
+		{
+			synchronized ( surfaceRanges )
+			{
+				if ( pendingSurfaces.remove( Long.valueOf( t ) ) )
+					surfaceRanges.notifyAll();
+			}
+		}
+
+		private void markCompleted( final long t )
+		{
+			try
+			{
+				manifest.markCompleted( t );
+			}
+			catch ( final IOException e )
+			{
+				log.error( "Could not update the manifest with time-point " + t + ".", e );
+			}
+		}
+	}
+
+	private static boolean isNonEmptyFile( final Path path ) throws IOException
+	{
+		return Files.isRegularFile( path ) && Files.size( path ) > 0;
+	}
 
+	/**
+	 * The processing stage of a single time-point: computing the reference
+	 * surface and the projection. Each worker has its own ops, so that several
+	 * workers can process time-points concurrently.
+	 */
+	private class TimePointWorker implements TimePointPipeline.Processor< ImgPlus< T >, TimePointResult< T > >
+	{
+
+		private final TimePointStages stages;
+
+		private final ReferenceSurfaceOp< T > referenceSurfaceOp;
+
+		private final ProjectorOp< T > projectorOp;
+
+		/**
+		 * The number of threads the ops of this worker can use.
+		 */
+		private final int nThreads;
+
+		/**
+		 * The op currently running, to forward cancel requests to.
+		 */
+		private volatile Cancelable current;
+
+		private TimePointWorker(
+				final TimePointStages stages,
+				final ReferenceSurfaceOp< T > referenceSurfaceOp,
+				final ProjectorOp< T > projectorOp,
+				final int nThreads )
+		{
+			this.stages = stages;
+			this.referenceSurfaceOp = referenceSurfaceOp;
+			this.projectorOp = projectorOp;
+			this.nThreads = nThreads;
+		}
+
+		@Override
+		public TimePointResult< T > process( final long t, final ImgPlus< T > tp )
+		{
+			// The first processor runs in the caller thread.
+			final int callerThreads = ThreadBudget.threads();
+			ThreadBudget.set( nThreads );
+			try
+			{
+				return processTimePoint( t, tp );
 			}
+			finally
+			{
+				stages.releaseSurfaceRange( t );
+				ThreadBudget.set( callerThreads );
+				current = null;
+			}
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private TimePointResult< T > processTimePoint( final long t, final ImgPlus< T > tp )
+		{
+			/*
+			 * Get reference surface.
+			 */
+
+			if ( isCanceled() )
+				return null;
+			current = referenceSurfaceOp;
+
+			// Warm-start from the surface of the previous time-point.
+			final int[] previous = ( warmStartMargin > 0 ) ? stages.surfaceRangeBefore( t ) : null;
+			if ( null != previous )
+				referenceSurfaceOp.setSearchRange( previous[ 0 ] - warmStartMargin, previous[ 1 ] + warmStartMargin );
+			else
+				referenceSurfaceOp.setSearchRange( Integer.MIN_VALUE, Integer.MAX_VALUE );
+
+			if ( plan.surfaceStorage == ExecutionPlan.Storage.DISK )
+				referenceSurfaceOp.setSurfaceFactory( stages.surfaceFactory( t ) );
+			final ImgPlus< T > channel = ImgPlusUtil.hypersliceChannel( tp, referenceSurfaceParams.targetChannel );
+			final Img< UnsignedShortType > referenceSurface = referenceSurfaceOp.calculate( channel );
+			stages.recordSurfaceRange( t, referenceSurfaceOp.getSurfaceStatistics() );
+			if ( null != referenceSurfaces )
+				copyOnReferenceSurfaceOutput( referenceSurface, ( ImgPlus< UnsignedShortType > ) referenceSurfaces.getImgPlus(), t );
+
+			/*
+			 * Extract surface.
+			 */
+
+			if ( isCanceled() )
+				return null;
+			current = projectorOp;
+
+			final ImgPlus< T > outputSlice = ( null == stages.outImgPlus )
+					? stages.createFrame( t )
+					: ImgPlusUtil.hypersliceTimePoint( stages.outImgPlus, t );
+			projectorOp.setSurfaceStatistics( referenceSurfaceOp.getSurfaceStatistics() );
+			projectorOp.compute( tp, referenceSurface, outputSlice );
+			if ( isCanceled() )
+				return null;
+			timings.count( StageTimings.FRAMES, 1 );
+			return new TimePointResult<>( t, referenceSurface, outputSlice );
+		}
 
+		private void cancel( final String reason )
+		{
+			final Cancelable op = current;
+			if ( null != op )
+				op.cancel( reason );
+		}
+	}
+
+	/**
+	 * The lazy view is only computed when it is accessed, after the run:
+	 * there is nothing to save or display during the run.
+	 */
+	private void checkLazyCollect()
+	{
+		if ( saveAtEachTimePoint )
+			throw new IllegalArgumentException( "Saving at each time-point is not supported with a lazy collect." );
+		if ( showOutputDuringCalculation )
+			throw new IllegalArgumentException( "Showing the output during calculation is not supported with a lazy collect." );
+		if ( streamOutput || null != sink )
+			throw new IllegalArgumentException( "Streaming the output is not supported with a lazy collect." );
+		if ( null != n5Output )
+			throw new IllegalArgumentException( "Writing the output to N5 is not supported with a lazy collect." );
+	}
+
+	/**
+	 * Computes the reference surfaces of all time-points, then returns the
+	 * collected volume as a lazy view on the source.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private Dataset calculateLazyCollect(
+			final Dataset input,
+			final ReferenceSurfaceOp< T > referenceSurfaceOp,
+			final CompiledExtractSurfaceParameters compiledParams,
+			final String outputName,
+			final CalibratedAxis[] outputAxes )
+	{
+		final ImgPlus< T > source = ( ImgPlus< T > ) input.getImgPlus();
+		final ImgPlus< UnsignedShortType > surfaces = ( ImgPlus< UnsignedShortType > ) referenceSurfaces.getImgPlus();
+		cancelable = referenceSurfaceOp;
+
+		final long nFrames = input.getFrames();
+		log.info( "Computing the reference surfaces of " + input.getName() + ". The local volume is computed when it is accessed." );
+		for ( long t = 0; t < nFrames; t++ )
+		{
+			if ( isCanceled() )
+				break;
+
+			status.showStatus( "Processing time-point " + t );
+			final ImgPlus< T > tp = getSourceTimePoint( source, t, ops() );
+			final ImgPlus< T > channel = ImgPlusUtil.hypersliceChannel( tp, referenceSurfaceParams.targetChannel );
+			final Img< UnsignedShortType > referenceSurface = referenceSurfaceOp.calculate( channel );
+			copyOnReferenceSurfaceOutput( referenceSurface, surfaces, t );
 			status.showProgress( ( int ) t + 1, ( int ) nFrames );
 		}
 
-		return output;
+		final int[] offsets = new int[ compiledParams.nChannels() ];
+		for ( int c = 0; c < offsets.length; c++ )
+			offsets[ c ] = compiledParams.offset( c );
+		final LocalVolumeView< T > view = new LocalVolumeView<>(
+				source,
+				source.dimensionIndex( Axes.Z ),
+				source.dimensionIndex( Axes.CHANNEL ),
+				source.dimensionIndex( Axes.TIME ),
+				surfaces,
+				compiledParams.collectDeltaZ(),
+				offsets );
+		final ImgPlus< T > outImgPlus = new ImgPlus<>( ImgPlusUtil.wrapToImg( view ), outputName, outputAxes );
+		return new DefaultDataset( ops().context(), outImgPlus );
 	}
 
 	/**
 	 * Return the dataset containing the reference surface calculated during the
-	 * last projection (after {@link #calculate()}).
+	 * last projection (after {@link #calculate()}). In streaming mode, the
+	 * reference surfaces are not kept and this method returns
+	 * <code>null</code>.
 	 * 
 	 * @return the reference surface as dataset.
 	 */
@@ -403,6 +1700,39 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 		return referenceSurfaces;
 	}
 
+	/**
+	 * Returns the files that could not be saved during the last projection
+	 * (after {@link #calculate()}), when saving at each time-point.
+	 * 
+	 * @return the list of failures, empty if all files were saved.
+	 */
+	public List< AsyncDatasetWriter.Failure > getWriteFailures()
+	{
+		return writeFailures;
+	}
+
+	/**
+	 * Returns the time spent in each stage of the last projection (after
+	 * {@link #calculate()}), and the amount of data processed.
+	 * 
+	 * @return the timings.
+	 */
+	public StageTimings getTimings()
+	{
+		return timings;
+	}
+
+	/**
+	 * Returns the execution plan of the last run, or <code>null</code> if the
+	 * input had no Z axis.
+	 *
+	 * @return the execution plan.
+	 */
+	public ExecutionPlan getExecutionPlan()
+	{
+		return plan;
+	}
+
 	private void copyOnReferenceSurfaceOutput( final Img< UnsignedShortType > tp, final ImgPlus< UnsignedShortType > output, final long t )
 	{
 		final int timeAxis = output.dimensionIndex( Axes.TIME );
@@ -451,6 +1781,8 @@ public class LocalZProjectionOp< T extends RealType< T > & NativeType< T > > ext
 		this.cancelReason = reason;
 		if ( null != cancelable )
 			cancelable.cancel( reason );
+		for ( final TimePointWorker worker : workers )
+			worker.cancel( reason );
 	}
 
 	@Override
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import org.scijava.Cancelable;
+
+import net.imagej.Dataset;
+import net.imagej.ops.OpEnvironment;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Projects any number of datasets of the same geometry with the same
+ * parameters.
+ * <p>
+ * A session is created for the geometry of a template dataset: its
+ * dimensions, axes and pixel type. The {@link LocalZProjectionOp} and the
+ * ops it delegates to are matched once, when the session is created, and
+ * keep their scratch images between datasets. Processing a dataset then
+ * only allocates its output. Datasets of another geometry are rejected.
+ * <p>
+ * Typical use, in a batch loop:
+ * 
+ * <pre>
+ * final LocalZProjectionSession&lt; T &gt; session = LocalZProjectionSession.create( ops, first, referenceSurfaceParams, extractSurfaceParams );
+ * for ( final Dataset dataset : datasets )
+ * 	save( session.process( dataset ) );
+ * </pre>
+ *
+ * A session is not thread-safe: concurrent threads must use one session
+ * each.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LocalZProjectionSession< T extends RealType< T > & NativeType< T > > implements Cancelable
+{
+
+	private final LocalZProjectionOp< T > op;
+
+	private final String geometry;
+
+	private LocalZProjectionSession( final LocalZProjectionOp< T > op, final Dataset template )
+	{
+		this.op = op;
+		this.geometry = LocalZProjectionOp.geometry( template );
+		op.prepare( template );
+	}
+
+	/**
+	 * Creates a session for datasets with the geometry of the specified
+	 * template.
+	 * 
+	 * @param ops
+	 *            the op environment.
+	 * @param template
+	 *            a dataset of the geometry to process.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters.
+	 * @param extractSurfaceParams
+	 *            the local projection parameters.
+	 * @return a new session.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static < T extends RealType< T > & NativeType< T > > LocalZProjectionSession< T > create(
+			final OpEnvironment ops,
+			final Dataset template,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams )
+	{
+		final LocalZProjectionOp< T > op = ( LocalZProjectionOp ) Functions.unary(
+				ops,
+				LocalZProjectionOp.class,
+				Dataset.class,
+				template,
+				referenceSurfaceParams,
+				extractSurfaceParams );
+		return new LocalZProjectionSession<>( op, template );
+	}
+
+	/**
+	 * Creates a session around an op that is already configured, for
+	 * instance to save at each time-point. The op must not be used outside of
+	 * the session.
+	 * 
+	 * @param op
+	 *            the op.
+	 * @param template
+	 *            a dataset of the geometry to process.
+	 * @return a new session.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > LocalZProjectionSession< T > wrap( final LocalZProjectionOp< T > op, final Dataset template )
+	{
+		return new LocalZProjectionSession<>( op, template );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified dataset has the geometry of
+	 * this session.
+	 * 
+	 * @param input
+	 *            the dataset.
+	 * @return whether the dataset can be processed by this session.
+	 */
+	public boolean accepts( final Dataset input )
+	{
+		return geometry.equals( LocalZProjectionOp.geometry( input ) );
+	}
+
+	/**
+	 * Projects the specified dataset.
+	 * 
+	 * @param input
+	 *            the dataset. Must have the geometry of this session.
+	 * @return the local projection.
+	 * @throws IllegalArgumentException
+	 *             if the dataset does not have the geometry of this session.
+	 */
+	public Dataset process( final Dataset input )
+	{
+		if ( !accepts( input ) )
+			throw new IllegalArgumentException( "Expected a dataset with geometry [" + geometry + "], but "
+					+ input.getName() + " has geometry [" + LocalZProjectionOp.geometry( input ) + "]." );
+		return op.calculate( input );
+	}
+
+	/**
+	 * Returns the op of this session, to get the reference surface, the
+	 * timings or the execution plan of the last dataset processed.
+	 * 
+	 * @return the op.
+	 */
+	public LocalZProjectionOp< T > getOp()
+	{
+		return op;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return op.isCanceled();
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		op.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return op.getCancelReason();
+	}
+}
@@ -0,0 +1,394 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * A {@link TimePointSink} that writes the projections and the reference
+ * surfaces in a chunked, compressed N5 container on the local file system.
+ * <p>
+ * The container follows the BigDataViewer N5 layout: each channel of the
+ * projection is a setup, and the reference surface is an extra setup after
+ * them. Each time-point of a setup is a 3D dataset
+ * <code>setup<i>s</i>/timepoint<i>t</i>/s0</code>, with a single Z plane for
+ * projections. The blocks of a time-point are written in parallel by a pool
+ * of threads. When the sink is closed, a BigDataViewer XML file is written
+ * next to the container, so that the results can be opened lazily as a
+ * single dataset. Time-points missing from the range written, for instance
+ * after an interrupted run, are declared as missing views.
+ * <p>
+ * Additional metadata, such as the parameters of the projection, can be
+ * stored in the attributes of the container root with
+ * {@link #setAttribute(String, Object)}.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the projection.
+ */
+public class N5TimePointSink< T extends RealType< T > & NativeType< T > > implements TimePointSink< T >
+{
+
+	/**
+	 * Default XY size of the blocks.
+	 */
+	public static final int[] DEFAULT_BLOCK_SIZE = new int[] { 128, 128 };
+
+	private final File container;
+
+	private final N5Writer n5;
+
+	private final int[] blockSize;
+
+	private final Compression compression;
+
+	private final ExecutorService executor;
+
+	private final boolean saveReferenceSurface;
+
+	private final TreeSet< Long > timePoints = new TreeSet<>();
+
+	/*
+	 * Set from the first time-point.
+	 */
+
+	private int nChannels = -1;
+
+	private long[] size;
+
+	private double[] voxelSize;
+
+	private String unit;
+
+	/**
+	 * Creates a new sink.
+	 *
+	 * @param path
+	 *            the path of the N5 container, usually ending in
+	 *            <code>.n5</code>. Created if it does not exist.
+	 * @param saveReferenceSurface
+	 *            whether to also write the reference surfaces.
+	 * @param blockSize
+	 *            the XY size of the blocks.
+	 * @param nThreads
+	 *            the number of threads writing blocks in parallel.
+	 * @throws IOException
+	 *             if the container cannot be created.
+	 */
+	public N5TimePointSink( final String path, final boolean saveReferenceSurface, final int[] blockSize, final int nThreads ) throws IOException
+	{
+		if ( blockSize.length != 2 )
+			throw new IllegalArgumentException( "Expected a 2D block size, but got " + blockSize.length + " dimensions." );
+
+		this.container = new File( path );
+		this.n5 = new N5FSWriter( path );
+		this.saveReferenceSurface = saveReferenceSurface;
+		this.blockSize = blockSize.clone();
+		this.compression = new GzipCompression();
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool( Math.max( 1, nThreads ), r -> {
+			final Thread thread = new Thread( r, "Local Z Projector N5 writer thread " + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Stores an attribute at the root of the container.
+	 *
+	 * @param key
+	 *            the attribute name.
+	 * @param value
+	 *            the attribute value, serialized to JSON.
+	 * @throws IOException
+	 *             if the attribute cannot be written.
+	 */
+	public void setAttribute( final String key, final Object value ) throws IOException
+	{
+		n5.setAttribute( "/", key, value );
+	}
+
+	@Override
+	public void accept( final TimePointResult< T > result )
+	{
+		final ImgPlus< T > projection = result.projection;
+		if ( nChannels < 0 )
+			init( projection );
+
+		try
+		{
+			final int cAxis = projection.dimensionIndex( Axes.CHANNEL );
+			for ( int c = 0; c < nChannels; c++ )
+			{
+				final RandomAccessibleInterval< T > channel = ( cAxis < 0 )
+						? projection
+						: Views.hyperSlice( projection, cAxis, c );
+				write( as3D( channel ), c, result.t );
+			}
+
+			if ( saveReferenceSurface )
+				write( as3D( result.referenceSurface ), nChannels, result.t );
+		}
+		catch ( final IOException | ExecutionException e )
+		{
+			throw new RuntimeException( "Could not write time-point " + result.t + " in " + container + ".", e );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while writing time-point " + result.t + " in " + container + ".", e );
+		}
+
+		synchronized ( timePoints )
+		{
+			timePoints.add( Long.valueOf( result.t ) );
+		}
+	}
+
+	/**
+	 * Stops the writer threads and writes the BigDataViewer XML file.
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+		if ( nChannels < 0 || timePoints.isEmpty() )
+			return;
+
+		try
+		{
+			writeXml();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not write the BigDataViewer XML file for " + container + ".", e );
+		}
+	}
+
+	/**
+	 * Returns the path of the BigDataViewer XML file written when the sink is
+	 * closed.
+	 *
+	 * @return the XML file.
+	 */
+	public File getXmlFile()
+	{
+		final String name = container.getName();
+		final String base = name.toLowerCase( Locale.ROOT ).endsWith( ".n5" )
+				? name.substring( 0, name.length() - 3 )
+				: name;
+		return new File( container.getAbsoluteFile().getParentFile(), base + ".xml" );
+	}
+
+	private synchronized void init( final ImgPlus< T > projection )
+	{
+		if ( nChannels >= 0 )
+			return;
+
+		final int xAxis = projection.dimensionIndex( Axes.X );
+		final int yAxis = projection.dimensionIndex( Axes.Y );
+		final int zAxis = projection.dimensionIndex( Axes.Z );
+		final int cAxis = projection.dimensionIndex( Axes.CHANNEL );
+
+		size = new long[] {
+				projection.dimension( xAxis ),
+				projection.dimension( yAxis ),
+				zAxis < 0 ? 1 : projection.dimension( zAxis ) };
+		voxelSize = new double[] {
+				projection.averageScale( xAxis ),
+				projection.averageScale( yAxis ),
+				zAxis < 0 ? 1. : projection.averageScale( zAxis ) };
+		final CalibratedAxis x = projection.axis( xAxis );
+		unit = ( null == x.unit() ) ? "pixel" : x.unit();
+
+		final int n = ( cAxis < 0 ) ? 1 : ( int ) projection.dimension( cAxis );
+		try
+		{
+			final DataType dataType = N5Utils.dataType( projection.firstElement() );
+			for ( int c = 0; c < n; c++ )
+				initSetup( c, dataType );
+			if ( saveReferenceSurface )
+				initSetup( n, N5Utils.dataType( new UnsignedShortType() ) );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not initialize " + container + ".", e );
+		}
+		nChannels = n;
+	}
+
+	private void initSetup( final int setup, final DataType dataType ) throws IOException
+	{
+		final String group = "setup" + setup;
+		n5.createGroup( group );
+		n5.setAttribute( group, "downsamplingFactors", new double[][] { { 1., 1., 1. } } );
+		n5.setAttribute( group, "dataType", dataType );
+	}
+
+	private < V extends NativeType< V > > void write( final RandomAccessibleInterval< V > data, final int setup, final long t ) throws IOException, InterruptedException, ExecutionException
+	{
+		final String dataset = "setup" + setup + "/timepoint" + t + "/s0";
+		final int[] blocks = new int[] {
+				blockSize[ 0 ],
+				blockSize[ 1 ],
+				( int ) data.dimension( 2 ) };
+		N5Utils.save( data, n5, dataset, blocks, compression, executor );
+	}
+
+	private static < V > RandomAccessibleInterval< V > as3D( final RandomAccessibleInterval< V > rai )
+	{
+		return ( rai.numDimensions() == 2 )
+				? Views.addDimension( rai, 0, 0 )
+				: rai;
+	}
+
+	private void writeXml() throws IOException
+	{
+		// Include the time-points written in the container by previous runs.
+		for ( final String group : n5.list( "setup0" ) )
+		{
+			if ( !group.startsWith( "timepoint" ) || !n5.datasetExists( "setup0/" + group + "/s0" ) )
+				continue;
+			try
+			{
+				timePoints.add( Long.valueOf( group.substring( "timepoint".length() ) ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				// Not ours.
+			}
+		}
+
+		final int nSetups = saveReferenceSurface ? nChannels + 1 : nChannels;
+		final File xml = getXmlFile();
+		final String n5Path = xml.getParentFile().toPath().relativize( container.getAbsoluteFile().toPath() ).toString();
+		try (PrintWriter out = new PrintWriter( xml, StandardCharsets.UTF_8.name() ))
+		{
+			out.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+			out.println( "<SpimData version=\"0.2\">" );
+			out.println( "  <BasePath type=\"relative\">.</BasePath>" );
+			out.println( "  <SequenceDescription>" );
+			out.println( "    <ImageLoader format=\"bdv.n5\" version=\"1.0\">" );
+			out.println( "      <n5 type=\"relative\">" + n5Path + "</n5>" );
+			out.println( "    </ImageLoader>" );
+			out.println( "    <ViewSetups>" );
+			for ( int s = 0; s < nSetups; s++ )
+			{
+				final String name = ( s < nChannels ) ? "channel " + ( s + 1 ) : "reference surface";
+				out.println( "      <ViewSetup>" );
+				out.println( "        <id>" + s + "</id>" );
+				out.println( "        <name>" + name + "</name>" );
+				out.println( "        <size>" + size[ 0 ] + " " + size[ 1 ] + " " + ( s < nChannels ? size[ 2 ] : 1 ) + "</size>" );
+				out.println( "        <voxelSize>" );
+				out.println( "          <unit>" + unit + "</unit>" );
+				out.println( "          <size>" + voxelSize[ 0 ] + " " + voxelSize[ 1 ] + " " + voxelSize[ 2 ] + "</size>" );
+				out.println( "        </voxelSize>" );
+				out.println( "        <attributes>" );
+				out.println( "          <channel>" + s + "</channel>" );
+				out.println( "        </attributes>" );
+				out.println( "      </ViewSetup>" );
+			}
+			out.println( "      <Attributes name=\"channel\">" );
+			for ( int s = 0; s < nSetups; s++ )
+			{
+				out.println( "        <Channel>" );
+				out.println( "          <id>" + s + "</id>" );
+				out.println( "          <name>" + s + "</name>" );
+				out.println( "        </Channel>" );
+			}
+			out.println( "      </Attributes>" );
+			out.println( "    </ViewSetups>" );
+			out.println( "    <Timepoints type=\"range\">" );
+			out.println( "      <first>" + timePoints.first() + "</first>" );
+			out.println( "      <last>" + timePoints.last() + "</last>" );
+			out.println( "    </Timepoints>" );
+			// The time-points not written yet in the range.
+			if ( timePoints.size() < timePoints.last() - timePoints.first() + 1 )
+			{
+				out.println( "    <MissingViews>" );
+				for ( long t = timePoints.first(); t <= timePoints.last(); t++ )
+				{
+					if ( timePoints.contains( Long.valueOf( t ) ) )
+						continue;
+					for ( int s = 0; s < nSetups; s++ )
+						out.println( "      <MissingView timepoint=\"" + t + "\" setup=\"" + s + "\" />" );
+				}
+				out.println( "    </MissingViews>" );
+			}
+			out.println( "  </SequenceDescription>" );
+			out.println( "  <ViewRegistrations>" );
+			for ( final Long t : timePoints )
+			{
+				for ( int s = 0; s < nSetups; s++ )
+				{
+					out.println( "    <ViewRegistration timepoint=\"" + t + "\" setup=\"" + s + "\">" );
+					out.println( "      <ViewTransform type=\"affine\">" );
+					out.println( "        <affine>"
+							+ voxelSize[ 0 ] + " 0.0 0.0 0.0 0.0 "
+							+ voxelSize[ 1 ] + " 0.0 0.0 0.0 0.0 "
+							+ voxelSize[ 2 ] + " 0.0</affine>" );
+					out.println( "      </ViewTransform>" );
+					out.println( "    </ViewRegistration>" );
+				}
+			}
+			out.println( "  </ViewRegistrations>" );
+			out.println( "</SpimData>" );
+		}
+	}
+}
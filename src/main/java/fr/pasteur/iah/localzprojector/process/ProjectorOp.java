@@ -34,6 +34,7 @@ package fr.pasteur.iah.localzprojector.process;
 
 import org.scijava.Cancelable;
 
+import fr.pasteur.iah.localzprojector.util.StageTimings;
 import net.imagej.ImgPlus;
 import net.imagej.ops.special.computer.BinaryComputerOp;
 import net.imglib2.RandomAccessibleInterval;
@@ -42,4 +43,25 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 public interface ProjectorOp< T extends RealType< T > & NativeType< T > > extends BinaryComputerOp< ImgPlus< T >, RandomAccessibleInterval< UnsignedShortType >, RandomAccessibleInterval< T > >, Cancelable
-{}
+{
+
+	/**
+	 * Sets the statistics of the reference surface that will be passed to the
+	 * next call to <code>compute()</code>, as emitted by the
+	 * {@link ReferenceSurfaceOp}. They are used only once. If they are not
+	 * set, the projector computes them from the reference surface.
+	 * 
+	 * @param statistics
+	 *            the reference surface statistics.
+	 */
+	public void setSurfaceStatistics( SurfaceStatistics statistics );
+
+	/**
+	 * Sets where to record the time spent extracting the surface, and the
+	 * amount of data read and written.
+	 * 
+	 * @param timings
+	 *            the timings. If <code>null</code>, nothing is recorded.
+	 */
+	public void setTimings( StageTimings timings );
+}
@@ -32,6 +32,11 @@
  */
 package fr.pasteur.iah.localzprojector.process;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 import org.scijava.Cancelable;
@@ -44,8 +49,13 @@ import org.scijava.ui.UIService;
 import fr.pasteur.iah.localzprojector.binning.BinningOp;
 import fr.pasteur.iah.localzprojector.binning.UnBinningOp;
 import fr.pasteur.iah.localzprojector.util.GridProcessingOp;
+import fr.pasteur.iah.localzprojector.util.StageTimings;
+import fr.pasteur.iah.localzprojector.util.ThreadBudget;
+import net.imagej.ops.Op;
 import net.imagej.ops.OpService;
+import net.imagej.ops.Ops;
 import net.imagej.ops.special.computer.Computers;
+import net.imagej.ops.special.computer.UnaryComputerOp;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.Cursor;
@@ -53,15 +63,21 @@ import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -73,6 +89,14 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 	@Parameter( type = ItemIO.INPUT )
 	private ReferenceSurfaceParameters params;
 
+	/**
+	 * The XY tile size of the {@link SurfaceStatistics} emitted with the
+	 * reference surface. If <code>null</code>, it is determined from the
+	 * source.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	private int[] statisticsTileSize;
+
 	@Parameter
 	private OpService ops;
 
@@ -84,6 +108,59 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 
 	private String cancelReason;
 
+	/**
+	 * Statistics of the last reference surface computed.
+	 */
+	private SurfaceStatistics statistics;
+
+	private StageTimings timings = StageTimings.DISABLED;
+
+	/**
+	 * The factory of the full-size reference surface. If <code>null</code>,
+	 * an array or cell image is created depending on its size.
+	 */
+	private ImgFactory< UnsignedShortType > surfaceFactory;
+
+	/**
+	 * Z range searched for the surface, on top of the parameters range.
+	 */
+	private int searchMin = Integer.MIN_VALUE;
+
+	private int searchMax = Integer.MAX_VALUE;
+
+	/*
+	 * Ops matched at the first call, and scratch images reused by the next
+	 * calls as long as the binned slices keep the same size.
+	 */
+
+	private BinningOp< T > binner;
+
+	private GridProcessingOp< T > gridProcessingOp;
+
+	private UnaryComputerOp< Iterable< T >, T > focusStatistic;
+
+	private UnaryComputerOp< Iterable< UnsignedShortType >, UnsignedShortType > median;
+
+	/**
+	 * The executor of the Gaussian filter, with as many threads as the
+	 * budget of the last call.
+	 */
+	private ThreadPoolExecutor gaussExecutor;
+
+	private UnBinningOp< UnsignedShortType > unbinner;
+
+	private long[] unbinnerSize;
+
+	private long[] scratchSize;
+
+	private Class< ? > scratchType;
+
+	private Img< T > maxValueImg;
+
+	private Img< T > filtered;
+
+	private Img< T > binnedSlice;
+
 	@Override
 	public Img< UnsignedShortType > calculate( final RandomAccessibleInterval< T > source )
 	{
@@ -94,90 +171,87 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 		if ( source.numDimensions() != 3 )
 			throw new IllegalArgumentException( "Expected source to be 3D, but was " + source.numDimensions() + "D." );
 
+		// Tiles of the statistics.
+		final int[] tileSize = ( null == statisticsTileSize )
+				? SurfaceStatistics.tileSize( source )
+				: statisticsTileSize;
+
 		// Compute binned size.
 		final Dimensions origSize = new FinalDimensions( source.dimension( 0 ), source.dimension( 1 ) );
 		final Dimensions binnedSize = new FinalDimensions( source.dimension( 0 ) / params.binning, source.dimension( 1 ) / params.binning );
 
-		// Create output. Store the Z value for max.
-		final ImgFactory< UnsignedShortType > intFactory = Util.getArrayOrCellImgFactory( binnedSize, new UnsignedShortType() );
+		// Create output. Store the Z value for max. Without binning, this is
+		// the full-size surface.
+		final ImgFactory< UnsignedShortType > intFactory = ( null != surfaceFactory && params.binning == 1 )
+				? surfaceFactory
+				: Util.getArrayOrCellImgFactory( binnedSize, new UnsignedShortType() );
 		final Img< UnsignedShortType > output = intFactory.create( binnedSize );
 		final RandomAccess< UnsignedShortType > ra = output.randomAccess( output );
 
-		// Temp storage for max value.
+		// Temp storage for max value, filtered slice and binned slice.
 		final ImgFactory< T > factory = intFactory.imgFactory( Util.getTypeFromInterval( source ) );
-		final Img< T > maxValueImg = factory.create( binnedSize );
+		prepareScratch( binnedSize, factory );
 		for ( final T p : maxValueImg )
 			p.setReal( Double.NEGATIVE_INFINITY );
 
-		// Temp storage for filtered slice.
-		final Img< T > filtered = factory.create( binnedSize );
-
 		// Neighborhood size for filtering on the binned image.
 		final int neighborhoodHalfSize = ( int ) Math.ceil( ( double ) params.filterWindowSize / params.binning / 2. );
 		final Shape shape = new RectangleShape( neighborhoodHalfSize, false );
 
-		// Binning op.
-		@SuppressWarnings( { "rawtypes", "unchecked" } )
-		final BinningOp< T > binner = ( BinningOp ) Functions.unary(
-				ops(),
-				BinningOp.class,
-				Img.class,
-				RandomAccessibleInterval.class,
-				new int[] { params.binning, params.binning } );
-
-		// Grid processing op - in case we need it.
-		final BiConsumer< Iterable< T >, DoubleType > func;
-		switch ( params.method )
-		{
-		case MAX_OF_MEAN:
-			func = ( n, v ) -> ops.stats().mean( v, n );
-			break;
-		case MAX_OF_STD:
-		default:
-			func = ( n, v ) -> ops.stats().stdDev( v, n );
-			break;
-		}
-		@SuppressWarnings( { "rawtypes", "unchecked" } )
-		final GridProcessingOp< T > gridProcessingOp = ( GridProcessingOp ) Computers.unary(
-				ops, GridProcessingOp.class,
-				IterableInterval.class,
-				RandomAccessibleInterval.class,
-				2 * neighborhoodHalfSize,
-				func );
+		// Binning op and grid processing op - in case we need them.
+		if ( null == binner )
+			matchOps( neighborhoodHalfSize );
 
 		// Iterate over Z.
-		for ( int z = Math.max( 0, params.zMin ); z <= Math.min( source.dimension( 2 ) - 1, params.zMax ); z++ )
+		final int zStart = Math.max( 0, Math.max( params.zMin, searchMin ) );
+		final long zEnd = Math.min( source.dimension( 2 ) - 1, Math.min( params.zMax, searchMax ) );
+		for ( int z = zStart; z <= zEnd; z++ )
 		{
 			if ( isCanceled() )
 				break;
 
 			final IntervalView< T > slice = Views.hyperSlice( source, 2, z );
+			timings.count( StageTimings.VOXELS_READ, Intervals.numElements( slice ) );
 
 			// Binning.
+			long start = timings.start();
 			final RandomAccessibleInterval< T > binned;
 			if ( params.binning > 1 )
-				binned = binner.calculate( slice );
+			{
+				binner.bin( slice, binnedSlice );
+				binned = binnedSlice;
+			}
 			else
 			{
 				if ( params.sigma > 0. )
+				{
 					// Duplicate so that we don't smooth the source.
-					binned = ops().copy().rai( slice );
+					LoopBuilder.setImages( slice, binnedSlice ).forEachPixel( ( i, o ) -> o.set( i ) );
+					binned = binnedSlice;
+				}
 				else
 					binned = slice;
 			}
 
+			timings.stop( StageTimings.BINNING, start );
+
 			// Gaussian filtering.
 			if ( params.sigma > 0. )
-				ops.filter().gauss( binned, binned, params.sigma );
+			{
+				start = timings.start();
+				gauss( binned );
+				timings.stop( StageTimings.GAUSSIAN, start );
+			}
 
 			// Surface filtering method.
+			start = timings.start();
 			switch ( params.method )
 			{
 			case MAX_OF_MEAN:
-				ops.filter().mean( filtered, binned, shape );
-				break;
 			case MAX_OF_STD:
-				ops.filter().variance( filtered, binned, shape );
+				if ( null == focusStatistic )
+					focusStatistic = matchFocusStatistic();
+				filter( binned, filtered, shape, focusStatistic );
 				break;
 			case SPARSE_MAX_OF_MEAN:
 			case SPARSE_MAX_OF_STD:
@@ -186,8 +260,10 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 			default:
 				throw new IllegalArgumentException( "Unkown filtering method: " + params.method + "." );
 			}
+			timings.stop( StageTimings.FOCUS_FILTER, start );
 
 			// Same iteration order.
+			start = timings.start();
 			final Cursor< T > filteredCursor = filtered.cursor();
 			final Cursor< T > maxValCursor = maxValueImg.cursor();
 			while ( filteredCursor.hasNext() )
@@ -204,29 +280,167 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 					ra.get().set( z );
 				}
 			}
+			timings.stop( StageTimings.ARGMAX, start );
 		}
 
 		if ( isCanceled() )
+		{
+			statistics = SurfaceStatistics.fromBinned( output, params.binning, source.dimension( 0 ), source.dimension( 1 ), tileSize, source.dimension( 2 ) );
 			return rescale( output, params.binning, origSize );
+		}
 
 		// Median filter.
 		final Img< UnsignedShortType > output2;
 		if ( params.medianHalfSize > 0 )
 		{
+			final long start = timings.start();
 			final Shape medianFilterShape = new RectangleShape( params.medianHalfSize, false );
-			output2 = ops.create().img( output );
-			ops.filter().median( output2, output, medianFilterShape );
+			output2 = intFactory.create( output );
+			if ( null == median )
+				median = matchMedian();
+			filter( output, output2, medianFilterShape, median );
+			timings.stop( StageTimings.MEDIAN, start );
 		}
 		else
 		{
 			output2 = output;
 		}
 
+		// Statistics, computed on the binned image before rescaling.
+		statistics = SurfaceStatistics.fromBinned( output2, params.binning, source.dimension( 0 ), source.dimension( 1 ), tileSize, source.dimension( 2 ) );
+
 		// Rescale binned image back to full size.
 		final Img< UnsignedShortType > rescaled = rescale( output2, params.binning, origSize );
 		return rescaled;
 	}
 
+	/**
+	 * Matches the ops that do not depend on the source size. The parameters
+	 * are fixed, so this is done once.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private void matchOps( final int neighborhoodHalfSize )
+	{
+		binner = ( BinningOp ) Functions.unary(
+				ops(),
+				BinningOp.class,
+				Img.class,
+				RandomAccessibleInterval.class,
+				new int[] { params.binning, params.binning } );
+
+		final UnaryComputerOp< Iterable< T >, DoubleType > stat;
+		// Only the grid processing op uses it, and it has always used the
+		// standard deviation for SPARSE_MAX_OF_MEAN too.
+		switch ( params.method )
+		{
+		case MAX_OF_MEAN:
+			stat = ( UnaryComputerOp ) Computers.unary( ops, Ops.Stats.Mean.class, DoubleType.class, Iterable.class );
+			break;
+		case MAX_OF_STD:
+		default:
+			stat = ( UnaryComputerOp ) Computers.unary( ops, Ops.Stats.StdDev.class, DoubleType.class, Iterable.class );
+			break;
+		}
+		final BiConsumer< Iterable< T >, DoubleType > func = ( n, v ) -> stat.compute( n, v );
+		gridProcessingOp = ( GridProcessingOp ) Computers.unary(
+				ops, GridProcessingOp.class,
+				IterableInterval.class,
+				RandomAccessibleInterval.class,
+				2 * neighborhoodHalfSize,
+				func );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private UnaryComputerOp< Iterable< T >, T > matchFocusStatistic()
+	{
+		final Class< ? extends Op > statistic = ( params.method == ReferenceSurfaceParameters.Method.MAX_OF_MEAN )
+				? Ops.Stats.Mean.class
+				: Ops.Stats.Variance.class;
+		return ( UnaryComputerOp ) Computers.unary( ops, statistic, filtered.firstElement().getClass(), Iterable.class );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private UnaryComputerOp< Iterable< UnsignedShortType >, UnsignedShortType > matchMedian()
+	{
+		return ( UnaryComputerOp ) Computers.unary( ops, Ops.Stats.Median.class, UnsignedShortType.class, Iterable.class );
+	}
+
+	/**
+	 * Writes the statistic of the neighborhood of each source pixel in the
+	 * target, like the neighborhood filters of the ops with their default
+	 * border out-of-bounds strategy, but with the threads of the budget only
+	 * so that concurrent time-points do not oversubscribe the CPU.
+	 */
+	private < V extends RealType< V > > void filter( final RandomAccessibleInterval< V > source, final IterableInterval< V > target, final Shape shape, final UnaryComputerOp< Iterable< V >, V > statistic )
+	{
+		final RandomAccessible< Neighborhood< V > > neighborhoods = shape.neighborhoodsRandomAccessible( Views.extendBorder( source ) );
+		ThreadBudget.forEachChunk( threadService.getExecutorService(), target.size(), ( startIndex, stepSize, numSteps ) -> {
+			final UnaryComputerOp< Iterable< V >, V > op = statistic.getIndependentInstance();
+			final RandomAccess< Neighborhood< V > > ra = neighborhoods.randomAccess( source );
+			final Cursor< V > cursor = target.localizingCursor();
+			cursor.jumpFwd( startIndex );
+			for ( long i = 0; i < numSteps; i++ )
+			{
+				cursor.fwd();
+				ra.setPosition( cursor );
+				op.compute( ra.get(), cursor.get() );
+			}
+		} );
+	}
+
+	/**
+	 * Smoothes the binned slice in place, like the Gaussian filter of the
+	 * ops, but with the threads of the budget only.
+	 */
+	private void gauss( final RandomAccessibleInterval< T > binned )
+	{
+		final double[] sigmas = Util.getArrayFromValue( params.sigma, binned.numDimensions() );
+		try
+		{
+			Gauss3.gauss( sigmas, Views.extendMirrorSingle( binned ), binned, gaussExecutor() );
+		}
+		catch ( final IncompatibleTypeException e )
+		{
+			throw new IllegalArgumentException( "Cannot smooth images of type " + Util.getTypeFromInterval( binned ).getClass().getSimpleName() + ".", e );
+		}
+	}
+
+	/**
+	 * The Gaussian filter splits the image in as many parts as the maximal
+	 * size of the pool of its executor.
+	 */
+	private ExecutorService gaussExecutor()
+	{
+		final int nThreads = ThreadBudget.threads();
+		if ( null == gaussExecutor || gaussExecutor.getMaximumPoolSize() != nThreads )
+		{
+			if ( null != gaussExecutor )
+				gaussExecutor.shutdown();
+			gaussExecutor = new ThreadPoolExecutor( nThreads, nThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadService );
+			gaussExecutor.allowCoreThreadTimeOut( true );
+		}
+		return gaussExecutor;
+	}
+
+	/**
+	 * Creates the scratch images for binned slices of the specified size, or
+	 * reuses those of the previous call if they have the same size and type.
+	 */
+	private void prepareScratch( final Dimensions binnedSize, final ImgFactory< T > factory )
+	{
+		final long[] size = Intervals.dimensionsAsLongArray( binnedSize );
+		final Class< ? > type = factory.type().getClass();
+		if ( null != maxValueImg && Arrays.equals( size, scratchSize ) && type == scratchType )
+			return;
+
+		maxValueImg = factory.create( binnedSize );
+		filtered = factory.create( binnedSize );
+		binnedSlice = ( params.binning > 1 || params.sigma > 0. ) ? factory.create( binnedSize ) : null;
+		focusStatistic = null;
+		scratchSize = size;
+		scratchType = type;
+	}
+
 	private Img< UnsignedShortType > rescale( final Img< UnsignedShortType > binned, final int binning, final Dimensions origSize )
 	{
 		if ( binning == 1 )
@@ -235,17 +449,88 @@ public class ReferenceSurfaceOp< T extends RealType< T > & NativeType< T > > ext
 		final int numDimensions = binned.numDimensions();
 		final int[] binFactors = Util.getArrayFromValue( params.binning, numDimensions );
 
-		// UnBinning op.
-		@SuppressWarnings( { "rawtypes", "unchecked" } )
-		final UnBinningOp< UnsignedShortType > unbinner = ( UnBinningOp ) Functions.unary(
-				ops(),
-				UnBinningOp.class,
-				Img.class,
-				RandomAccessibleInterval.class,
-				binFactors,
-				origSize );
-		return unbinner.calculate( binned );
+		// UnBinning op, matched again if the size changes.
+		final long[] size = Intervals.dimensionsAsLongArray( origSize );
+		if ( null == unbinner || !Arrays.equals( size, unbinnerSize ) )
+		{
+			unbinner = ( UnBinningOp ) Functions.unary(
+					ops(),
+					UnBinningOp.class,
+					Img.class,
+					RandomAccessibleInterval.class,
+					binFactors,
+					origSize,
+					surfaceFactory );
+			unbinnerSize = size;
+		}
+		final long start = timings.start();
+		final Img< UnsignedShortType > rescaled = unbinner.calculate( binned );
+		timings.stop( StageTimings.UNBINNING, start );
+		return rescaled;
+
+	}
+
+	/**
+	 * Returns the statistics of the reference surface computed by the last
+	 * call to {@link #calculate(RandomAccessibleInterval)}. They can be passed
+	 * to a {@link ProjectorOp} so that it does not have to scan the reference
+	 * surface again.
+	 * 
+	 * @return the reference surface statistics.
+	 */
+	public SurfaceStatistics getSurfaceStatistics()
+	{
+		return statistics;
+	}
 
+	/**
+	 * Sets where to record the time spent in each stage of the computation
+	 * of the reference surface.
+	 * 
+	 * @param timings
+	 *            the timings. If <code>null</code>, nothing is recorded.
+	 */
+	public void setTimings( final StageTimings timings )
+	{
+		this.timings = ( null == timings ) ? StageTimings.DISABLED : timings;
+	}
+
+	/**
+	 * Sets the factory of the full-size reference surface. Large surfaces can
+	 * be stored in cells cached on disk this way. The scratch images of the
+	 * binned slices are stored with this factory too if there is no binning.
+	 * 
+	 * @param surfaceFactory
+	 *            the factory. If <code>null</code>, an array or cell image is
+	 *            created depending on the surface size. Nothing is done if
+	 *            it is the current factory, so that the scratch images are
+	 *            kept.
+	 */
+	public void setSurfaceFactory( final ImgFactory< UnsignedShortType > surfaceFactory )
+	{
+		if ( surfaceFactory == this.surfaceFactory )
+			return;
+		this.surfaceFactory = surfaceFactory;
+		this.unbinner = null;
+		this.maxValueImg = null;
+	}
+
+	/**
+	 * Restricts the Z range searched for the surface, for instance to the
+	 * range of the surface of the previous time-point plus a margin. The
+	 * range is intersected with the one of the parameters. Pass
+	 * {@link Integer#MIN_VALUE} and {@link Integer#MAX_VALUE} to search the
+	 * range of the parameters only.
+	 * 
+	 * @param zMin
+	 *            the smallest Z to search.
+	 * @param zMax
+	 *            the largest Z to search.
+	 */
+	public void setSearchRange( final int zMin, final int zMax )
+	{
+		this.searchMin = zMin;
+		this.searchMax = zMax;
 	}
 
 	@Override
@@ -0,0 +1,290 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+
+/**
+ * Records which time-points of a run saved at each time-point are complete,
+ * so that an interrupted run can be resumed.
+ * <p>
+ * The manifest is a small JSON file saved next to the per-time-point files.
+ * It stores a hash of the parameters and of the input, so that the
+ * time-points of a run made with other parameters are not reused. For a
+ * growing acquisition, the hash can leave out the number of time-points so
+ * that new time-points are appended to the run. The manifest also records
+ * the Z range of the reference surface of each time-point, from which the
+ * next time-point can be warm-started.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ResumeManifest
+{
+
+	private String parametersHash;
+
+	private long nFrames;
+
+	private TreeSet< Long > completed = new TreeSet<>();
+
+	private TreeMap< Long, int[] > surfaceRanges = new TreeMap<>();
+
+	private transient Path file;
+
+	/**
+	 * Opens the manifest stored in the specified file. If the file does not
+	 * exist, cannot be read, or was written for other parameters, returns an
+	 * empty manifest that will overwrite it.
+	 *
+	 * @param file
+	 *            the manifest file.
+	 * @param parametersHash
+	 *            the hash of the parameters of the current run, as returned
+	 *            by
+	 *            {@link #parametersHash(Dataset, ReferenceSurfaceParameters, ExtractSurfaceParameters, boolean, boolean, int)}.
+	 * @param nFrames
+	 *            the number of time-points of the current run.
+	 * @param growing
+	 *            if <code>true</code>, the input is a growing acquisition,
+	 *            and a manifest written for fewer time-points is kept.
+	 * @return a manifest.
+	 */
+	public static ResumeManifest open( final Path file, final String parametersHash, final long nFrames, final boolean growing )
+	{
+		ResumeManifest manifest = null;
+		if ( Files.exists( file ) )
+		{
+			try (Reader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ))
+			{
+				manifest = new Gson().fromJson( reader, ResumeManifest.class );
+			}
+			catch ( final IOException | JsonParseException e )
+			{
+				manifest = null;
+			}
+		}
+
+		if ( null == manifest
+				|| !parametersHash.equals( manifest.parametersHash )
+				|| ( growing ? manifest.nFrames > nFrames : manifest.nFrames != nFrames )
+				|| null == manifest.completed )
+		{
+			manifest = new ResumeManifest();
+			manifest.parametersHash = parametersHash;
+		}
+		manifest.nFrames = nFrames;
+		if ( null == manifest.surfaceRanges )
+			manifest.surfaceRanges = new TreeMap<>();
+		manifest.file = file;
+		return manifest;
+	}
+
+	/**
+	 * Returns whether the specified time-point is complete.
+	 *
+	 * @param t
+	 *            the time-point.
+	 * @return <code>true</code> if the time-point is complete.
+	 */
+	public synchronized boolean isCompleted( final long t )
+	{
+		return completed.contains( Long.valueOf( t ) );
+	}
+
+	/**
+	 * Returns the number of complete time-points.
+	 *
+	 * @return the number of complete time-points.
+	 */
+	public synchronized int nCompleted()
+	{
+		return completed.size();
+	}
+
+	/**
+	 * Marks the specified time-point as complete, and saves the manifest.
+	 *
+	 * @param t
+	 *            the time-point.
+	 * @throws IOException
+	 *             if the manifest cannot be saved.
+	 */
+	public synchronized void markCompleted( final long t ) throws IOException
+	{
+		completed.add( Long.valueOf( t ) );
+		save();
+	}
+
+	/**
+	 * Marks the specified time-point as not complete, for instance because
+	 * its files are missing. The manifest is not saved.
+	 *
+	 * @param t
+	 *            the time-point.
+	 */
+	public synchronized void unmark( final long t )
+	{
+		completed.remove( Long.valueOf( t ) );
+	}
+
+	/**
+	 * Records the Z range of the reference surface of the specified
+	 * time-point. The manifest is not saved.
+	 *
+	 * @param t
+	 *            the time-point.
+	 * @param zMin
+	 *            the smallest Z of the surface.
+	 * @param zMax
+	 *            the largest Z of the surface.
+	 */
+	public synchronized void setSurfaceRange( final long t, final int zMin, final int zMax )
+	{
+		surfaceRanges.put( Long.valueOf( t ), new int[] { zMin, zMax } );
+	}
+
+	/**
+	 * Returns the Z ranges of the reference surfaces recorded so far.
+	 *
+	 * @return a new map from time-point to Z min and max.
+	 */
+	public synchronized Map< Long, int[] > getSurfaceRanges()
+	{
+		return new TreeMap<>( surfaceRanges );
+	}
+
+	/**
+	 * Saves the manifest. The file is replaced atomically where the file
+	 * system supports it, so that a crash leaves either the previous or the
+	 * new manifest.
+	 *
+	 * @throws IOException
+	 *             if the manifest cannot be saved.
+	 */
+	public synchronized void save() throws IOException
+	{
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try (Writer writer = Files.newBufferedWriter( tmp, StandardCharsets.UTF_8 ))
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( this, writer );
+		}
+		try
+		{
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Returns a hash of everything that determines the content of the
+	 * per-time-point files of a run.
+	 *
+	 * @param input
+	 *            the source dataset.
+	 * @param referenceSurfaceParams
+	 *            the reference surface parameters.
+	 * @param extractSurfaceParams
+	 *            the local projection parameters.
+	 * @param saveReferenceSurface
+	 *            whether the reference surfaces are saved too.
+	 * @param includeFrames
+	 *            whether the number of time-points is part of the hash. Not
+	 *            for a growing acquisition.
+	 * @param warmStartMargin
+	 *            the margin around the surface of the previous time-point
+	 *            within which the reference surface is searched, or 0 if
+	 *            the whole Z range is searched. It changes the reference
+	 *            surface, so runs with another margin are not reused.
+	 * @return the hash, as an hexadecimal string.
+	 */
+	public static String parametersHash(
+			final Dataset input,
+			final ReferenceSurfaceParameters referenceSurfaceParams,
+			final ExtractSurfaceParameters extractSurfaceParams,
+			final boolean saveReferenceSurface,
+			final boolean includeFrames,
+			final int warmStartMargin )
+	{
+		final Gson gson = new Gson();
+		final StringBuilder str = new StringBuilder();
+		str.append( gson.toJson( referenceSurfaceParams ) );
+		str.append( gson.toJson( extractSurfaceParams ) );
+		str.append( input.getName() );
+		for ( int d = 0; d < input.numDimensions(); d++ )
+		{
+			if ( !includeFrames && input.axis( d ).type() == Axes.TIME )
+				continue;
+			str.append( ' ' ).append( input.axis( d ).type() ).append( '=' ).append( input.dimension( d ) );
+		}
+		str.append( ' ' ).append( input.getTypeLabelLong() );
+		str.append( ' ' ).append( saveReferenceSurface );
+		// Left out when off, so that the hash of previous runs is unchanged.
+		if ( warmStartMargin > 0 )
+			str.append( " warmStartMargin=" ).append( warmStartMargin );
+
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( str.toString().getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : digest )
+				hex.append( String.format( "%02x", b ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// SHA-256 is required in every Java platform.
+			throw new RuntimeException( e );
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.util.Arrays;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Compact statistics on a full-resolution reference surface: the histogram of
+ * its Z values, and its min and max Z over a grid of square XY tiles.
+ * <p>
+ * They are emitted by the {@link ReferenceSurfaceOp} as a side product, and
+ * computed on the binned surface, so that the projector ops can choose the Z
+ * range and the tile ranges to process without scanning the full-resolution
+ * surface again.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public final class SurfaceStatistics
+{
+
+	/**
+	 * Default size of the XY tiles, in full-resolution pixels.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * Minimal size of the XY tiles, when they are aligned on the cells of a
+	 * source image.
+	 */
+	public static final int MIN_TILE_SIZE = 64;
+
+	private final long width;
+
+	private final long height;
+
+	private final int tileWidth;
+
+	private final int tileHeight;
+
+	private final int nTilesX;
+
+	private final int nTilesY;
+
+	private final int[] tileMin;
+
+	private final int[] tileMax;
+
+	private int min = Integer.MAX_VALUE;
+
+	private int max = Integer.MIN_VALUE;
+
+	/**
+	 * Number of histogram bins: one per Z slice of the stack. Z values
+	 * beyond the stack are pooled in one more bin.
+	 */
+	private final int nBins;
+
+	/**
+	 * Number of full-resolution pixels with a Z value in <code>[0, z[</code>,
+	 * for every z in <code>[0, nBins + 1]</code>.
+	 */
+	private final long[] cumulative;
+
+	private SurfaceStatistics( final long width, final long height, final int[] tileSize, final long depth )
+	{
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileSize[ 0 ];
+		this.tileHeight = tileSize[ 1 ];
+		this.nTilesX = ( int ) ( ( width + tileWidth - 1 ) / tileWidth );
+		this.nTilesY = ( int ) ( ( height + tileHeight - 1 ) / tileHeight );
+		this.tileMin = new int[ nTilesX * nTilesY ];
+		this.tileMax = new int[ nTilesX * nTilesY ];
+		Arrays.fill( tileMin, Integer.MAX_VALUE );
+		Arrays.fill( tileMax, Integer.MIN_VALUE );
+		// Z values are 16-bit.
+		this.nBins = ( int ) Math.max( 1, Math.min( 65536, depth ) );
+		this.cumulative = new long[ nBins + 2 ];
+	}
+
+	/**
+	 * Computes the statistics of a full-resolution reference surface from its
+	 * binned version, as produced by the {@link ReferenceSurfaceOp} before
+	 * rescaling. Each binned pixel is counted for the full-resolution pixels
+	 * it is copied on when unbinning.
+	 *
+	 * @param binned
+	 *            the binned surface, 2D.
+	 * @param binning
+	 *            the binning factor.
+	 * @param width
+	 *            the width of the full-resolution surface.
+	 * @param height
+	 *            the height of the full-resolution surface.
+	 * @param tileSize
+	 *            the width and height of the XY tiles, in full-resolution
+	 *            pixels.
+	 * @param depth
+	 *            the number of Z slices of the stack the surface was
+	 *            computed on.
+	 * @return new statistics.
+	 */
+	public static SurfaceStatistics fromBinned( final RandomAccessibleInterval< UnsignedShortType > binned, final int binning, final long width, final long height, final int[] tileSize, final long depth )
+	{
+		final SurfaceStatistics stats = new SurfaceStatistics( width, height, tileSize, depth );
+		final long nbx = binned.dimension( 0 );
+		final long nby = binned.dimension( 1 );
+		final long[] counts = new long[ stats.nBins + 1 ];
+		final Cursor< UnsignedShortType > cursor = Views.flatIterable( binned ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final int z = cursor.get().get();
+			final long bx = cursor.getLongPosition( 0 );
+			final long by = cursor.getLongPosition( 1 );
+
+			// Full-resolution footprint. The last bins also cover the remainder.
+			final long x0 = bx * binning;
+			final long x1 = ( bx == nbx - 1 ) ? width - 1 : Math.min( width - 1, x0 + binning - 1 );
+			final long y0 = by * binning;
+			final long y1 = ( by == nby - 1 ) ? height - 1 : Math.min( height - 1, y0 + binning - 1 );
+			if ( x1 < x0 || y1 < y0 )
+				continue;
+
+			counts[ Math.min( z, stats.nBins ) ] += ( x1 - x0 + 1 ) * ( y1 - y0 + 1 );
+			if ( z < stats.min )
+				stats.min = z;
+			if ( z > stats.max )
+				stats.max = z;
+			stats.addToTiles( z, x0, x1, y0, y1 );
+		}
+		stats.setHistogram( counts );
+		return stats;
+	}
+
+	/**
+	 * Computes the statistics of a full-resolution reference surface.
+	 *
+	 * @param surface
+	 *            the surface, 2D.
+	 * @param tileSize
+	 *            the width and height of the XY tiles.
+	 * @param depth
+	 *            the number of Z slices of the stack the surface applies
+	 *            to.
+	 * @return new statistics.
+	 */
+	public static SurfaceStatistics compute( final RandomAccessibleInterval< UnsignedShortType > surface, final int[] tileSize, final long depth )
+	{
+		return fromBinned( surface, 1, surface.dimension( 0 ), surface.dimension( 1 ), tileSize, depth );
+	}
+
+	/**
+	 * Returns the XY tile size to use for the specified source image. If the
+	 * source is backed by cells, for instance a cell image or a BigDataViewer
+	 * source, the tiles are aligned on the cell grid, so that a tile outside of
+	 * the Z band around the reference surface never loads a cell. Otherwise
+	 * the tiles are {@link #DEFAULT_TILE_SIZE} wide.
+	 *
+	 * @param source
+	 *            the source image, possibly wrapped in an {@link ImgPlus}.
+	 * @return the tile width and height.
+	 */
+	public static int[] tileSize( final RandomAccessibleInterval< ? > source )
+	{
+		final RandomAccessibleInterval< ? > img = ( source instanceof ImgPlus )
+				? ( ( ImgPlus< ? > ) source ).getImg()
+				: source;
+		if ( !( img instanceof AbstractCellImg ) )
+			return new int[] { DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE };
+
+		final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) img ).getCellGrid();
+		final int[] tileSize = new int[ 2 ];
+		for ( int d = 0; d < 2; d++ )
+		{
+			final int cellSize = grid.cellDimension( d );
+			tileSize[ d ] = cellSize * ( ( MIN_TILE_SIZE + cellSize - 1 ) / cellSize );
+		}
+		return tileSize;
+	}
+
+	private void addToTiles( final int z, final long x0, final long x1, final long y0, final long y1 )
+	{
+		for ( int ty = ( int ) ( y0 / tileHeight ); ty <= y1 / tileHeight; ty++ )
+		{
+			for ( int tx = ( int ) ( x0 / tileWidth ); tx <= x1 / tileWidth; tx++ )
+			{
+				final int i = ty * nTilesX + tx;
+				if ( z < tileMin[ i ] )
+					tileMin[ i ] = z;
+				if ( z > tileMax[ i ] )
+					tileMax[ i ] = z;
+			}
+		}
+	}
+
+	private void setHistogram( final long[] counts )
+	{
+		for ( int z = 0; z < counts.length; z++ )
+			cumulative[ z + 1 ] = cumulative[ z ] + counts[ z ];
+	}
+
+	/**
+	 * Returns the minimal Z of the surface.
+	 *
+	 * @return the min.
+	 */
+	public int min()
+	{
+		return min;
+	}
+
+	/**
+	 * Returns the maximal Z of the surface.
+	 *
+	 * @return the max.
+	 */
+	public int max()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns the number of pixels of the surface with a Z value in the
+	 * specified range, bounds included. Pixels with a Z value beyond the
+	 * stack are counted for any range that reaches beyond the stack, so the
+	 * count is then an upper bound.
+	 *
+	 * @param zMin
+	 *            the lower bound.
+	 * @param zMax
+	 *            the upper bound.
+	 * @return the number of pixels.
+	 */
+	public long count( final long zMin, final long zMax )
+	{
+		final int lo = ( int ) Math.max( 0, Math.min( nBins, zMin ) );
+		final int hi = ( int ) Math.min( nBins, zMax );
+		if ( hi < lo )
+			return 0;
+		return cumulative[ hi + 1 ] - cumulative[ lo ];
+	}
+
+	public int tileWidth()
+	{
+		return tileWidth;
+	}
+
+	public int tileHeight()
+	{
+		return tileHeight;
+	}
+
+	public int nTilesX()
+	{
+		return nTilesX;
+	}
+
+	public int nTilesY()
+	{
+		return nTilesY;
+	}
+
+	/**
+	 * Returns the XY interval of the specified tile.
+	 *
+	 * @param tx
+	 *            the tile index along X.
+	 * @param ty
+	 *            the tile index along Y.
+	 * @return a new interval.
+	 */
+	public Interval tileInterval( final int tx, final int ty )
+	{
+		final long x0 = ( long ) tx * tileWidth;
+		final long y0 = ( long ) ty * tileHeight;
+		return new FinalInterval(
+				new long[] { x0, y0 },
+				new long[] { Math.min( width, x0 + tileWidth ) - 1, Math.min( height, y0 + tileHeight ) - 1 } );
+	}
+
+	/**
+	 * Returns the minimal Z of the surface over the specified tile.
+	 *
+	 * @param tx
+	 *            the tile index along X.
+	 * @param ty
+	 *            the tile index along Y.
+	 * @return the min.
+	 */
+	public int tileMin( final int tx, final int ty )
+	{
+		return tileMin[ ty * nTilesX + tx ];
+	}
+
+	/**
+	 * Returns the maximal Z of the surface over the specified tile.
+	 *
+	 * @param tx
+	 *            the tile index along X.
+	 * @param ty
+	 *            the tile index along Y.
+	 * @return the max.
+	 */
+	public int tileMax( final int tx, final int ty )
+	{
+		return tileMax[ ty * nTilesX + tx ];
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Receives the results of the local projection, one time-point at a time,
+ * when the projection is run in streaming mode.
+ * <p>
+ * Time-points are received in order, from a single thread. The results are
+ * not referenced by the projection op after they are passed to the sink, so
+ * that the sink decides how many of them are kept in memory.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the projection.
+ */
+@FunctionalInterface
+public interface TimePointSink< T >
+{
+
+	/**
+	 * Receives the results of one time-point.
+	 *
+	 * @param result
+	 *            the results.
+	 */
+	public void accept( TimePointResult< T > result );
+
+	/**
+	 * Called once after the last time-point was received, or after the
+	 * projection was canceled or failed.
+	 */
+	public default void close()
+	{}
+
+	/**
+	 * Returns a sink that puts the results in the specified queue. If the
+	 * queue is bounded, the projection waits while it is full.
+	 *
+	 * @param queue
+	 *            the queue.
+	 * @param <T>
+	 *            the type of pixels in the projection.
+	 * @return a new sink.
+	 */
+	public static < T > TimePointSink< T > toQueue( final BlockingQueue< TimePointResult< T > > queue )
+	{
+		return result -> {
+			try
+			{
+				queue.put( result );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while waiting for room in the queue.", e );
+			}
+		};
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process.accumulator;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Base class for accumulators that store one running value and one count per
+ * pixel of the plane.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public abstract class AbstractProjectionAccumulator implements ProjectionAccumulator
+{
+
+	/**
+	 * Running value, one per pixel.
+	 */
+	protected double[] acc;
+
+	/**
+	 * Number of values accumulated, one per pixel.
+	 */
+	protected int[] n;
+
+	protected int width;
+
+	protected int height;
+
+	@Override
+	public void init( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+		// Reuse the arrays of the previous plane if it had the same size.
+		if ( null != acc && acc.length == width * height )
+		{
+			Arrays.fill( acc, 0. );
+			Arrays.fill( n, 0 );
+		}
+		else
+		{
+			this.acc = new double[ width * height ];
+			this.n = new int[ width * height ];
+		}
+	}
+
+	/**
+	 * Returns the projected value at the specified index. Only called for
+	 * pixels that received at least one value.
+	 *
+	 * @param index
+	 *            the pixel index in the plane.
+	 * @return the projected value.
+	 */
+	protected abstract double value( int index );
+
+	@Override
+	public < T extends RealType< T > > void write( final RandomAccessibleInterval< T > target )
+	{
+		final Cursor< T > cursor = Views.flatIterable( target ).cursor();
+		final T t = cursor.next();
+		final double min = t.getMinValue();
+		final double max = t.getMaxValue();
+		cursor.reset();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double v = n[ i ] == 0 ? 0. : value( i );
+			cursor.get().setReal( Math.max( min, Math.min( max, v ) ) );
+			i++;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process.accumulator;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A buffer that holds one XY plane of the source image as a primitive array,
+ * and feeds it row by row to a {@link ProjectionAccumulator}, using the
+ * accumulation method specialised for its primitive type.
+ * <p>
+ * Unsigned 8-bit, unsigned 16-bit and float images are stored in their native
+ * primitive type. Any other pixel type is converted to <code>double</code>.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the type of pixels in the source image.
+ */
+public abstract class PlaneBuffer< T extends RealType< T > >
+{
+
+	protected final int width;
+
+	protected final int height;
+
+	protected PlaneBuffer( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Copies the specified 2D plane into this buffer, in flat iteration order.
+	 *
+	 * @param plane
+	 *            the plane to read. Must have the size of this buffer.
+	 */
+	public void read( final RandomAccessibleInterval< T > plane )
+	{
+		read( plane, plane );
+	}
+
+	/**
+	 * Copies the specified XY tile of a 2D plane into this buffer, at the
+	 * pixel indices of the tile in the plane. Only the pixels of the tile are
+	 * accessed in the plane.
+	 *
+	 * @param plane
+	 *            the plane to read. Must have the size of this buffer.
+	 * @param tile
+	 *            the tile to read, within the plane.
+	 */
+	public abstract void read( RandomAccessibleInterval< T > plane, Interval tile );
+
+	/**
+	 * Feeds one row of this buffer to the specified accumulator.
+	 *
+	 * @param accumulator
+	 *            the accumulator.
+	 * @param offset
+	 *            the index of the first pixel of the row in the plane.
+	 * @param length
+	 *            the number of pixels in the row.
+	 * @param mask
+	 *            for every pixel of the plane, whether it must be accumulated.
+	 */
+	public abstract void accumulateRow( ProjectionAccumulator accumulator, int offset, int length, boolean[] mask );
+
+	/**
+	 * Creates a plane buffer suitable for the specified pixel type.
+	 *
+	 * @param type
+	 *            the pixel type of the source image.
+	 * @param width
+	 *            the plane width.
+	 * @param height
+	 *            the plane height.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 * @return a new plane buffer.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends RealType< T > > PlaneBuffer< T > create( final T type, final int width, final int height )
+	{
+		if ( type instanceof UnsignedByteType )
+			return ( PlaneBuffer< T > ) new UnsignedByteBuffer( width, height );
+		if ( type instanceof UnsignedShortType )
+			return ( PlaneBuffer< T > ) new UnsignedShortBuffer( width, height );
+		if ( type instanceof FloatType )
+			return ( PlaneBuffer< T > ) new FloatBuffer( width, height );
+		return new DoubleBuffer<>( width, height );
+	}
+
+	private static final class UnsignedByteBuffer extends PlaneBuffer< UnsignedByteType >
+	{
+
+		private final byte[] data;
+
+		private UnsignedByteBuffer( final int width, final int height )
+		{
+			super( width, height );
+			this.data = new byte[ width * height ];
+		}
+
+		@Override
+		public void read( final RandomAccessibleInterval< UnsignedByteType > plane, final Interval tile )
+		{
+			final Cursor< UnsignedByteType > cursor = Views.flatIterable( Views.interval( plane, tile ) ).cursor();
+			final int x0 = ( int ) tile.min( 0 );
+			final int tileWidth = ( int ) tile.dimension( 0 );
+			for ( int y = ( int ) tile.min( 1 ); y <= tile.max( 1 ); y++ )
+			{
+				final int rowOffset = y * width + x0;
+				for ( int i = rowOffset; i < rowOffset + tileWidth; i++ )
+				{
+					final UnsignedByteType p = cursor.next();
+					data[ i ] = p.getByte();
+				}
+			}
+		}
+
+		@Override
+		public void accumulateRow( final ProjectionAccumulator accumulator, final int offset, final int length, final boolean[] mask )
+		{
+			accumulator.accumulateRow( data, offset, length, mask );
+		}
+	}
+
+	private static final class UnsignedShortBuffer extends PlaneBuffer< UnsignedShortType >
+	{
+
+		private final short[] data;
+
+		private UnsignedShortBuffer( final int width, final int height )
+		{
+			super( width, height );
+			this.data = new short[ width * height ];
+		}
+
+		@Override
+		public void read( final RandomAccessibleInterval< UnsignedShortType > plane, final Interval tile )
+		{
+			final Cursor< UnsignedShortType > cursor = Views.flatIterable( Views.interval( plane, tile ) ).cursor();
+			final int x0 = ( int ) tile.min( 0 );
+			final int tileWidth = ( int ) tile.dimension( 0 );
+			for ( int y = ( int ) tile.min( 1 ); y <= tile.max( 1 ); y++ )
+			{
+				final int rowOffset = y * width + x0;
+				for ( int i = rowOffset; i < rowOffset + tileWidth; i++ )
+				{
+					final UnsignedShortType p = cursor.next();
+					data[ i ] = p.getShort();
+				}
+			}
+		}
+
+		@Override
+		public void accumulateRow( final ProjectionAccumulator accumulator, final int offset, final int length, final boolean[] mask )
+		{
+			accumulator.accumulateRow( data, offset, length, mask );
+		}
+	}
+
+	private static final class FloatBuffer extends PlaneBuffer< FloatType >
+	{
+
+		private final float[] data;
+
+		private FloatBuffer( final int width, final int height )
+		{
+			super( width, height );
+			this.data = new float[ width * height ];
+		}
+
+		@Override
+		public void read( final RandomAccessibleInterval< FloatType > plane, final Interval tile )
+		{
+			final Cursor< FloatType > cursor = Views.flatIterable( Views.interval( plane, tile ) ).cursor();
+			final int x0 = ( int ) tile.min( 0 );
+			final int tileWidth = ( int ) tile.dimension( 0 );
+			for ( int y = ( int ) tile.min( 1 ); y <= tile.max( 1 ); y++ )
+			{
+				final int rowOffset = y * width + x0;
+				for ( int i = rowOffset; i < rowOffset + tileWidth; i++ )
+				{
+					final FloatType p = cursor.next();
+					data[ i ] = p.get();
+				}
+			}
+		}
+
+		@Override
+		public void accumulateRow( final ProjectionAccumulator accumulator, final int offset, final int length, final boolean[] mask )
+		{
+			accumulator.accumulateRow( data, offset, length, mask );
+		}
+	}
+
+	private static final class DoubleBuffer< T extends RealType< T > > extends PlaneBuffer< T >
+	{
+
+		private final double[] data;
+
+		private DoubleBuffer( final int width, final int height )
+		{
+			super( width, height );
+			this.data = new double[ width * height ];
+		}
+
+		@Override
+		public void read( final RandomAccessibleInterval< T > plane, final Interval tile )
+		{
+			final Cursor< T > cursor = Views.flatIterable( Views.interval( plane, tile ) ).cursor();
+			final int x0 = ( int ) tile.min( 0 );
+			final int tileWidth = ( int ) tile.dimension( 0 );
+			for ( int y = ( int ) tile.min( 1 ); y <= tile.max( 1 ); y++ )
+			{
+				final int rowOffset = y * width + x0;
+				for ( int i = rowOffset; i < rowOffset + tileWidth; i++ )
+				{
+					final T p = cursor.next();
+					data[ i ] = p.getRealDouble();
+				}
+			}
+		}
+
+		@Override
+		public void accumulateRow( final ProjectionAccumulator accumulator, final int offset, final int length, final boolean[] mask )
+		{
+			accumulator.accumulateRow( data, offset, length, mask );
+		}
+	}
+}
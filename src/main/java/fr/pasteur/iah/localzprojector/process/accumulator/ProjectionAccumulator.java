@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process.accumulator;
+
+import org.scijava.plugin.SciJavaPlugin;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Interface for projection accumulators.
+ * <p>
+ * An accumulator collects, for every pixel of a 2D plane, the values found
+ * along Z in the neighborhood of the reference surface and computes the
+ * projected value from them. Accumulators are discovered as SciJava plugins,
+ * and matched by their plugin name: the built-in ones are named after the
+ * projection method they implement, and other ones are selected per channel
+ * by the name stored in the projection parameters. They are
+ * stateful: {@link #init(int, int)} must be called before every plane to
+ * project, and an instance must not be shared between threads.
+ * <p>
+ * The source pixels are passed in bulk, one row at a time, as primitive
+ * arrays holding a whole XY plane in flat iteration order. Implementations
+ * are expected to provide a tight loop for each primitive type so that the
+ * call sites stay monomorphic within one accumulator class.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface ProjectionAccumulator extends SciJavaPlugin
+{
+
+	/**
+	 * Prepares this accumulator for a plane of the specified size. Must be
+	 * called before any of the accumulate methods.
+	 *
+	 * @param width
+	 *            the plane width.
+	 * @param height
+	 *            the plane height.
+	 */
+	public void init( int width, int height );
+
+	/**
+	 * Accumulates a row of unsigned 8-bit values.
+	 *
+	 * @param src
+	 *            the plane values, in flat iteration order.
+	 * @param offset
+	 *            the index of the first pixel of the row in the plane.
+	 * @param length
+	 *            the number of pixels in the row.
+	 * @param mask
+	 *            for every pixel of the plane, whether it must be accumulated.
+	 */
+	public void accumulateRow( byte[] src, int offset, int length, boolean[] mask );
+
+	/**
+	 * Accumulates a row of unsigned 16-bit values.
+	 *
+	 * @param src
+	 *            the plane values, in flat iteration order.
+	 * @param offset
+	 *            the index of the first pixel of the row in the plane.
+	 * @param length
+	 *            the number of pixels in the row.
+	 * @param mask
+	 *            for every pixel of the plane, whether it must be accumulated.
+	 */
+	public void accumulateRow( short[] src, int offset, int length, boolean[] mask );
+
+	/**
+	 * Accumulates a row of 32-bit floating point values.
+	 *
+	 * @param src
+	 *            the plane values, in flat iteration order.
+	 * @param offset
+	 *            the index of the first pixel of the row in the plane.
+	 * @param length
+	 *            the number of pixels in the row.
+	 * @param mask
+	 *            for every pixel of the plane, whether it must be accumulated.
+	 */
+	public void accumulateRow( float[] src, int offset, int length, boolean[] mask );
+
+	/**
+	 * Accumulates a row of values of any other pixel type, converted to
+	 * <code>double</code>.
+	 *
+	 * @param src
+	 *            the plane values, in flat iteration order.
+	 * @param offset
+	 *            the index of the first pixel of the row in the plane.
+	 * @param length
+	 *            the number of pixels in the row.
+	 * @param mask
+	 *            for every pixel of the plane, whether it must be accumulated.
+	 */
+	public void accumulateRow( double[] src, int offset, int length, boolean[] mask );
+
+	/**
+	 * Writes the projected values in the specified 2D target, in flat
+	 * iteration order. Pixels that never received a value are set to 0.
+	 *
+	 * @param target
+	 *            the target to write into. Must have the size specified in
+	 *            {@link #init(int, int)}.
+	 * @param <T>
+	 *            the type of pixels in the target.
+	 */
+	public < T extends RealType< T > > void write( RandomAccessibleInterval< T > target );
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process.accumulator;
+
+import org.scijava.plugin.PluginInfo;
+import org.scijava.plugin.PluginService;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters;
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+
+/**
+ * Static utilities to discover {@link ProjectionAccumulator} plugins.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ProjectionAccumulators
+{
+
+	/**
+	 * Creates a new accumulator instance for the specified plugin name. The
+	 * name is matched, ignoring case, against the name of the accumulator
+	 * plugins. The built-in accumulators are named after the
+	 * {@link ProjectionMethod} they implement. If several plugins share the
+	 * same name, the one with the highest priority is used, so that
+	 * third-party implementations can replace the built-in ones. Plugins with
+	 * a name of their own are selected per channel with
+	 * {@link ExtractSurfaceParameters.Builder#accumulator(int, String)}.
+	 *
+	 * @param pluginService
+	 *            the plugin service.
+	 * @param name
+	 *            the name of the accumulator plugin.
+	 * @return a new accumulator instance, not initialized.
+	 */
+	public static ProjectionAccumulator create( final PluginService pluginService, final String name )
+	{
+		for ( final PluginInfo< ProjectionAccumulator > info : pluginService.getPluginsOfType( ProjectionAccumulator.class ) )
+		{
+			if ( !name.equalsIgnoreCase( info.getName() ) )
+				continue;
+
+			final ProjectionAccumulator accumulator = pluginService.createInstance( info );
+			if ( null != accumulator )
+				return accumulator;
+		}
+		throw new IllegalArgumentException( "Cannot find a projection accumulator named: " + name + "." );
+	}
+
+	private ProjectionAccumulators()
+	{}
+}
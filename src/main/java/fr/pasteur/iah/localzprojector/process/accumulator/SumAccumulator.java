@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process.accumulator;
+
+import org.scijava.plugin.Plugin;
+
+/**
+ * Takes the sum of intensities along Z. The sum is clamped to the range of
+ * the output pixel type.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@Plugin( type = ProjectionAccumulator.class, name = "SUM" )
+public class SumAccumulator extends AbstractProjectionAccumulator
+{
+
+	@Override
+	public void accumulateRow( final byte[] src, final int offset, final int length, final boolean[] mask )
+	{
+		final int end = offset + length;
+		for ( int i = offset; i < end; i++ )
+		{
+			if ( !mask[ i ] )
+				continue;
+			final double v = src[ i ] & 0xff;
+			acc[ i ] += v;
+			n[ i ]++;
+		}
+	}
+
+	@Override
+	public void accumulateRow( final short[] src, final int offset, final int length, final boolean[] mask )
+	{
+		final int end = offset + length;
+		for ( int i = offset; i < end; i++ )
+		{
+			if ( !mask[ i ] )
+				continue;
+			final double v = src[ i ] & 0xffff;
+			acc[ i ] += v;
+			n[ i ]++;
+		}
+	}
+
+	@Override
+	public void accumulateRow( final float[] src, final int offset, final int length, final boolean[] mask )
+	{
+		final int end = offset + length;
+		for ( int i = offset; i < end; i++ )
+		{
+			if ( !mask[ i ] )
+				continue;
+			final double v = src[ i ];
+			acc[ i ] += v;
+			n[ i ]++;
+		}
+	}
+
+	@Override
+	public void accumulateRow( final double[] src, final int offset, final int length, final boolean[] mask )
+	{
+		final int end = offset + length;
+		for ( int i = offset; i < end; i++ )
+		{
+			if ( !mask[ i ] )
+				continue;
+			final double v = src[ i ];
+			acc[ i ] += v;
+			n[ i ]++;
+		}
+	}
+
+	@Override
+	protected double value( final int index )
+	{
+		return acc[ index ];
+	}
+}
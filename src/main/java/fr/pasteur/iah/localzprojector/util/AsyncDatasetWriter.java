@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.log.LogService;
+
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+
+/**
+ * Saves datasets to files in background threads.
+ * <p>
+ * Datasets are queued with {@link #submit(Dataset, String)} and saved by a
+ * fixed number of writer threads, so that encoding and writing files does not
+ * stall the thread that produces them. The queue is bounded: when it is full,
+ * {@link #submit(Dataset, String)} blocks until a writer is free, which
+ * limits the number of datasets held in memory waiting to be saved.
+ * <p>
+ * Files that cannot be saved do not stop the other writes. They are logged
+ * and can be retrieved with {@link #getFailures()}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class AsyncDatasetWriter implements AutoCloseable
+{
+
+	/**
+	 * A file that could not be saved.
+	 */
+	public static class Failure
+	{
+
+		/**
+		 * The path of the file.
+		 */
+		public final String destination;
+
+		/**
+		 * The error that prevented saving it.
+		 */
+		public final Throwable error;
+
+		public Failure( final String destination, final Throwable error )
+		{
+			this.destination = destination;
+			this.error = error;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Could not save " + destination + ": " + error.getMessage();
+		}
+	}
+
+	private final DatasetIOService ioService;
+
+	private final LogService log;
+
+	private final ExecutorService executor;
+
+	/**
+	 * One permit per dataset that can be queued or being saved.
+	 */
+	private final Semaphore slots;
+
+	private final int nSlots;
+
+	private final ConcurrentLinkedQueue< Failure > failures = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean closed = false;
+
+	private volatile StageTimings timings = StageTimings.DISABLED;
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param ioService
+	 *            the service used to save datasets.
+	 * @param log
+	 *            the log service used to report failures. Can be
+	 *            <code>null</code>.
+	 * @param nThreads
+	 *            the number of writer threads.
+	 * @param queueSize
+	 *            the number of datasets that can wait to be saved, in
+	 *            addition to the ones being saved.
+	 */
+	public AsyncDatasetWriter( final DatasetIOService ioService, final LogService log, final int nThreads, final int queueSize )
+	{
+		if ( nThreads < 1 )
+			throw new IllegalArgumentException( "Number of writer threads must be at least 1, was " + nThreads + "." );
+		if ( queueSize < 0 )
+			throw new IllegalArgumentException( "Queue size must be positive, was " + queueSize + "." );
+
+		this.ioService = ioService;
+		this.log = log;
+		this.nSlots = nThreads + queueSize;
+		this.slots = new Semaphore( nSlots );
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool( nThreads, r -> {
+			final Thread thread = new Thread( r, "Local Z Projector file writer thread " + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Queues a dataset to be saved. Blocks while the queue is full.
+	 *
+	 * @param dataset
+	 *            the dataset to save. It must not be modified until it is
+	 *            saved.
+	 * @param destination
+	 *            the path of the file to save to.
+	 */
+	public void submit( final Dataset dataset, final String destination )
+	{
+		submit( dataset, destination, null );
+	}
+
+	/**
+	 * Queues a dataset to be saved, and specifies what to do once it is
+	 * saved. Blocks while the queue is full.
+	 *
+	 * @param dataset
+	 *            the dataset to save. It must not be modified until it is
+	 *            saved.
+	 * @param destination
+	 *            the path of the file to save to.
+	 * @param onSaved
+	 *            called in the writer thread after the dataset was saved
+	 *            successfully. Can be <code>null</code>.
+	 */
+	public void submit( final Dataset dataset, final String destination, final Runnable onSaved )
+	{
+		if ( closed )
+			throw new IllegalStateException( "Cannot submit to a writer that is closed." );
+
+		try
+		{
+			slots.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			fail( destination, e );
+			return;
+		}
+
+		executor.execute( () -> {
+			try
+			{
+				final long start = timings.start();
+				ioService.save( dataset, destination );
+				timings.stop( StageTimings.SAVE, start );
+				if ( null != onSaved )
+					onSaved.run();
+			}
+			catch ( final Throwable e )
+			{
+				fail( destination, e );
+			}
+			finally
+			{
+				slots.release();
+			}
+		} );
+	}
+
+	/**
+	 * Sets where to record the time spent saving datasets.
+	 *
+	 * @param timings
+	 *            the timings. If <code>null</code>, nothing is recorded.
+	 */
+	public void setTimings( final StageTimings timings )
+	{
+		this.timings = ( null == timings ) ? StageTimings.DISABLED : timings;
+	}
+
+	/**
+	 * Returns the number of datasets queued or being saved.
+	 *
+	 * @return the number of pending writes.
+	 */
+	public int pending()
+	{
+		return nSlots - slots.availablePermits();
+	}
+
+	/**
+	 * Blocks until all the datasets submitted so far are saved.
+	 */
+	public void flush()
+	{
+		boolean interrupted = false;
+		while ( true )
+		{
+			try
+			{
+				slots.acquire( nSlots );
+				slots.release( nSlots );
+				break;
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Saves all the pending datasets, then stops the writer threads. No
+	 * dataset can be submitted afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		if ( closed )
+			return;
+		closed = true;
+		flush();
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the files that could not be saved so far.
+	 *
+	 * @return a new list of failures.
+	 */
+	public List< Failure > getFailures()
+	{
+		return new ArrayList<>( failures );
+	}
+
+	private void fail( final String destination, final Throwable error )
+	{
+		final Failure failure = new Failure( destination, error );
+		failures.add( failure );
+		if ( null != log )
+			log.error( failure.toString(), error );
+	}
+}
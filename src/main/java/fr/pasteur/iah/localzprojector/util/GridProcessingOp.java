@@ -60,6 +60,7 @@ import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -91,6 +92,12 @@ public class GridProcessingOp< T extends NativeType< T > & RealType< T > > exten
 	@Parameter
 	private BiConsumer< Iterable< T >, DoubleType > func;
 
+	/**
+	 * The downscaled target of the last call, reused if the next source has
+	 * the same size.
+	 */
+	private Img< T > target;
+
 	/**
 	 * Computes the value of a filter on a source image, but only on a sparse
 	 * grid, then do N-linear interpolation in between grid points.
@@ -115,10 +122,13 @@ public class GridProcessingOp< T extends NativeType< T > & RealType< T > > exten
 		final long[] downscaledDims = new long[ source.numDimensions() ];
 		for ( int d = 0; d < downscaledDims.length; d++ )
 			downscaledDims[ d ] = 1 + source.dimension( d ) / gridSize;
-		final Img< T > target = ops().create().img( FinalDimensions.wrap( downscaledDims ), Util.getTypeFromInterval( source ) );
+		if ( null == target || !Arrays.equals( Intervals.dimensionsAsLongArray( target ), downscaledDims )
+				|| target.firstElement().getClass() != Util.getTypeFromInterval( source ).getClass() )
+			target = ops().create().img( FinalDimensions.wrap( downscaledDims ), Util.getTypeFromInterval( source ) );
+		final Img< T > target = this.target;
 
 		// Generate workers, 1 per thread.
-		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final int nThreads = ThreadBudget.threads();
 		final ConcurrentLinkedQueue< Pair< Interval, long[] > > todos = new ConcurrentLinkedQueue<>( blocks );
 		final List< Runnable > runnables = new ArrayList<>( nThreads );
 		for ( int i = 0; i < nThreads; i++ )
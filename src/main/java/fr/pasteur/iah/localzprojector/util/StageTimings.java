@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Accumulates the time spent in each stage of a computation, and counters
+ * of the amount of data processed.
+ * <p>
+ * Instances are thread-safe, so that the stages running in several threads
+ * can report to the same instance. Stages are timed with:
+ *
+ * <pre>
+ * final long start = timings.start();
+ * // ... do the work
+ * timings.stop( StageTimings.BINNING, start );
+ * </pre>
+ *
+ * The {@link #DISABLED} instance ignores everything, and is used by the ops
+ * by default.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class StageTimings
+{
+
+	/*
+	 * Stage names.
+	 */
+
+	public static final String FETCH = "fetch";
+
+	public static final String BINNING = "binning";
+
+	public static final String GAUSSIAN = "gaussian";
+
+	public static final String FOCUS_FILTER = "focus filter";
+
+	public static final String ARGMAX = "argmax";
+
+	public static final String MEDIAN = "median";
+
+	public static final String UNBINNING = "unbinning";
+
+	public static final String EXTRACTION = "extraction";
+
+	public static final String DISPLAY = "display";
+
+	public static final String SAVE = "save";
+
+	public static final String TOTAL = "total";
+
+	/*
+	 * Counter names.
+	 */
+
+	public static final String FRAMES = "frames";
+
+	public static final String VOXELS_READ = "voxels read";
+
+	public static final String PIXELS_WRITTEN = "pixels written";
+
+	/**
+	 * An instance that does not record anything.
+	 */
+	public static final StageTimings DISABLED = new StageTimings( false );
+
+	private final boolean enabled;
+
+	/**
+	 * Per stage: total time in ns, and number of calls.
+	 */
+	private final Map< String, LongAdder[] > stages = new LinkedHashMap<>();
+
+	private final Map< String, LongAdder > counters = new LinkedHashMap<>();
+
+	public StageTimings()
+	{
+		this( true );
+	}
+
+	private StageTimings( final boolean enabled )
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Returns the start time of a stage, to pass to
+	 * {@link #stop(String, long)}.
+	 *
+	 * @return the start time in ns.
+	 */
+	public long start()
+	{
+		return enabled ? System.nanoTime() : 0l;
+	}
+
+	/**
+	 * Records the end of a stage.
+	 *
+	 * @param stage
+	 *            the stage name.
+	 * @param start
+	 *            the start time, as returned by {@link #start()}.
+	 */
+	public void stop( final String stage, final long start )
+	{
+		if ( enabled )
+			add( stage, System.nanoTime() - start );
+	}
+
+	/**
+	 * Adds time to a stage.
+	 *
+	 * @param stage
+	 *            the stage name.
+	 * @param nanos
+	 *            the time to add, in ns.
+	 */
+	public void add( final String stage, final long nanos )
+	{
+		if ( !enabled )
+			return;
+		final LongAdder[] adders;
+		synchronized ( stages )
+		{
+			adders = stages.computeIfAbsent( stage, k -> new LongAdder[] { new LongAdder(), new LongAdder() } );
+		}
+		adders[ 0 ].add( nanos );
+		adders[ 1 ].increment();
+	}
+
+	/**
+	 * Increments a counter.
+	 *
+	 * @param counter
+	 *            the counter name.
+	 * @param n
+	 *            the amount to add.
+	 */
+	public void count( final String counter, final long n )
+	{
+		if ( !enabled )
+			return;
+		final LongAdder adder;
+		synchronized ( counters )
+		{
+			adder = counters.computeIfAbsent( counter, k -> new LongAdder() );
+		}
+		adder.add( n );
+	}
+
+	/**
+	 * Returns the total time spent in each stage, in seconds, in the order
+	 * the stages were first recorded.
+	 *
+	 * @return a new map.
+	 */
+	public Map< String, Double > getSeconds()
+	{
+		final Map< String, Double > map = new LinkedHashMap<>();
+		synchronized ( stages )
+		{
+			stages.forEach( ( k, v ) -> map.put( k, Double.valueOf( v[ 0 ].sum() / 1e9 ) ) );
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the number of times each stage was recorded.
+	 *
+	 * @return a new map.
+	 */
+	public Map< String, Long > getCalls()
+	{
+		final Map< String, Long > map = new LinkedHashMap<>();
+		synchronized ( stages )
+		{
+			stages.forEach( ( k, v ) -> map.put( k, Long.valueOf( v[ 1 ].sum() ) ) );
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the value of each counter.
+	 *
+	 * @return a new map.
+	 */
+	public Map< String, Long > getCounters()
+	{
+		final Map< String, Long > map = new LinkedHashMap<>();
+		synchronized ( counters )
+		{
+			counters.forEach( ( k, v ) -> map.put( k, Long.valueOf( v.sum() ) ) );
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the timings and counters as JSON.
+	 *
+	 * @return a JSON string.
+	 */
+	public String toJson()
+	{
+		final Map< String, Double > seconds = getSeconds();
+		final Map< String, Long > calls = getCalls();
+		final Map< String, Object > stageMap = new LinkedHashMap<>();
+		for ( final String stage : seconds.keySet() )
+		{
+			final Map< String, Object > s = new LinkedHashMap<>();
+			s.put( "seconds", seconds.get( stage ) );
+			s.put( "calls", calls.get( stage ) );
+			stageMap.put( stage, s );
+		}
+		final Map< String, Object > report = new LinkedHashMap<>();
+		report.put( "stages", stageMap );
+		report.put( "counters", getCounters() );
+		return new GsonBuilder().setPrettyPrinting().create().toJson( report );
+	}
+
+	/**
+	 * Returns the timings and counters as CSV, one line per stage or
+	 * counter.
+	 *
+	 * @return a CSV string.
+	 */
+	public String toCsv()
+	{
+		final List< String > lines = new ArrayList<>();
+		lines.add( "kind,name,calls,seconds,value" );
+		final Map< String, Long > calls = getCalls();
+		getSeconds().forEach( ( k, v ) -> lines.add( String.format( Locale.ROOT, "stage,%s,%d,%.6f,", k, calls.get( k ), v ) ) );
+		getCounters().forEach( ( k, v ) -> lines.add( String.format( Locale.ROOT, "counter,%s,,,%d", k, v ) ) );
+		return String.join( System.lineSeparator(), lines ) + System.lineSeparator();
+	}
+
+	/**
+	 * Writes the report to a file, as CSV if the file name ends with
+	 * <code>.csv</code>, as JSON otherwise.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write( final File file ) throws IOException
+	{
+		final String str = file.getName().toLowerCase( Locale.ROOT ).endsWith( ".csv" )
+				? toCsv()
+				: toJson();
+		try (PrintWriter writer = new PrintWriter( file, StandardCharsets.UTF_8.name() ))
+		{
+			writer.print( str );
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return toCsv();
+	}
+}
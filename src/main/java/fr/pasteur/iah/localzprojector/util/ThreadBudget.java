@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imagej.ops.thread.chunker.Chunk;
+
+/**
+ * The number of threads that the ops running in the current thread may use
+ * for their own parallel processing.
+ * <p>
+ * By default this is the number of available processors. When several
+ * time-points are processed concurrently, each processing thread sets its
+ * share of the processors, so that the concurrent time-points do not
+ * oversubscribe the CPU. Loops that would be run with the chunker of the
+ * ops, which uses all the processors, are run with
+ * {@link #forEachChunk(ExecutorService, long, Chunk)} instead.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ThreadBudget
+{
+
+	private static final ThreadLocal< Integer > BUDGET = new ThreadLocal<>();
+
+	/**
+	 * Returns the number of threads available in the current thread.
+	 *
+	 * @return the number of threads, at least 1.
+	 */
+	public static int threads()
+	{
+		final Integer budget = BUDGET.get();
+		return ( null == budget )
+				? Runtime.getRuntime().availableProcessors()
+				: budget.intValue();
+	}
+
+	/**
+	 * Sets the number of threads available in the current thread.
+	 *
+	 * @param nThreads
+	 *            the number of threads. Values below 1 reset the budget to
+	 *            the number of available processors.
+	 */
+	public static void set( final int nThreads )
+	{
+		if ( nThreads < 1 )
+			BUDGET.remove();
+		else
+			BUDGET.set( Integer.valueOf( nThreads ) );
+	}
+
+	/**
+	 * Runs a loop over the specified number of elements, split in contiguous
+	 * chunks, one per thread available in the current thread. This is the
+	 * equivalent of the chunker of the ops, within the budget. The chunks are
+	 * run with the specified executor, and the current thread waits for them.
+	 *
+	 * @param executor
+	 *            the executor to run the chunks with.
+	 * @param numSteps
+	 *            the number of elements.
+	 * @param chunk
+	 *            the loop over a chunk, called with its first element, a
+	 *            step size of 1 and its number of elements.
+	 */
+	public static void forEachChunk( final ExecutorService executor, final long numSteps, final Chunk chunk )
+	{
+		final int nThreads = ( int ) Math.max( 1, Math.min( numSteps, threads() ) );
+		if ( nThreads == 1 )
+		{
+			chunk.execute( 0, 1, numSteps );
+			return;
+		}
+
+		final long chunkSize = ( numSteps + nThreads - 1 ) / nThreads;
+		final List< Future< ? > > futures = new ArrayList<>( nThreads );
+		for ( long start = 0; start < numSteps; start += chunkSize )
+		{
+			final long startIndex = start;
+			final long n = Math.min( chunkSize, numSteps - start );
+			futures.add( executor.submit( () -> chunk.execute( startIndex, 1, n ) ) );
+		}
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			futures.forEach( f -> f.cancel( true ) );
+		}
+		catch ( final ExecutionException e )
+		{
+			futures.forEach( f -> f.cancel( true ) );
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	private ThreadBudget()
+	{}
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.util;
+
+import java.util.function.LongConsumer;
+
+import org.scijava.log.LogService;
+
+/**
+ * Refreshes displays in a dedicated thread, at most at a fixed rate.
+ * <p>
+ * Refresh requests are made with {@link #request(long)} and return
+ * immediately, so that the thread making them never waits for the display.
+ * Requests made while a refresh is running or while the rate limit applies
+ * are coalesced: only the last one is served.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ThrottledDisplayUpdater implements AutoCloseable
+{
+
+	private final LongConsumer refresher;
+
+	private final LogService log;
+
+	private final long periodNanos;
+
+	private final Thread thread;
+
+	private final Object lock = new Object();
+
+	private long requested;
+
+	private boolean hasRequest = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates and starts a new updater.
+	 *
+	 * @param refresher
+	 *            the refresh to run, receiving the time-point of the last
+	 *            request.
+	 * @param log
+	 *            the log service used to report failed refreshes. Can be
+	 *            <code>null</code>.
+	 * @param maxRate
+	 *            the maximal number of refreshes per second. If 0 or less,
+	 *            refreshes are not rate-limited, but are still coalesced.
+	 */
+	public ThrottledDisplayUpdater( final LongConsumer refresher, final LogService log, final double maxRate )
+	{
+		this.refresher = refresher;
+		this.log = log;
+		this.periodNanos = ( maxRate > 0. )
+				? ( long ) ( 1e9 / maxRate )
+				: 0l;
+		this.thread = new Thread( () -> run(), "Local Z Projector display updater thread" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Requests a refresh for the specified time-point. Returns immediately.
+	 *
+	 * @param t
+	 *            the time-point to show.
+	 */
+	public void request( final long t )
+	{
+		synchronized ( lock )
+		{
+			if ( closed )
+				return;
+			requested = t;
+			hasRequest = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Serves the last pending request, if any, then stops the updater
+	 * thread.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized ( lock )
+		{
+			closed = true;
+			lock.notifyAll();
+		}
+		try
+		{
+			thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run()
+	{
+		while ( true )
+		{
+			final long t;
+			synchronized ( lock )
+			{
+				while ( !hasRequest && !closed )
+				{
+					try
+					{
+						lock.wait();
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+				}
+				if ( !hasRequest )
+					return;
+				t = requested;
+				hasRequest = false;
+			}
+
+			final long start = System.nanoTime();
+			try
+			{
+				refresher.accept( t );
+			}
+			catch ( final RuntimeException e )
+			{
+				// Keep serving the next requests.
+				if ( null != log )
+					log.error( "Could not refresh the display of time-point " + t + ".", e );
+			}
+
+			// Rate limit, unless we are closing.
+			final long deadline = start + periodNanos;
+			synchronized ( lock )
+			{
+				long remaining;
+				while ( !closed && ( remaining = deadline - System.nanoTime() ) > 0 )
+				{
+					try
+					{
+						lock.wait( remaining / 1000000l, ( int ) ( remaining % 1000000l ) );
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+				}
+			}
+		}
+	}
+}
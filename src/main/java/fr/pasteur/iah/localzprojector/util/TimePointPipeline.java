@@ -0,0 +1,440 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.scijava.Cancelable;
+
+/**
+ * Runs a 3-stage pipeline over the time-points of a movie.
+ * <p>
+ * Time-point <code>t+1</code> is loaded in a dedicated thread while
+ * time-point <code>t</code> is processed, and while the results of time-point
+ * <code>t-1</code> are written in a second dedicated thread. Stages
+ * communicate through bounded queues, so that at most a few frames are held
+ * in memory at any time, and the pipeline runs at the speed of its slowest
+ * stage.
+ * <p>
+ * The processing stage can be run by several processors concurrently, each
+ * one in its own thread, the first one in the thread calling
+ * {@link #run(long)}. Processors take the loaded time-points in order, and
+ * the writer still receives them in increasing order.
+ * <p>
+ * When the {@link Cancelable} is canceled, no new time-point is loaded nor
+ * processed, but the results already processed are still written. If one of
+ * the stages throws an exception, the pipeline stops the same way and the
+ * exception is rethrown by {@link #run(long)}.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <L>
+ *            the type of the loaded time-points.
+ * @param <R>
+ *            the type of the processing results.
+ */
+public class TimePointPipeline< L, R >
+{
+
+	/**
+	 * Loads a time-point. Called in the loader thread.
+	 */
+	@FunctionalInterface
+	public static interface Loader< L >
+	{
+		public L load( long t );
+	}
+
+	/**
+	 * Processes a loaded time-point. Called in the thread of this processor.
+	 * Returns <code>null</code> if processing was canceled.
+	 */
+	@FunctionalInterface
+	public static interface Processor< L, R >
+	{
+		public R process( long t, L loaded );
+	}
+
+	/**
+	 * Writes the result of a time-point. Called in the writer thread.
+	 */
+	@FunctionalInterface
+	public static interface Writer< R >
+	{
+		public void write( long t, R result );
+	}
+
+	/**
+	 * Marks the end of the loaded queue.
+	 */
+	private static final Object END = new Object();
+
+	private final Loader< L > loader;
+
+	private final List< Processor< L, R > > processors;
+
+	private final Writer< R > writer;
+
+	private final Cancelable cancelable;
+
+	private final int queueSize;
+
+	/**
+	 * Creates a new pipeline with a single processor.
+	 *
+	 * @param loader
+	 *            the loading stage.
+	 * @param processor
+	 *            the processing stage.
+	 * @param writer
+	 *            the writing stage.
+	 * @param cancelable
+	 *            the cancelable to check between time-points.
+	 * @param queueSize
+	 *            the number of time-points that can wait between two stages.
+	 */
+	public TimePointPipeline(
+			final Loader< L > loader,
+			final Processor< L, R > processor,
+			final Writer< R > writer,
+			final Cancelable cancelable,
+			final int queueSize )
+	{
+		this( loader, Collections.singletonList( processor ), writer, cancelable, queueSize );
+	}
+
+	/**
+	 * Creates a new pipeline with several processors, that will process
+	 * time-points concurrently.
+	 *
+	 * @param loader
+	 *            the loading stage.
+	 * @param processors
+	 *            the processing stages, one per processing thread.
+	 * @param writer
+	 *            the writing stage.
+	 * @param cancelable
+	 *            the cancelable to check between time-points.
+	 * @param queueSize
+	 *            the number of time-points that can wait between two stages.
+	 */
+	public TimePointPipeline(
+			final Loader< L > loader,
+			final List< ? extends Processor< L, R > > processors,
+			final Writer< R > writer,
+			final Cancelable cancelable,
+			final int queueSize )
+	{
+		if ( queueSize < 1 )
+			throw new IllegalArgumentException( "Queue size must be at least 1, was " + queueSize + "." );
+		if ( processors.isEmpty() )
+			throw new IllegalArgumentException( "At least one processor is required." );
+		this.loader = loader;
+		this.processors = new ArrayList<>( processors );
+		this.writer = writer;
+		this.cancelable = cancelable;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Runs the pipeline over time-points <code>0</code> to
+	 * <code>nFrames - 1</code>. Returns when all the processed time-points
+	 * have been written.
+	 *
+	 * @param nFrames
+	 *            the number of time-points.
+	 */
+	public void run( final long nFrames )
+	{
+		final long[] timePoints = new long[ ( int ) nFrames ];
+		for ( int i = 0; i < timePoints.length; i++ )
+			timePoints[ i ] = i;
+		run( timePoints );
+	}
+
+	/**
+	 * Runs the pipeline over the specified time-points. The writer receives
+	 * them in the order of the array. Returns when all the processed
+	 * time-points have been written.
+	 *
+	 * @param timePoints
+	 *            the time-points to process.
+	 */
+	public void run( final long[] timePoints )
+	{
+		final Run run = new Run();
+
+		final Thread loaderThread = new Thread( () -> run.load( timePoints ), "Local Z Projector loader thread" );
+		final Thread writerThread = new Thread( () -> run.write(), "Local Z Projector writer thread" );
+		final List< Thread > processorThreads = new ArrayList<>( processors.size() - 1 );
+		for ( int i = 1; i < processors.size(); i++ )
+		{
+			final Processor< L, R > processor = processors.get( i );
+			processorThreads.add( new Thread( () -> run.process( processor ), "Local Z Projector processor thread " + i ) );
+		}
+
+		loaderThread.start();
+		writerThread.start();
+		processorThreads.forEach( Thread::start );
+		try
+		{
+			run.process( processors.get( 0 ) );
+		}
+		finally
+		{
+			processorThreads.forEach( TimePointPipeline::joinUninterruptibly );
+			synchronized ( run.done )
+			{
+				run.processed = true;
+				run.done.notifyAll();
+			}
+			loaderThread.interrupt();
+			joinUninterruptibly( loaderThread );
+			joinUninterruptibly( writerThread );
+		}
+
+		final Throwable e = run.error.get();
+		if ( e instanceof RuntimeException )
+			throw ( RuntimeException ) e;
+		if ( e instanceof Error )
+			throw ( Error ) e;
+		if ( e != null )
+			throw new RuntimeException( e );
+	}
+
+	/**
+	 * The state shared by the stages during one run.
+	 */
+	private final class Run
+	{
+
+		private final BlockingQueue< Object > loaded = new ArrayBlockingQueue<>( queueSize );
+
+		/**
+		 * Results waiting to be written, sorted by their index in the
+		 * time-points to process. Also the lock for the fields below.
+		 */
+		private final TreeMap< Long, Item< R > > done = new TreeMap<>();
+
+		/**
+		 * How many results can wait ahead of the next one to write.
+		 */
+		private final int capacity = queueSize + processors.size();
+
+		private long nextToWrite = 0;
+
+		private boolean processed = false;
+
+		private volatile boolean stopped = false;
+
+		private final AtomicReference< Throwable > error = new AtomicReference<>();
+
+		private boolean mustStop()
+		{
+			return stopped || cancelable.isCanceled() || error.get() != null;
+		}
+
+		private void fail( final Throwable e )
+		{
+			error.compareAndSet( null, e );
+			stop();
+		}
+
+		private void stop()
+		{
+			stopped = true;
+			synchronized ( done )
+			{
+				done.notifyAll();
+			}
+		}
+
+		private void load( final long[] timePoints )
+		{
+			try
+			{
+				for ( int i = 0; i < timePoints.length; i++ )
+				{
+					if ( mustStop() )
+						break;
+					final long t = timePoints[ i ];
+					loaded.put( new Item<>( i, t, loader.load( t ) ) );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				// Stopped after processing.
+				return;
+			}
+			catch ( final Throwable e )
+			{
+				fail( e );
+			}
+			try
+			{
+				loaded.put( END );
+			}
+			catch ( final InterruptedException e )
+			{
+				// Stopped after processing.
+			}
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private void process( final Processor< L, R > processor )
+		{
+			try
+			{
+				while ( true )
+				{
+					final Object o = loaded.take();
+					if ( o == END )
+					{
+						// Let the other processors see it.
+						loaded.put( END );
+						return;
+					}
+					if ( mustStop() )
+						return;
+
+					final Item< L > item = ( Item< L > ) o;
+					final R result = processor.process( item.t, item.value );
+					if ( result == null )
+					{
+						stop();
+						return;
+					}
+
+					synchronized ( done )
+					{
+						while ( item.index - nextToWrite >= capacity && !mustStop() )
+							done.wait();
+						done.put( item.index, new Item<>( item.index, item.t, result ) );
+						done.notifyAll();
+					}
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				stop();
+				Thread.currentThread().interrupt();
+			}
+			catch ( final Throwable e )
+			{
+				fail( e );
+			}
+		}
+
+		private void write()
+		{
+			while ( true )
+			{
+				final Item< R > item;
+				synchronized ( done )
+				{
+					try
+					{
+						while ( !done.containsKey( nextToWrite ) && !processed )
+							done.wait();
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+					if ( done.isEmpty() )
+						return;
+
+					// In order, or after a gap left by a canceled time-point.
+					final long index = done.containsKey( nextToWrite ) ? nextToWrite : done.firstKey();
+					item = done.remove( index );
+					nextToWrite = index + 1;
+					done.notifyAll();
+				}
+
+				// Keep draining after an error so that processors never block.
+				if ( error.get() != null )
+					continue;
+				try
+				{
+					writer.write( item.t, item.value );
+				}
+				catch ( final Throwable e )
+				{
+					fail( e );
+				}
+			}
+		}
+	}
+
+	private static void joinUninterruptibly( final Thread thread )
+	{
+		boolean interrupted = false;
+		while ( true )
+		{
+			try
+			{
+				thread.join();
+				break;
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	private static final class Item< V >
+	{
+
+		private final long index;
+
+		private final long t;
+
+		private final V value;
+
+		private Item( final long index, final long t, final V value )
+		{
+			this.index = index;
+			this.t = t;
+			this.value = value;
+		}
+	}
+}
@@ -102,5 +102,6 @@ public class TestDrive
 		localZProjectionOp.calculate( dataset );
 		final long end = System.currentTimeMillis();
 		System.out.println( String.format( "Projection time: %.2f s.", ( end - start ) / 1000. ) );
+		System.out.println( localZProjectionOp.getTimings() );
 	}
 }
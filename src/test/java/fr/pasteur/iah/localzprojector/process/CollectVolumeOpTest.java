@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.ops.special.computer.Computers;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Checks that the tile-parallel collection of the volume around the
+ * reference surface gives the same output as copying each voxel from the
+ * source, with 0 for the voxels that fall outside of it.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class CollectVolumeOpTest
+{
+
+	private static final long WIDTH = 150;
+
+	private static final long HEIGHT = 130;
+
+	private static final long N_CHANNELS = 2;
+
+	private static final long DEPTH = 12;
+
+	private static final int DELTA_Z = 3;
+
+	private static ImageJ ij;
+
+	private static ImgPlus< UnsignedShortType > source;
+
+	private static Img< UnsignedShortType > surface;
+
+	private static ExtractSurfaceParameters params;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		ij = new ImageJ();
+		source = SyntheticStacks.source( WIDTH, HEIGHT, N_CHANNELS, DEPTH, 16, 3l );
+		surface = SyntheticStacks.surface( WIDTH, HEIGHT, DEPTH, 4l );
+		params = ExtractSurfaceParameters.create()
+				.projectionMethod( 0, ProjectionMethod.COLLECT ).zOffset( 0, 0 ).deltaZ( 0, DELTA_Z )
+				.projectionMethod( 1, ProjectionMethod.COLLECT ).zOffset( 1, -5 ).deltaZ( 1, 1 )
+				.get();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		ij.context().dispose();
+	}
+
+	@Test
+	public void testCollect()
+	{
+		final CollectVolumeOp< UnsignedShortType > op = createOp();
+		final Img< UnsignedShortType > expected = collect( source, surface, params, DELTA_Z );
+
+		// Twice, to check that the output is entirely overwritten.
+		final Img< UnsignedShortType > output = createOutput();
+		for ( int i = 0; i < 2; i++ )
+		{
+			op.compute( source, surface, output );
+			SyntheticStacks.assertIdentical( expected, output );
+		}
+	}
+
+	@Test
+	public void testSurfaceStatistics()
+	{
+		// The tiles must be smaller than the image for the pruning to matter.
+		final int[] tileSize = SurfaceStatistics.tileSize( source );
+		assertTrue( "Tiles should be smaller than the image.", tileSize[ 0 ] < WIDTH && tileSize[ 1 ] < HEIGHT );
+
+		final CollectVolumeOp< UnsignedShortType > op = createOp();
+		op.setSurfaceStatistics( SurfaceStatistics.compute( surface, tileSize, DEPTH ) );
+		final Img< UnsignedShortType > output = createOutput();
+		op.compute( source, surface, output );
+		SyntheticStacks.assertIdentical( collect( source, surface, params, DELTA_Z ), output );
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static CollectVolumeOp< UnsignedShortType > createOp()
+	{
+		return ( CollectVolumeOp ) Computers.binary( ij.op(),
+				CollectVolumeOp.class,
+				RandomAccessibleInterval.class,
+				ImgPlus.class,
+				RandomAccessibleInterval.class,
+				params,
+				DELTA_Z );
+	}
+
+	private static Img< UnsignedShortType > createOutput()
+	{
+		return ArrayImgs.unsignedShorts( WIDTH, HEIGHT, N_CHANNELS, 1 + 2 * DELTA_Z );
+	}
+
+	/**
+	 * Copies, for each pixel and each layer of the output, the source voxel
+	 * at the reference surface plus the channel offset, minus the half-range,
+	 * plus the layer index.
+	 */
+	private static Img< UnsignedShortType > collect( final ImgPlus< UnsignedShortType > source, final RandomAccessibleInterval< UnsignedShortType > surface, final ExtractSurfaceParameters params, final int deltaZ )
+	{
+		final long width = source.dimension( 0 );
+		final long height = source.dimension( 1 );
+		final long nChannels = source.dimension( 2 );
+		final long depth = source.dimension( 3 );
+		final long nLayers = 1 + 2 * deltaZ;
+		final Img< UnsignedShortType > output = ArrayImgs.unsignedShorts( width, height, nChannels, nLayers );
+		final RandomAccess< UnsignedShortType > raSource = source.randomAccess();
+		final RandomAccess< UnsignedShortType > raSurface = surface.randomAccess();
+		final RandomAccess< UnsignedShortType > raOutput = output.randomAccess();
+
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			for ( long y = 0; y < height; y++ )
+			{
+				for ( long x = 0; x < width; x++ )
+				{
+					raSurface.setPosition( x, 0 );
+					raSurface.setPosition( y, 1 );
+					final long sz = raSurface.get().get();
+					for ( long k = 0; k < nLayers; k++ )
+					{
+						final long z = sz + params.offset( c ) - deltaZ + k;
+						raOutput.setPosition( new long[] { x, y, c, k } );
+						if ( z < 0 || z >= depth )
+						{
+							raOutput.get().setZero();
+							continue;
+						}
+						raSource.setPosition( new long[] { x, y, c, z } );
+						raOutput.get().set( raSource.get() );
+					}
+				}
+			}
+		}
+		return output;
+	}
+}
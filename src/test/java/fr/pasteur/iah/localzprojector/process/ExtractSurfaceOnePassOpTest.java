@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.ops.special.computer.Computers;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Checks that the one-pass projection gives the same output as a
+ * straightforward projection of each pixel column, whether the
+ * configurations are projected one by one or in a single sweep, and whether
+ * the tiles of the surface statistics are computed by the op or passed to
+ * it.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ExtractSurfaceOnePassOpTest
+{
+
+	private static final long WIDTH = 150;
+
+	private static final long HEIGHT = 130;
+
+	private static final long N_CHANNELS = 2;
+
+	private static final long DEPTH = 12;
+
+	private static ImageJ ij;
+
+	private static ImgPlus< UnsignedShortType > source;
+
+	private static Img< UnsignedShortType > surface;
+
+	/**
+	 * Configurations mixing projection methods, offsets and half-ranges. The
+	 * third one puts the bands of both channels out of the stack over part
+	 * of the image.
+	 */
+	private static List< ExtractSurfaceParameters > configurations;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		ij = new ImageJ();
+		source = SyntheticStacks.source( WIDTH, HEIGHT, N_CHANNELS, DEPTH, 16, 1l );
+		surface = SyntheticStacks.surface( WIDTH, HEIGHT, DEPTH, 2l );
+		configurations = Arrays.asList(
+				ExtractSurfaceParameters.create()
+						.projectionMethod( 0, ProjectionMethod.MIP ).zOffset( 0, 0 ).deltaZ( 0, 2 )
+						.projectionMethod( 1, ProjectionMethod.MEAN ).zOffset( 1, 3 ).deltaZ( 1, 1 )
+						.get(),
+				ExtractSurfaceParameters.create()
+						.projectionMethod( 0, ProjectionMethod.MIN ).zOffset( 0, -2 ).deltaZ( 0, 3 )
+						.projectionMethod( 1, ProjectionMethod.SUM ).zOffset( 1, 0 ).deltaZ( 1, 4 )
+						.get(),
+				ExtractSurfaceParameters.create()
+						.projectionMethod( 0, ProjectionMethod.MEAN ).zOffset( 0, 5 ).deltaZ( 0, 0 )
+						.projectionMethod( 1, ProjectionMethod.MIP ).zOffset( 1, -4 ).deltaZ( 1, 2 )
+						.get(),
+				ExtractSurfaceParameters.create()
+						.projectionMethod( 0, ProjectionMethod.STD ).zOffset( 0, 1 ).deltaZ( 0, 3 )
+						.projectionMethod( 1, ProjectionMethod.STD ).zOffset( 1, -1 ).deltaZ( 1, 2 )
+						.get() );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		ij.context().dispose();
+	}
+
+	@Test
+	public void testSingleConfiguration()
+	{
+		for ( final ExtractSurfaceParameters params : configurations )
+		{
+			final ExtractSurfaceOnePassOp< UnsignedShortType > op = createOp( params );
+			final Img< UnsignedShortType > expected = project( source, surface, params );
+
+			// Twice, to reuse the buffers and accumulators of the op.
+			for ( int i = 0; i < 2; i++ )
+			{
+				final Img< UnsignedShortType > output = createOutput();
+				op.compute( source, surface, output );
+				SyntheticStacks.assertIdentical( expected, output );
+			}
+		}
+	}
+
+	@Test
+	public void testSweepOverConfigurations()
+	{
+		final ExtractSurfaceOnePassOp< UnsignedShortType > op = createOp( configurations.get( 0 ) );
+		final List< Img< UnsignedShortType > > outputs = new ArrayList<>();
+		for ( int k = 0; k < configurations.size(); k++ )
+			outputs.add( createOutput() );
+		op.computeAll( source, surface, configurations, outputs );
+		for ( int k = 0; k < configurations.size(); k++ )
+			SyntheticStacks.assertIdentical( project( source, surface, configurations.get( k ) ), outputs.get( k ) );
+	}
+
+	@Test
+	public void testGrowingConfigurationList()
+	{
+		// The same lists, with one more configuration at each call.
+		final ExtractSurfaceOnePassOp< UnsignedShortType > op = createOp( configurations.get( 0 ) );
+		final List< ExtractSurfaceParameters > params = new ArrayList<>();
+		final List< Img< UnsignedShortType > > outputs = new ArrayList<>();
+		for ( final ExtractSurfaceParameters configuration : configurations )
+		{
+			params.add( configuration );
+			outputs.add( createOutput() );
+			op.computeAll( source, surface, params, outputs );
+			for ( int k = 0; k < params.size(); k++ )
+				SyntheticStacks.assertIdentical( project( source, surface, params.get( k ) ), outputs.get( k ) );
+		}
+	}
+
+	@Test
+	public void testSumClamping()
+	{
+		// The sum of the second channel overflows the type over most of the
+		// image, the sum of the first channel never does.
+		final ExtractSurfaceParameters params = ExtractSurfaceParameters.create()
+				.projectionMethod( 0, ProjectionMethod.SUM ).zOffset( 0, 0 ).deltaZ( 0, 6 )
+				.projectionMethod( 1, ProjectionMethod.SUM ).zOffset( 1, 0 ).deltaZ( 1, 6 )
+				.get();
+		final Img< UnsignedShortType > output = createOutput();
+		createOp( params ).compute( source, surface, output );
+		SyntheticStacks.assertIdentical( project( source, surface, params ), output );
+
+		final int max = ( int ) output.firstElement().getMaxValue();
+		long saturated0 = 0;
+		long saturated1 = 0;
+		final RandomAccess< UnsignedShortType > ra = output.randomAccess();
+		for ( long y = 0; y < HEIGHT; y++ )
+		{
+			for ( long x = 0; x < WIDTH; x++ )
+			{
+				ra.setPosition( new long[] { x, y, 0 } );
+				if ( ra.get().get() == max )
+					saturated0++;
+				ra.setPosition( 1, 2 );
+				if ( ra.get().get() == max )
+					saturated1++;
+			}
+		}
+		assertEquals( "The sum of the first channel should not be clamped.", 0, saturated0 );
+		assertTrue( "The sum of the second channel should be clamped.", saturated1 > 0 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testNoConfiguration()
+	{
+		createOp( configurations.get( 0 ) ).computeAll( source, surface, Collections.emptyList(), Collections.emptyList() );
+	}
+
+	@Test
+	public void testSurfaceStatistics()
+	{
+		// The tiles must be smaller than the image for the pruning to matter.
+		final int[] tileSize = SurfaceStatistics.tileSize( source );
+		assertTrue( "Tiles should be smaller than the image.", tileSize[ 0 ] < WIDTH && tileSize[ 1 ] < HEIGHT );
+
+		for ( final ExtractSurfaceParameters params : configurations )
+		{
+			final ExtractSurfaceOnePassOp< UnsignedShortType > op = createOp( params );
+			op.setSurfaceStatistics( SurfaceStatistics.compute( surface, tileSize, DEPTH ) );
+			final Img< UnsignedShortType > output = createOutput();
+			op.compute( source, surface, output );
+			SyntheticStacks.assertIdentical( project( source, surface, params ), output );
+		}
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static ExtractSurfaceOnePassOp< UnsignedShortType > createOp( final ExtractSurfaceParameters params )
+	{
+		return ( ExtractSurfaceOnePassOp ) Computers.binary( ij.op(),
+				ExtractSurfaceOnePassOp.class,
+				RandomAccessibleInterval.class,
+				ImgPlus.class,
+				RandomAccessibleInterval.class,
+				params );
+	}
+
+	private static Img< UnsignedShortType > createOutput()
+	{
+		return ArrayImgs.unsignedShorts( WIDTH, HEIGHT, N_CHANNELS );
+	}
+
+	/**
+	 * Projects each pixel column separately over the band around the
+	 * reference surface, clipped to the stack. Pixels with an empty band are
+	 * 0, and values are clamped to the range of the type. The standard
+	 * deviation is the population one, computed in the same order as the
+	 * accumulator so that rounding gives the same value.
+	 */
+	private static Img< UnsignedShortType > project( final ImgPlus< UnsignedShortType > source, final RandomAccessibleInterval< UnsignedShortType > surface, final ExtractSurfaceParameters params )
+	{
+		final long width = source.dimension( 0 );
+		final long height = source.dimension( 1 );
+		final long nChannels = source.dimension( 2 );
+		final long depth = source.dimension( 3 );
+		final Img< UnsignedShortType > output = ArrayImgs.unsignedShorts( width, height, nChannels );
+		final RandomAccess< UnsignedShortType > raSource = source.randomAccess();
+		final RandomAccess< UnsignedShortType > raSurface = surface.randomAccess();
+		final RandomAccess< UnsignedShortType > raOutput = output.randomAccess();
+		final double min = raOutput.get().getMinValue();
+		final double max = raOutput.get().getMaxValue();
+
+		for ( int c = 0; c < nChannels; c++ )
+		{
+			final ProjectionMethod method = params.projectionMethod( c );
+			for ( long y = 0; y < height; y++ )
+			{
+				for ( long x = 0; x < width; x++ )
+				{
+					raSurface.setPosition( x, 0 );
+					raSurface.setPosition( y, 1 );
+					final long sz = raSurface.get().get();
+					final long z0 = Math.max( 0, sz + params.offset( c ) - params.deltaZ( c ) );
+					final long z1 = Math.min( depth - 1, sz + params.offset( c ) + params.deltaZ( c ) );
+
+					int n = 0;
+					double sum = 0.;
+					double mean = 0.;
+					double m2 = 0.;
+					double vmin = Double.POSITIVE_INFINITY;
+					double vmax = Double.NEGATIVE_INFINITY;
+					raSource.setPosition( new long[] { x, y, c, 0 } );
+					for ( long z = z0; z <= z1; z++ )
+					{
+						raSource.setPosition( z, 3 );
+						final double v = raSource.get().getRealDouble();
+						n++;
+						sum += v;
+						vmin = Math.min( vmin, v );
+						vmax = Math.max( vmax, v );
+						final double delta = v - mean;
+						mean += delta / n;
+						m2 += delta * ( v - mean );
+					}
+
+					final double v;
+					if ( n == 0 )
+						v = 0.;
+					else
+					{
+						switch ( method )
+						{
+						case MIP:
+							v = vmax;
+							break;
+						case MIN:
+							v = vmin;
+							break;
+						case SUM:
+							v = sum;
+							break;
+						case MEAN:
+							v = sum / n;
+							break;
+						case STD:
+							v = Math.sqrt( m2 / n );
+							break;
+						default:
+							throw new IllegalArgumentException( "Projection method not covered by the test: " + method + "." );
+						}
+					}
+					raOutput.setPosition( new long[] { x, y, c } );
+					raOutput.get().setReal( Math.max( min, Math.min( max, v ) ) );
+				}
+			}
+		}
+		return output;
+	}
+}
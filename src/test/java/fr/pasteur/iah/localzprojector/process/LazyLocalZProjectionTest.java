@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.pasteur.iah.localzprojector.process.ExtractSurfaceParameters.ProjectionMethod;
+import fr.pasteur.iah.localzprojector.process.ReferenceSurfaceParameters.Method;
+import fr.pasteur.iah.localzprojector.util.ImgPlusUtil;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.ops.special.computer.Computers;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that the lazy projection, computed tile per tile with a halo, gives
+ * the same output as the reference surface and the projection computed on
+ * the whole image, away from the image borders.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LazyLocalZProjectionTest
+{
+
+	/*
+	 * Larger than one lazy tile in X and Y.
+	 */
+
+	private static final long WIDTH = 300;
+
+	private static final long HEIGHT = 280;
+
+	private static final long N_CHANNELS = 2;
+
+	private static final long DEPTH = 10;
+
+	/**
+	 * Distance to the image borders of the pixels compared.
+	 */
+	private static final long MARGIN = 16;
+
+	private static ImageJ ij;
+
+	private static ImgPlus< UnsignedShortType > source;
+
+	private static ReferenceSurfaceParameters referenceSurfaceParams;
+
+	private static Img< UnsignedShortType > surface;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		ij = new ImageJ();
+		source = SyntheticStacks.source( WIDTH, HEIGHT, N_CHANNELS, DEPTH, 32, 5l );
+		referenceSurfaceParams = ReferenceSurfaceParameters.create()
+				.method( Method.MAX_OF_STD )
+				.zMin( 0 )
+				.zMax( ( int ) DEPTH - 1 )
+				.filterWindowSize( 6 )
+				.medianPostFilterHalfSize( 2 )
+				.binning( 2 )
+				.targetChannel( 0 )
+				.get();
+
+		// Reference surface of the whole image.
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final ReferenceSurfaceOp< UnsignedShortType > referenceSurfaceOp = ( ReferenceSurfaceOp ) Functions.unary(
+				ij.op(),
+				ReferenceSurfaceOp.class,
+				Img.class,
+				ImgPlus.class,
+				referenceSurfaceParams );
+		surface = referenceSurfaceOp.calculate( ImgPlusUtil.hypersliceChannel( source, referenceSurfaceParams.targetChannel ) );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		ij.context().dispose();
+	}
+
+	@Test
+	public void testProjection()
+	{
+		final ExtractSurfaceParameters params = ExtractSurfaceParameters.create()
+				.projectionMethod( 0, ProjectionMethod.MIP ).zOffset( 0, 1 ).deltaZ( 0, 2 )
+				.projectionMethod( 1, ProjectionMethod.MEAN ).zOffset( 1, -2 ).deltaZ( 1, 3 )
+				.get();
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final ExtractSurfaceOnePassOp< UnsignedShortType > op = ( ExtractSurfaceOnePassOp ) Computers.binary( ij.op(),
+				ExtractSurfaceOnePassOp.class,
+				RandomAccessibleInterval.class,
+				ImgPlus.class,
+				RandomAccessibleInterval.class,
+				params );
+		final Img< UnsignedShortType > expected = ArrayImgs.unsignedShorts( WIDTH, HEIGHT, N_CHANNELS );
+		op.compute( source, surface, expected );
+
+		assertInteriorIdentical( expected, createLazyImg( params ) );
+	}
+
+	@Test
+	public void testCollect()
+	{
+		final int deltaZ = 2;
+		final ExtractSurfaceParameters params = ExtractSurfaceParameters.create()
+				.projectionMethod( 0, ProjectionMethod.COLLECT ).zOffset( 0, 0 ).deltaZ( 0, deltaZ )
+				.projectionMethod( 1, ProjectionMethod.COLLECT ).zOffset( 1, 3 ).deltaZ( 1, deltaZ )
+				.get();
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final CollectVolumeOp< UnsignedShortType > op = ( CollectVolumeOp ) Computers.binary( ij.op(),
+				CollectVolumeOp.class,
+				RandomAccessibleInterval.class,
+				ImgPlus.class,
+				RandomAccessibleInterval.class,
+				params,
+				deltaZ );
+		final Img< UnsignedShortType > expected = ArrayImgs.unsignedShorts( WIDTH, HEIGHT, N_CHANNELS, 1 + 2 * deltaZ );
+		op.compute( source, surface, expected );
+
+		assertInteriorIdentical( expected, createLazyImg( params ) );
+	}
+
+	private static CachedCellImg< UnsignedShortType, ? > createLazyImg( final ExtractSurfaceParameters params )
+	{
+		final LazyLocalZProjection< UnsignedShortType > projection = new LazyLocalZProjection<>( ij.op(), source, referenceSurfaceParams, params );
+		final CachedCellImg< UnsignedShortType, ? > lazy = projection.createImg( LazyLocalZProjection.DEFAULT_MAX_CACHED_CELLS );
+		assertTrue( "The lazy image should span several tiles.",
+				lazy.getCellGrid().cellDimension( 0 ) < WIDTH && lazy.getCellGrid().cellDimension( 1 ) < HEIGHT );
+		return lazy;
+	}
+
+	private static void assertInteriorIdentical( final RandomAccessibleInterval< UnsignedShortType > expected, final RandomAccessibleInterval< UnsignedShortType > actual )
+	{
+		assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) );
+		final long[] min = new long[ expected.numDimensions() ];
+		final long[] max = new long[ expected.numDimensions() ];
+		expected.max( max );
+		for ( int d = 0; d < 2; d++ )
+		{
+			min[ d ] += MARGIN;
+			max[ d ] -= MARGIN;
+		}
+		final Interval interior = new FinalInterval( min, max );
+		SyntheticStacks.assertIdentical( Views.interval( expected, interior ), Views.interval( actual, interior ) );
+	}
+}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * Image Analysis Hub support for Life Scientists.
+ * %%
+ * Copyright (C) 2019 - 2021 IAH developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the IAH / C2RT / Institut Pasteur nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.localzprojector.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Small synthetic stacks for the regression tests of the projection ops. The
+ * sources are X, Y, C, Z hyperstacks stored in small cells, so that the XY
+ * tiles of the surface statistics are smaller than the image.
+ *
+ * @author Jean-Yves Tinevez
+ */
+class SyntheticStacks
+{
+
+	private SyntheticStacks()
+	{}
+
+	/**
+	 * Creates a X, Y, C, Z source filled with random values. The first
+	 * channel is dim, the other ones span the full range of the type so that
+	 * sums saturate.
+	 */
+	static ImgPlus< UnsignedShortType > source( final long width, final long height, final long nChannels, final long depth, final int cellSize, final long seed )
+	{
+		final Img< UnsignedShortType > img = new CellImgFactory<>( new UnsignedShortType(), cellSize )
+				.create( width, height, nChannels, depth );
+		final Random ran = new Random( seed );
+		final Cursor< UnsignedShortType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final int bound = cursor.getIntPosition( 2 ) == 0 ? 4000 : 65536;
+			cursor.get().set( ran.nextInt( bound ) );
+		}
+		return new ImgPlus<>( img, "Synthetic", new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z } );
+	}
+
+	/**
+	 * Creates a reference surface that stays close to the bottom of the stack
+	 * except over a square patch in the top-left corner, where it reaches the
+	 * top. Tiles away from the patch only span a few Z planes, and the bands
+	 * around the surface are clipped at both ends of the stack.
+	 */
+	static Img< UnsignedShortType > surface( final long width, final long height, final long depth, final long seed )
+	{
+		final Img< UnsignedShortType > surface = ArrayImgs.unsignedShorts( width, height );
+		final Random ran = new Random( seed );
+		final Cursor< UnsignedShortType > cursor = surface.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final boolean patch = cursor.getLongPosition( 0 ) < 50 && cursor.getLongPosition( 1 ) < 40;
+			final long z = patch
+					? depth - 1 - ran.nextInt( 4 )
+					: ran.nextInt( 3 );
+			cursor.get().set( ( int ) z );
+		}
+		return surface;
+	}
+
+	/**
+	 * Asserts that the two images have the same dimensions and the same
+	 * pixel values, and reports the first pixel that differs.
+	 */
+	static void assertIdentical( final RandomAccessibleInterval< UnsignedShortType > expected, final RandomAccessibleInterval< UnsignedShortType > actual )
+	{
+		assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) );
+		final Cursor< UnsignedShortType > cursor = Views.iterable( expected ).localizingCursor();
+		final RandomAccess< UnsignedShortType > ra = actual.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			if ( cursor.get().get() != ra.get().get() )
+				fail( "Output differs at " + Util.printCoordinates( cursor ) + ": expected " + cursor.get() + " but was " + ra.get() + "." );
+		}
+	}
+}